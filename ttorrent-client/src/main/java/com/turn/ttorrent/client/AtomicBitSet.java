@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * A fixed-size set of bits which may be set, but never cleared, without
+ * locking.
+ *
+ * <p>
+ * The cardinality is maintained as bits are set. A {@link BitSet} snapshot
+ * is built only when a bit has been set since the last one, and is shared
+ * by every caller until the next change.
+ * </p>
+ *
+ * @author shevek
+ */
+public class AtomicBitSet {
+
+    private static class Snapshot {
+
+        private final int version;
+        private final BitSet bits;
+
+        public Snapshot(int version, @Nonnull BitSet bits) {
+            this.version = version;
+            this.bits = bits;
+        }
+    }
+    private final int size;
+    private final AtomicLongArray words;
+    private final AtomicInteger cardinality = new AtomicInteger(0);
+    /** Incremented after every bit set. */
+    private final AtomicInteger version = new AtomicInteger(0);
+    private volatile Snapshot snapshot = new Snapshot(0, new BitSet());
+
+    public AtomicBitSet(@Nonnegative int size) {
+        this.size = size;
+        this.words = new AtomicLongArray((size + Long.SIZE - 1) / Long.SIZE);
+    }
+
+    public AtomicBitSet(@Nonnegative int size, @Nonnull BitSet bits) {
+        this(size);
+        for (int i = bits.nextSetBit(0); i >= 0 && i < size; i = bits.nextSetBit(i + 1))
+            set(i);
+    }
+
+    @Nonnegative
+    public int size() {
+        return size;
+    }
+
+    /** Returns false for any index beyond the size of this set, as {@link BitSet} does. */
+    public boolean get(@Nonnegative int index) {
+        if (index >= size)
+            return false;
+        return (words.get(index / Long.SIZE) & (1L << index)) != 0;
+    }
+
+    /**
+     * Sets the given bit.
+     *
+     * @return true if the bit was not already set.
+     */
+    public boolean set(@Nonnegative int index) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + " out of range for size " + size);
+        int word = index / Long.SIZE;
+        long mask = 1L << index;
+        for (;;) {
+            long value = words.get(word);
+            if ((value & mask) != 0)
+                return false;
+            if (words.compareAndSet(word, value, value | mask))
+                break;
+        }
+        cardinality.incrementAndGet();
+        version.incrementAndGet();
+        return true;
+    }
+
+    @Nonnegative
+    public int cardinality() {
+        return cardinality.get();
+    }
+
+    /**
+     * Returns the bits set, as a BitSet shared with other callers.
+     *
+     * The caller must not modify the returned set.
+     */
+    @Nonnull
+    public BitSet getSnapshot() {
+        Snapshot snapshot = this.snapshot;
+        // Read the version before the words, so a concurrent change forces a rebuild next time.
+        int version = this.version.get();
+        if (snapshot.version == version)
+            return snapshot.bits;
+        long[] values = new long[words.length()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = words.get(i);
+        snapshot = new Snapshot(version, BitSet.valueOf(values));
+        this.snapshot = snapshot;
+        return snapshot.bits;
+    }
+
+    @Override
+    public String toString() {
+        return getSnapshot().toString();
+    }
+}
@@ -75,6 +75,8 @@ public class Client implements TorrentRegistry {
         STOPPED, STARTING, STARTED, STOPPING;
     }
     private final ClientEnvironment environment;
+    private final ConnectionManager connectionManager = new ConnectionManager(this);
+    private final PieceBufferManager pieceBufferManager = new PieceBufferManager();
     @GuardedBy("lock")
     private State state = State.STOPPED;
     private PeerServer peerServer;
@@ -113,6 +115,16 @@ public class Client implements TorrentRegistry {
         return getEnvironment().getLocalPeerName();
     }
 
+    @Nonnull
+    public ConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    @Nonnull
+    public PieceBufferManager getPieceBufferManager() {
+        return pieceBufferManager;
+    }
+
     @Nonnull
     public State getState() {
         synchronized (lock) {
@@ -248,6 +260,7 @@ public class Client implements TorrentRegistry {
             throw new IllegalArgumentException("Wrong Client in TorrentHandler.");
         synchronized (lock) {
             torrents.put(TorrentUtils.toHex(torrent.getInfoHash()), torrent);
+            torrent.getSwarmHandler().setReservingConnections(true);
             if (getState() == State.STARTED)
                 torrent.start();
         }
@@ -262,7 +275,8 @@ public class Client implements TorrentRegistry {
 
     public void removeTorrent(@Nonnull TorrentHandler torrent) throws IOException {
         synchronized (lock) {
-            torrents.remove(TorrentUtils.toHex(torrent.getInfoHash()), torrent);
+            if (torrents.remove(TorrentUtils.toHex(torrent.getInfoHash()), torrent))
+                torrent.getSwarmHandler().setReservingConnections(false);
             if (getState() == State.STARTED)
                 torrent.stop();
         }
@@ -37,6 +37,8 @@ import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.channel.socket.oio.OioServerSocketChannel;
 import io.netty.channel.socket.oio.OioSocketChannel;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timer;
 import io.netty.util.concurrent.DefaultThreadFactory;
 import java.net.SocketAddress;
 import java.util.Arrays;
@@ -115,6 +117,8 @@ public class ClientEnvironment implements PeerIdentityProvider {
         @Nonnull
         public abstract Class<? extends ServerSocketChannel> getServerChannelType();
     }
+    /** The resolution of the timing wheel which holds swarm and peer deadlines. */
+    public static final long TIMER_TICK_MS = 100;
     private final Random random = new Random();
     private final byte[] peerId;
     private SocketAddress peerListenAddress;
@@ -122,6 +126,7 @@ public class ClientEnvironment implements PeerIdentityProvider {
     private EventLoopType eventLoopType = EventLoopType.NIO;
     private ThreadPoolExecutor executorService;
     private EventLoopGroup eventService;
+    private HashedWheelTimer timer;
     private Instrumentation peerInstrumentation = new Instrumentation();
     private final Object lock = new Object();
 
@@ -188,6 +193,10 @@ public class ClientEnvironment implements PeerIdentityProvider {
                 ThreadFactory factory = new DefaultThreadFactory("bittorrent-event-" + getLocalPeerName(), true);
                 eventService = getEventLoopType().newEventLoopGroup(factory);
             }
+            {
+                ThreadFactory factory = new DefaultThreadFactory("bittorrent-timer-" + getLocalPeerName(), true);
+                timer = new HashedWheelTimer(factory, TIMER_TICK_MS, TimeUnit.MILLISECONDS);
+            }
         }
     }
 
@@ -203,6 +212,9 @@ public class ClientEnvironment implements PeerIdentityProvider {
      */
     public void stop() throws Exception {
         synchronized (lock) {
+            if (timer != null)
+                timer.stop();
+            timer = null;
             if (eventService != null)
                 eventService.shutdownGracefully(1, 4, TimeUnit.SECONDS);
             eventService = null;
@@ -226,6 +238,17 @@ public class ClientEnvironment implements PeerIdentityProvider {
         return eventService;
     }
 
+    /**
+     * Returns the timing wheel which holds the deadlines of swarms and peers.
+     *
+     * Tasks run on the timer's own thread, so should hand any real work
+     * to the {@link #getEventService() event service}.
+     */
+    @Nonnull
+    public Timer getTimer() {
+        return timer;
+    }
+
     @Nonnull
     public Instrumentation getInstrumentation() {
         return peerInstrumentation;
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * Shares a budget of peer connections between the torrents of a
+ * {@link Client}.
+ *
+ * <p>
+ * Every connected peer, inbound or outbound, holds a connection from the
+ * global budget, and every outbound connection still awaiting its TCP or
+ * peer handshake holds a half-open slot, which counts against the same
+ * budget.
+ * The number of half-open connections is capped separately, so that a large
+ * swarm cannot flood the event loop with connects.
+ * </p>
+ *
+ * <p>
+ * A torrent with fewer connected peers than its
+ * {@link TorrentHandler#getMinConnectedPeers() minimum} reserves the
+ * difference: other torrents may not use the last connections of the budget
+ * while it is short. Each torrent is also limited to its own
+ * {@link TorrentHandler#getMaxConnectedPeers() maximum}, which the
+ * {@link SwarmHandler} enforces.
+ * </p>
+ *
+ * @author shevek
+ */
+public class ConnectionManager {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 200;
+    public static final int DEFAULT_MAX_HALF_OPEN_CONNECTIONS = 16;
+    private final Client client;
+    private volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private volatile int maxHalfOpenConnections = DEFAULT_MAX_HALF_OPEN_CONNECTIONS;
+    private final AtomicInteger connections = new AtomicInteger(0);
+    private final AtomicInteger halfOpenConnections = new AtomicInteger(0);
+    /** The sum of {@link SwarmHandler#getReservedConnectionCount()} over every torrent. */
+    private final AtomicInteger reservedConnections = new AtomicInteger(0);
+
+    public ConnectionManager(@Nonnull Client client) {
+        this.client = client;
+    }
+
+    @Nonnegative
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(@Nonnegative int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    @Nonnegative
+    public int getMaxHalfOpenConnections() {
+        return maxHalfOpenConnections;
+    }
+
+    public void setMaxHalfOpenConnections(@Nonnegative int maxHalfOpenConnections) {
+        this.maxHalfOpenConnections = maxHalfOpenConnections;
+    }
+
+    /** Returns the number of connected peers, across all torrents. */
+    @Nonnegative
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    /** Returns the number of outbound connections not yet established. */
+    @Nonnegative
+    public int getHalfOpenConnectionCount() {
+        return halfOpenConnections.get();
+    }
+
+    /**
+     * Returns the number of connections reserved for torrents other than the
+     * given one, which have fewer connected peers than their minimum.
+     */
+    @Nonnegative
+    private int getReservedConnections(@Nonnull SwarmHandler swarmHandler) {
+        return Math.max(reservedConnections.get() - swarmHandler.getReservedConnectionCount(), 0);
+    }
+
+    /** Called by a {@link SwarmHandler} when the connections it reserves change. */
+    /* pp */ void addReservedConnections(int delta) {
+        reservedConnections.addAndGet(delta);
+    }
+
+    /** Returns the number of connections the given torrent may still open. */
+    @Nonnegative
+    private int getAvailableConnections(@Nonnull SwarmHandler swarmHandler) {
+        int available = getMaxConnections() - getReservedConnections(swarmHandler);
+        return Math.max(available - connections.get() - halfOpenConnections.get(), 0);
+    }
+
+    /**
+     * Claims a half-open slot for an outbound connection.
+     *
+     * If this returns true, the caller must call
+     * {@link #releaseHalfOpenConnection()} when the peer handshake
+     * completes, or the connect fails.
+     */
+    public boolean tryAcquireHalfOpenConnection(@Nonnull SwarmHandler swarmHandler) {
+        if (getAvailableConnections(swarmHandler) <= 0)
+            return false;
+        for (;;) {
+            int count = halfOpenConnections.get();
+            if (count >= getMaxHalfOpenConnections())
+                return false;
+            if (halfOpenConnections.compareAndSet(count, count + 1))
+                return true;
+        }
+    }
+
+    public void releaseHalfOpenConnection() {
+        halfOpenConnections.decrementAndGet();
+    }
+
+    /**
+     * Claims a connection for a newly connected peer.
+     *
+     * If this returns true, the caller must call
+     * {@link #releaseConnection()} when the peer disconnects.
+     */
+    public boolean tryAcquireConnection(@Nonnull SwarmHandler swarmHandler) {
+        // An outbound connection holds its half-open slot until it has
+        // acquired a connection, so don't count half-open connections here.
+        int max = getMaxConnections() - getReservedConnections(swarmHandler);
+        for (;;) {
+            int count = connections.get();
+            if (count >= max)
+                return false;
+            if (connections.compareAndSet(count, count + 1))
+                return true;
+        }
+    }
+
+    public void releaseConnection() {
+        connections.decrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionManager(connections=" + getConnectionCount() + "/" + getMaxConnections()
+                + ", halfOpen=" + getHalfOpenConnectionCount() + "/" + getMaxHalfOpenConnections() + ")";
+    }
+}
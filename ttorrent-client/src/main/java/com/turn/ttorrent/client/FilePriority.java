@@ -13,25 +13,20 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package com.turn.ttorrent.client.io;
-
-import com.google.common.annotations.VisibleForTesting;
-import io.netty.buffer.ByteBuf;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+package com.turn.ttorrent.client;
 
 /**
+ * The download priority of a file in a torrent.
  *
+ * @see TorrentHandler#TorrentHandler(Client, com.turn.ttorrent.protocol.torrent.Torrent, java.io.File, java.util.List)
  * @author shevek
  */
-public class PeerFrameDecoder extends LengthFieldBasedFrameDecoder {
-
-    public PeerFrameDecoder() {
-        super(1048576, 0, PeerMessage.MESSAGE_LENGTH_FIELD_SIZE, 0, 4);
-    }
+public enum FilePriority {
 
-    @VisibleForTesting
-    /* pp */ ByteBuf _decode(ChannelHandlerContext ctx, ByteBuf in) throws Exception {
-        return (ByteBuf) super.decode(ctx, in);
-    }
+    /** Not downloaded, unless it shares a piece with a file we want. */
+    SKIP,
+    /** Downloaded in the order chosen by the torrent's PiecePicker. */
+    NORMAL,
+    /** Downloaded before any file of normal priority. */
+    HIGH;
 }
@@ -8,6 +8,8 @@ import com.turn.ttorrent.client.peer.PieceHandler;
 import com.turn.ttorrent.client.peer.PeerHandler;
 import com.turn.ttorrent.client.peer.Instrumentation;
 import com.turn.ttorrent.protocol.PeerIdentityProvider;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.FileRegion;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.BitSet;
@@ -33,19 +35,54 @@ public interface PeerPieceProvider extends PeerIdentityProvider {
     @Nonnegative
     public int getBlockLength();
 
+    /**
+     * Returns the largest block we will request or serve, if the peer
+     * supports it. Peers which do not negotiate a block length use
+     * {@link #getBlockLength()}.
+     */
+    @Nonnegative
+    public int getMaxBlockLength();
+
+    /**
+     * Returns the pieces we have completed.
+     *
+     * The returned set may be shared, and must not be modified.
+     */
     @Nonnull
     public BitSet getCompletedPieces();
 
+    @Nonnegative
+    public int getCompletedPieceCount();
+
     public boolean isCompletedPiece(@Nonnegative int index);
 
     /** Zero-copy. */
     public void andNotCompletedPieces(@Nonnull BitSet out);
 
+    public boolean isSkippedPiece(@Nonnegative int index);
+
+    /** Clears every piece which we do not want to download. Zero-copy. */
+    public void andNotSkippedPieces(@Nonnull BitSet out);
+
     @CheckForNull
     public Iterable<PieceHandler.AnswerableRequestMessage> getNextPieceHandler(@Nonnull PeerHandler peer, @Nonnull BitSet interesting);
 
     public int addRequestTimeout(@Nonnull Iterable<? extends PieceHandler.AnswerableRequestMessage> requests);
 
+    /**
+     * Records that the given request has been sent to a peer.
+     *
+     * Every call must be matched by exactly one call to
+     * {@link #removeRequestSent(PieceHandler.AnswerableRequestMessage)}.
+     */
+    public void addRequestSent(@Nonnull PieceHandler.AnswerableRequestMessage request);
+
+    /**
+     * Records that the given request is no longer outstanding, because it
+     * was answered, rejected, cancelled or expired.
+     */
+    public void removeRequestSent(@Nonnull PieceHandler.AnswerableRequestMessage request);
+
     /**
      * Read a piece block from the underlying byte storage.
      *
@@ -66,6 +103,25 @@ public interface PeerPieceProvider extends PeerIdentityProvider {
      */
     public void readBlock(@Nonnull ByteBuffer block, @Nonnegative int piece, @Nonnegative int offset) throws IOException;
 
+    /**
+     * Returns a piece block as a region of the underlying file, so that it
+     * may be sent without copying it through memory.
+     *
+     * As {@link #readBlock(ByteBuffer, int, int)}, this only succeeds if the
+     * piece is complete. The caller must release the returned region.
+     *
+     * @return The region, or null if the block is not stored within a single
+     * file, in which case the caller must use {@link #readBlock(ByteBuffer, int, int)}.
+     */
+    @CheckForNull
+    public FileRegion getBlockRegion(@Nonnegative int piece, @Nonnegative int offset, @Nonnegative int length) throws IOException;
+
+    /**
+     * Takes back the buffer in which a {@link PieceHandler} assembled its
+     * piece, once the piece is written or abandoned.
+     */
+    public void releasePieceData(@Nonnull ByteBuf pieceData);
+
     /**
      * Consumes the block.
      */
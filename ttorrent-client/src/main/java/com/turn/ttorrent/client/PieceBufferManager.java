@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * Allocates the buffers in which the torrents of a {@link Client} assemble
+ * pieces, within a budget of bytes in flight.
+ *
+ * <p>
+ * Buffers come from the same pooled direct arena as our network buffers,
+ * and go back to it once their piece is written. When the budget is spent,
+ * a {@link SwarmHandler} starts no new pieces, but carries on with the
+ * pieces it has started, so memory held by partial pieces no longer grows
+ * with the number of peers.
+ * </p>
+ *
+ * @author shevek
+ */
+public class PieceBufferManager {
+
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = 256L * 1024 * 1024;
+    private final ByteBufAllocator allocator;
+    private volatile long maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+    private final AtomicLong bufferedBytes = new AtomicLong(0);
+
+    public PieceBufferManager() {
+        this(PooledByteBufAllocator.DEFAULT);
+    }
+
+    public PieceBufferManager(@Nonnull ByteBufAllocator allocator) {
+        this.allocator = allocator;
+    }
+
+    @Nonnegative
+    public long getMaxBufferedBytes() {
+        return maxBufferedBytes;
+    }
+
+    public void setMaxBufferedBytes(@Nonnegative long maxBufferedBytes) {
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /** Returns the number of bytes held by pieces in progress, across all torrents. */
+    @Nonnegative
+    public long getBufferedBytes() {
+        return bufferedBytes.get();
+    }
+
+    /**
+     * Allocates a buffer for a piece of the given length.
+     *
+     * A piece larger than the whole budget is allowed when nothing else is
+     * buffered, so that it can still be downloaded.
+     *
+     * @return the buffer, or null if the budget is spent. The caller must
+     * pass the buffer to {@link #release(ByteBuf)}.
+     */
+    @CheckForNull
+    public ByteBuf tryAllocate(@Nonnegative int length) {
+        for (;;) {
+            long count = bufferedBytes.get();
+            if (count > 0 && count + length > getMaxBufferedBytes())
+                return null;
+            if (bufferedBytes.compareAndSet(count, count + length))
+                break;
+        }
+        try {
+            return allocator.directBuffer(length, length);
+        } catch (RuntimeException e) {
+            bufferedBytes.addAndGet(-length);
+            throw e;
+        } catch (Error e) {
+            bufferedBytes.addAndGet(-length);
+            throw e;
+        }
+    }
+
+    /** Returns a buffer from {@link #tryAllocate(int)} to the pool. */
+    public void release(@Nonnull ByteBuf buffer) {
+        bufferedBytes.addAndGet(-buffer.capacity());
+        buffer.release();
+    }
+
+    @Override
+    public String toString() {
+        return "PieceBufferManager(buffered=" + getBufferedBytes() + "/" + getMaxBufferedBytes() + ")";
+    }
+}
@@ -15,24 +15,38 @@
  */
 package com.turn.ttorrent.client;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.collect.Maps;
-import com.turn.ttorrent.client.io.PeerMessage;
+import com.google.common.math.IntMath;
 import com.turn.ttorrent.client.io.PeerServer;
+import com.turn.ttorrent.client.peer.ChokingStrategy;
 import com.turn.ttorrent.client.peer.Instrumentation;
 import com.turn.ttorrent.client.peer.PeerActivityListener;
 import com.turn.ttorrent.client.peer.PeerConnectionListener;
 import com.turn.ttorrent.client.peer.PeerExistenceListener;
 import com.turn.ttorrent.client.peer.PeerHandler;
+import com.turn.ttorrent.client.peer.PieceAvailability;
+import com.turn.ttorrent.client.peer.PieceDeadlines;
 import com.turn.ttorrent.client.peer.PieceHandler;
+import com.turn.ttorrent.client.peer.PiecePicker;
 import com.turn.ttorrent.client.peer.Rate;
-import com.turn.ttorrent.client.peer.RateComparator;
+import com.turn.ttorrent.client.peer.RequestRegistry;
+import com.turn.ttorrent.client.peer.RetryQueue;
+import com.turn.ttorrent.client.peer.SuperSeeder;
 import com.turn.ttorrent.protocol.TorrentUtils;
 import com.turn.ttorrent.protocol.tracker.Peer;
 import com.turn.ttorrent.tracker.client.PeerAddressProvider;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.FileRegion;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
 import io.netty.util.internal.PlatformDependent;
 import java.io.IOException;
+import java.math.RoundingMode;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
@@ -42,16 +56,14 @@ import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnegative;
@@ -84,7 +96,7 @@ import org.slf4j.LoggerFactory;
  *
  * @author mpetazzoni
  */
-public class SwarmHandler implements Runnable,
+public class SwarmHandler implements
         PeerAddressProvider, PeerPieceProvider,
         PeerExistenceListener, PeerConnectionListener, PeerActivityListener {
 
@@ -97,15 +109,47 @@ public class SwarmHandler implements Runnable,
         private volatile byte[] remotePeerId;
         private volatile long keepAliveTime;
         private volatile long reconnectTime;
+        /** The number of failed connects since we last connected. */
+        private volatile int connectFailures;
+        /** The time we last connected, or 0 if never. */
+        private volatile long connectedTime;
+        /** The download rate of the last connection, in bytes per second. */
+        private volatile double downloadRate;
 
         public void setReconnectTime(@Nonnull Random r, long reconnectTime) {
             // 5000 estimates that we won't have more than 5 valid IPs for a given target.
             this.reconnectTime = reconnectTime + r.nextInt(5000);
         }
 
+        /**
+         * Returns the value of dialing this peer; higher is better.
+         *
+         * A peer we have connected to before is worth more than one we have
+         * not, more so if it sent us data, and every consecutive failure to
+         * connect halves the score.
+         */
+        public double getScore() {
+            double score = 1;
+            if (connectedTime > 0)
+                score += 1 + Math.log1p(downloadRate / 1024);
+            return Math.scalb(score, -Math.min(connectFailures, 30));
+        }
+
         @Override
         public String toString() {
-            return "RemotePeerId=" + TorrentUtils.toHexOrNull(remotePeerId) + ", reconnectTime=" + reconnectTime;
+            return "RemotePeerId=" + TorrentUtils.toHexOrNull(remotePeerId) + ", reconnectTime=" + reconnectTime
+                    + ", connectFailures=" + connectFailures + ", score=" + getScore();
+        }
+    }
+
+    /** Orders known peers by descending score. */
+    private static class PeerScoreComparator implements Comparator<Map.Entry<SocketAddress, PeerInformation>> {
+
+        public static final PeerScoreComparator INSTANCE = new PeerScoreComparator();
+
+        @Override
+        public int compare(Map.Entry<SocketAddress, PeerInformation> o1, Map.Entry<SocketAddress, PeerInformation> o2) {
+            return Double.compare(o2.getValue().getScore(), o1.getValue().getScore());
         }
     }
     /** Peers unchoking frequency, in seconds. Current BitTorrent specification
@@ -114,44 +158,161 @@ public class SwarmHandler implements Runnable,
     /** Optimistic unchokes are done every 2 loop iterations, i.e. every
      * 2*UNCHOKING_FREQUENCY seconds. */
     private static final long OPTIMISTIC_UNCHOKE_DELAY = TimeUnit.SECONDS.toMillis(32);
-    private static final int MAX_DOWNLOADERS_UNCHOKE = 4;
     private static final long RECONNECT_DELAY_TEMPORARY = TimeUnit.MINUTES.toMillis(1);
     private static final long RECONNECT_DELAY_PERMANENT = TimeUnit.MINUTES.toMillis(10);
-    /** End-game trigger ratio.
-     *
-     * <p>
-     * End-game behavior (requesting already requested pieces from available
-     * and ready peers to try to speed-up the end of the transfer) will only be
-     * enabled when the ratio of completed pieces over total pieces in the
-     * torrent is over this value.
-     * </p>
-     */
-    private static final float END_GAME_COMPLETION_RATIO = 0.95f;
+    /** The delay over which we coalesce events which may let us connect to more peers. */
+    private static final long CONNECT_DELAY = 200;
+    /** The delay before we retry connects which the {@link ConnectionManager} refused. */
+    private static final long CONNECT_RETRY_DELAY = TimeUnit.SECONDS.toMillis(5);
+    /** The least time for which a peer must be connected before a seed may drop it for wanting nothing. */
+    private static final long IDLE_PEER_DELAY = TimeUnit.SECONDS.toMillis(30);
+    /** The number of known peers above which we forget the least valuable ones. */
+    private static final int MAX_KNOWN_PEERS = 1000;
+    /** The maximum number of peers from which we request the same block in end-game. */
+    private static final int END_GAME_MAX_REQUESTS = 3;
+    /** The maximum number of timed-out or rejected requests to retry with a single peer at once. */
+    private static final int MAX_RETRY_REQUESTS = 21;
+    /** The time after which a piece in progress with no work may give up its buffer. */
+    private static final long PIECE_IDLE_TIME = TimeUnit.SECONDS.toMillis(60);
     private final TorrentHandler torrent;
     // Keys are InetSocketAddress or HexPeerId
     private final ConcurrentMap<SocketAddress, PeerInformation> knownPeers = PlatformDependent.newConcurrentHashMap();
     private final ConcurrentMap<String, PeerHandler> connectedPeers = PlatformDependent.newConcurrentHashMap();
+    /** Outbound connections awaiting their TCP or peer handshake. */
+    private final AtomicInteger halfOpenConnections = new AtomicInteger(0);
+    /** The channels of connected outbound connections which still hold a half-open slot. */
+    private final ConcurrentMap<Channel, Boolean> halfOpenChannels = PlatformDependent.newConcurrentHashMap();
+    /** Connections reserved from the {@link ConnectionManager}; see {@link #updateReservedConnections()}. */
+    private final AtomicInteger reservedConnections = new AtomicInteger(0);
+    private volatile boolean reserving = false;
     private final AtomicLong uploaded = new AtomicLong(0);
     private final AtomicLong downloaded = new AtomicLong(0);
-    private final AtomicIntegerArray availablePieces;
-    @GuardedBy("lock")
-    private final Set<PieceHandler.AnswerableRequestMessage> partialPieces = new HashSet<PieceHandler.AnswerableRequestMessage>();
-    // We only care about global rarest pieces for peer selection or opportunistic unchoking.
-    // private final BitSet rarestPieces;
-    // private int rarestPiecesAvailability = 0;
-    @GuardedBy("future")
-    private Future<?> future;
-    @GuardedBy("lock")
-    private long unchokeTime = 0;
+    private final PieceAvailability availablePieces;
+    private final RequestRegistry requestedPieces;
+    private final RetryQueue partialPieces;
+    private final PieceDeadlines pieceDeadlines;
+    private final SuperSeeder superSeeder;
+    /** The single active PieceHandler for each piece being downloaded. */
+    private final ConcurrentMap<Integer, PieceHandler> pieceHandlers = PlatformDependent.newConcurrentHashMap();
+    /**
+     * Whether every block we still need has been received or requested, as
+     * of the last time a peer ran out of pieces to request.
+     *
+     * <p>
+     * End-game behavior (requesting already requested blocks from available
+     * and ready peers to try to speed-up the end of the transfer) is enabled
+     * only in this state, and ends when requests are handed back for retry.
+     * </p>
+     */
+    private volatile boolean endGame = false;
+    /** Whether we have sent any end-game duplicate which may need cancelling. */
+    private volatile boolean duplicateRequestsSent = false;
+    /** Whether we are started, and may schedule tasks. */
+    private volatile boolean running = false;
+    private final SwarmTask connectTask = new SwarmTask() {
+        @Override
+        public void run() {
+            connectPeers();
+        }
+    };
+    private final SwarmTask unchokeTask = new SwarmTask() {
+        @Override
+        public void run() {
+            unchokePeers();
+        }
+    };
     @GuardedBy("lock")
     private long optimisticUnchokeTime = 0;
-    private long tickTime = 0;
     private final Object lock = new Object();
+    private final Object connectLock = new Object();
+
+    /**
+     * A deadline of this swarm, kept in the client's timing wheel.
+     *
+     * <p>
+     * When due, the task runs on the event service, not on the timer thread.
+     * Scheduling a task which is already scheduled keeps the earlier of the
+     * two deadlines, so that events which each want the task to run soon
+     * are coalesced into a single run.
+     * </p>
+     */
+    private abstract class SwarmTask implements TimerTask, Runnable {
+
+        @GuardedBy("this")
+        private Timeout timeout;
+        @GuardedBy("this")
+        private long deadline;
+
+        public void schedule(@Nonnegative long delay) {
+            long deadline = System.currentTimeMillis() + delay;
+            synchronized (this) {
+                if (!running)
+                    return;
+                if (timeout != null) {
+                    if (this.deadline <= deadline)
+                        return;
+                    timeout.cancel();
+                }
+                this.deadline = deadline;
+                this.timeout = getClient().getEnvironment().getTimer().newTimeout(this, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        public void cancel() {
+            synchronized (this) {
+                if (timeout != null)
+                    timeout.cancel();
+                timeout = null;
+            }
+        }
+
+        @Override
+        public void run(Timeout timeout) throws Exception {
+            synchronized (this) {
+                // Superseded by an earlier deadline.
+                if (this.timeout != timeout)
+                    return;
+                this.timeout = null;
+            }
+            if (running)
+                getClient().getEnvironment().getEventService().execute(this);
+        }
+    }
+
+    /** Ticks the rates of a connected peer, and expires its requests. */
+    private class PeerTask extends SwarmTask {
+
+        private final PeerHandler peer;
+
+        public PeerTask(@Nonnull PeerHandler peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        public void run() {
+            // Stops when the peer disconnects or is superseded.
+            if (connectedPeers.get(peer.getHexRemotePeerId()) != peer)
+                return;
+            try {
+                peer.run("swarm tick");
+            } catch (IOException e) {
+                LOG.error(getLocalPeerName() + ": Peer " + peer + " threw.", e);
+            }
+            peer.tick();
+            // In case the peer sent no bitfield, or its last reveal lapsed.
+            superSeeder.expire(peer, System.currentTimeMillis());
+            revealPiece(peer);
+            schedule(Rate.INTERVAL_MS);
+        }
+    }
 
     SwarmHandler(@Nonnull TorrentHandler torrent) {
         this.torrent = torrent;
-        this.availablePieces = new AtomicIntegerArray(torrent.getPieceCount());
-        // this.rarestPieces = new BitSet(torrent.getPieceCount());
+        this.availablePieces = new PieceAvailability(torrent.getPieceCount());
+        this.requestedPieces = new RequestRegistry(torrent.getPieceCount());
+        this.partialPieces = new RetryQueue(torrent.getPieceCount());
+        this.pieceDeadlines = new PieceDeadlines(torrent.getPieceCount());
+        this.superSeeder = new SuperSeeder(torrent.getPieceCount());
     }
 
     @Nonnull
@@ -246,7 +407,34 @@ public class SwarmHandler implements Runnable,
             }
             addPeer(remoteAddress, e.getValue(), now);
         }
-        // run();   // If you want very low latency, call run() manually after calling this.
+        if (knownPeers.size() > MAX_KNOWN_PEERS)
+            evictPeers(MAX_KNOWN_PEERS - MAX_KNOWN_PEERS / 8);
+        connectTask.schedule(CONNECT_DELAY);
+    }
+
+    /**
+     * Forgets the lowest-scored known peers to which we are not connected,
+     * until at most the given number remain.
+     */
+    private void evictPeers(@Nonnegative int size) {
+        List<Map.Entry<SocketAddress, PeerInformation>> candidates = new ArrayList<Map.Entry<SocketAddress, PeerInformation>>();
+        for (Map.Entry<SocketAddress, PeerInformation> e : knownPeers.entrySet()) {
+            byte[] remotePeerId = e.getValue().remotePeerId;
+            if (remotePeerId != null && connectedPeers.containsKey(TorrentUtils.toHex(remotePeerId)))
+                continue;
+            candidates.add(e);
+        }
+        Collections.sort(candidates, PeerScoreComparator.INSTANCE);
+        int count = 0;
+        for (int i = candidates.size() - 1; i >= 0 && knownPeers.size() > size; i--) {
+            Map.Entry<SocketAddress, PeerInformation> e = candidates.get(i);
+            if (knownPeers.remove(e.getKey(), e.getValue()))
+                count++;
+        }
+        if (LOG.isDebugEnabled())
+            LOG.debug("{}: Evicted {} known peers, {} remain.", new Object[]{
+                getLocalPeerName(), count, knownPeers.size()
+            });
     }
 
     @Nonnull
@@ -259,6 +447,40 @@ public class SwarmHandler implements Runnable,
         return connectedPeers.size();
     }
 
+    /** Returns the number of outbound connections awaiting their TCP or peer handshake. */
+    @Nonnegative
+    public int getHalfOpenConnectionCount() {
+        return halfOpenConnections.get();
+    }
+
+    /** Returns the number of connections this torrent reserves from the {@link ConnectionManager}. */
+    @Nonnegative
+    /* pp */ int getReservedConnectionCount() {
+        return reservedConnections.get();
+    }
+
+    /** Called by the {@link Client} as this torrent is added and removed. */
+    /* pp */ void setReservingConnections(boolean reserving) {
+        this.reserving = reserving;
+        updateReservedConnections();
+    }
+
+    /**
+     * Recomputes the connections this torrent is short of its minimum, and
+     * passes the difference to the {@link ConnectionManager}.
+     *
+     * This must be called whenever the connected or half-open peer count or
+     * the minimum changes.
+     */
+    /* pp */ void updateReservedConnections() {
+        int reserved = 0;
+        if (reserving)
+            reserved = Math.max(torrent.getMinConnectedPeers() - getConnectedPeerCount() - getHalfOpenConnectionCount(), 0);
+        int prev = reservedConnections.getAndSet(reserved);
+        if (reserved != prev)
+            getClient().getConnectionManager().addReservedConnections(reserved - prev);
+    }
+
     /**
      * Get the number of bytes uploaded for this torrent.
      */
@@ -282,28 +504,31 @@ public class SwarmHandler implements Runnable,
 
     @Nonnegative
     public int getAvailablePieceCount() {
-        int count = 0;
-        for (int i = 0; i < torrent.getPieceCount(); i++) {
-            if (this.availablePieces.get(i) > 0)
-                count++;
-        }
-        return count;
+        return availablePieces.getAvailablePieceCount();
     }
 
     public int setAvailablePiece(@Nonnegative int piece, boolean available) {
-        if (available) {
-            return availablePieces.incrementAndGet(piece);
-        } else {
-            // Implement an unsigned CAS.
-            for (;;) {
-                int current = availablePieces.get(piece);
-                if (current <= 0)
-                    return 0;
-                int next = current - 1;
-                if (availablePieces.compareAndSet(piece, current, next))
-                    return next;
-            }
-        }
+        if (available)
+            return availablePieces.increment(piece);
+        else
+            return availablePieces.decrement(piece);
+    }
+
+    /**
+     * Asks for the given piece to be downloaded before any piece chosen by
+     * the {@link PiecePicker}.
+     *
+     * @param deadline The time in milliseconds by which the piece is wanted.
+     * Pieces with earlier deadlines are requested first, whether they are
+     * waiting for retry, in progress, or not yet started.
+     */
+    public void setPieceDeadline(@Nonnegative int piece, long deadline) {
+        if (isCompletedPiece(piece))
+            return;
+        pieceDeadlines.setDeadline(piece, deadline);
+        // We may have raced with completion.
+        if (isCompletedPiece(piece))
+            pieceDeadlines.remove(piece);
     }
 
     /**
@@ -311,33 +536,20 @@ public class SwarmHandler implements Runnable,
      */
     @Nonnull
     public BitSet getRequestedPieces() {
-        BitSet requestedPieces = new BitSet(torrent.getPieceCount());
-        for (PeerHandler peerHandler : connectedPeers.values()) {
-            for (PieceHandler.AnswerableRequestMessage request : peerHandler.getRequestsSent()) {
-                requestedPieces.set(request.getPiece());
-            }
-        }
-        return requestedPieces;
+        return requestedPieces.getRequestedPieces();
     }
 
     @Nonnegative
     public int getRequestedPieceCount() {
-        return getRequestedPieces().cardinality();
+        return requestedPieces.getRequestedPieceCount();
+    }
+
+    public boolean isRequestedPiece(@Nonnegative int index) {
+        return requestedPieces.isRequested(index);
     }
 
-    /*
-     public boolean isRequestedPiece(int index) {
-     synchronized (lock) {
-     return requestedPieces.get(index);
-     }
-     }
-     */
     private void andNotRequestedPieces(@Nonnull BitSet b) {
-        for (PeerHandler peerHandler : connectedPeers.values()) {
-            for (PieceHandler.AnswerableRequestMessage request : peerHandler.getRequestsSent()) {
-                b.clear(request.getPiece());
-            }
-        }
+        requestedPieces.andNotRequested(b);
     }
 
     /**
@@ -349,71 +561,108 @@ public class SwarmHandler implements Runnable,
      * </p>
      *
      * @param peer The peer to connect to.
+     * @return false if the {@link ConnectionManager} had no half-open slot.
      */
-    public void connect(SocketAddress address) {
+    public boolean connect(SocketAddress address) {
+        final ConnectionManager connectionManager = getClient().getConnectionManager();
+        if (!connectionManager.tryAcquireHalfOpenConnection(this))
+            return false;
         if (LOG.isDebugEnabled())
             LOG.debug("{}: Attempting to connect to {} for {}", new Object[]{
                 getLocalPeerName(),
                 address, torrent
             });
-        getClient().getPeerClient().connect(this, torrent.getInfoHash(), address);
+        halfOpenConnections.incrementAndGet();
+        updateReservedConnections();
+        ChannelFuture future;
+        try {
+            future = getClient().getPeerClient().connect(this, torrent.getInfoHash(), address);
+        } catch (RuntimeException e) {
+            halfOpenConnections.decrementAndGet();
+            connectionManager.releaseHalfOpenConnection();
+            updateReservedConnections();
+            throw e;
+        }
+        // The slot is held until the peer handshake succeeds, when
+        // handlePeerConnectionReady() has a connection for it, or fails.
+        halfOpenChannels.put(future.channel(), Boolean.TRUE);
+        future.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess())
+                    releaseHalfOpenConnection(future.channel());
+            }
+        });
+        future.channel().closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                releaseHalfOpenConnection(future.channel());
+            }
+        });
+        return true;
+    }
+
+    /** Gives back the half-open slot of an outbound connection, if it still holds one. */
+    private void releaseHalfOpenConnection(@Nonnull Channel channel) {
+        if (halfOpenChannels.remove(channel) == null)
+            return;
+        halfOpenConnections.decrementAndGet();
+        getClient().getConnectionManager().releaseHalfOpenConnection();
+        updateReservedConnections();
+        // We may now dial another peer.
+        connectTask.schedule(CONNECT_DELAY);
     }
 
     public void start() {
-        synchronized (lock) {
-            long ms = Rate.INTERVAL_MS;
-            ms = Math.min(ms, UNCHOKE_DELAY);
-            ms = Math.min(ms, OPTIMISTIC_UNCHOKE_DELAY);
-            ms = Math.min(ms, RECONNECT_DELAY_TEMPORARY);
-            future = getClient().getEnvironment().getEventService().scheduleWithFixedDelay(this, 0, ms, TimeUnit.MILLISECONDS);
+        endGame = false;
+        duplicateRequestsSent = false;
+        // Completed and skipped pieces never need to be found by a rarest-piece search.
+        if (torrent.isInitialized()) {
+            BitSet completedPieces = torrent.getCompletedPiecesSnapshot();
+            for (int i = completedPieces.nextSetBit(0); i >= 0;
+                    i = completedPieces.nextSetBit(i + 1))
+                availablePieces.remove(i);
         }
+        for (int i = 0; i < torrent.getPieceCount(); i++)
+            if (torrent.isSkippedPiece(i))
+                availablePieces.remove(i);
+        running = true;
+        connectTask.schedule(0);
     }
 
     public void stop() {
-        synchronized (lock) {
-            if (future != null) {
-                future.cancel(true);
-                future = null;
-            }
-        }
+        running = false;
+        connectTask.cancel();
+        unchokeTask.cancel();
+        // Give back the buffers of pieces in progress; we start them afresh.
+        for (PieceHandler pieceHandler : pieceHandlers.values())
+            pieceHandler.release();
+        pieceHandlers.clear();
     }
 
-    // TODO: Periodic / step function.
-    @Override
-    public void run() {
-        // Stopwatch stopwatch = Stopwatch.createStarted();
+    /**
+     * Dials the best known peers which are due for a connect.
+     *
+     * Then schedules itself for the next peer which will be due, if any.
+     * A seed dials nobody: we leave the responsibility of connecting to
+     * the peers which need to download something.
+     */
+    private void connectPeers() {
         if (LOG.isTraceEnabled())
-            LOG.trace("{}: Run: peers={}, connected={}, completed={}/{}",
+            LOG.trace("{}: Connect: peers={}, connected={}, completed={}/{}",
                     new Object[]{
                 getLocalPeerName(),
                 knownPeers.keySet(), getConnectedPeers(),
                 torrent.getCompletedPieceCount(), torrent.getPieceCount()
             });
-        boolean unchoke = false;
-        boolean optimisticUnchoke = false;
-        boolean tick = false;
-        long now = System.currentTimeMillis();
-        synchronized (lock) {
-            if (unchokeTime + UNCHOKE_DELAY < now) {
-                unchokeTime = now;
-                unchoke = true;
-            }
-            if (optimisticUnchokeTime + OPTIMISTIC_UNCHOKE_DELAY < now) {
-                optimisticUnchokeTime = now;
-                optimisticUnchoke = true;
-            }
-            if (tickTime + Rate.INTERVAL_MS < now) {
-                tickTime = now;
-                tick = true;
-            }
-        }
-
-        if (!torrent.isComplete()) {
-            // Attempt to connect to the peer if and only if:
-            //   - We're not already connected or connecting to it;
-            //   - We're not a seeder (we leave the responsibility
-            //	   of connecting to peers that need to download
-            //     something).
+        if (torrent.isComplete())
+            return;
+        synchronized (connectLock) {
+            long now = System.currentTimeMillis();
+            long reconnectTime = Long.MAX_VALUE;
+            // Attempt to connect to the peer if and only if we're not already
+            // connected or connecting to it.
+            List<Map.Entry<SocketAddress, PeerInformation>> candidates = new ArrayList<Map.Entry<SocketAddress, PeerInformation>>();
             for (Map.Entry<SocketAddress, PeerInformation> e : knownPeers.entrySet()) {
                 PeerInformation peerInformation = e.getValue();
                 if (LOG.isTraceEnabled())
@@ -421,8 +670,6 @@ public class SwarmHandler implements Runnable,
                         getLocalPeerName(), now,
                         e.getKey(), peerInformation
                     });
-                if (peerInformation.reconnectTime > now)
-                    continue;
                 byte[] remotePeerId = peerInformation.remotePeerId;
                 if (remotePeerId != null) {
                     if (connectedPeers.containsKey(TorrentUtils.toHex(remotePeerId)))
@@ -430,47 +677,69 @@ public class SwarmHandler implements Runnable,
                     if (Arrays.equals(remotePeerId, getLocalPeerId()))
                         continue;
                 }
-                peerInformation.setReconnectTime(getRandom(), now + RECONNECT_DELAY_TEMPORARY);
-                connect(e.getKey());
+                if (peerInformation.reconnectTime > now) {
+                    reconnectTime = Math.min(reconnectTime, peerInformation.reconnectTime);
+                    continue;
+                }
+                candidates.add(e);
             }
-        }
-
-        if (unchoke)
-            unchokePeers(optimisticUnchoke);
 
-        for (PeerHandler peer : getConnectedPeers()) {
-            try {
-                // This is the call which is likely to cause the most trouble.
-                peer.run("swarm tick");
-            } catch (IOException e) {
-                LOG.error(getLocalPeerName() + ": Peer " + peer + " threw.", e);
+            // Then dial the best candidates while we have slots to do so.
+            int connectSlots = torrent.getMaxConnectedPeers() - getConnectedPeerCount() - getHalfOpenConnectionCount();
+            if (connectSlots <= 0) {
+                // Another connect will finish or fail, and schedule us.
+                return;
+            }
+            // Shuffle so that peers of equal score are dialed in random order.
+            Collections.shuffle(candidates, getRandom());
+            Collections.sort(candidates, PeerScoreComparator.INSTANCE);
+            for (Map.Entry<SocketAddress, PeerInformation> e : candidates) {
+                if (connectSlots-- <= 0)
+                    return;
+                if (!connect(e.getKey())) {
+                    // The budget is shared with other torrents, which don't tell us when they release it.
+                    if (getHalfOpenConnectionCount() == 0)
+                        connectTask.schedule(CONNECT_RETRY_DELAY);
+                    return;
+                }
+                e.getValue().setReconnectTime(getRandom(), now + RECONNECT_DELAY_TEMPORARY);
             }
-            if (tick)
-                peer.tick();
+
+            if (reconnectTime != Long.MAX_VALUE)
+                connectTask.schedule(Math.max(reconnectTime - now, 0));
         }
-        // LOG.debug("{}: Swarm tick took {}", getLocalPeerName(), stopwatch);
     }
 
     /**
-     * Retrieve a peer comparator.
+     * Runs a round of the {@link ChokingStrategy}.
      *
-     * <p>
-     * Returns a peer comparator based on either the download rate or the
-     * upload rate of each peer depending on our state. While sharing, we rely
-     * on the download rate we get from each peer. When our download is
-     * complete and we're only seeding, we use the upload rate instead.
-     * </p>
-     *
-     * @return A SharingPeer comparator that can be used to sort peers based on
-     * the download or upload rate we get from them.
+     * Then schedules itself for the next round, while we have any connected
+     * peer.
      */
-    @Nonnull
-    private Comparator<PeerHandler> getPeerRateComparator() {
+    private void unchokePeers() {
+        if (connectedPeers.isEmpty())
+            return;
+        boolean optimisticUnchoke = false;
+        long now = System.currentTimeMillis();
+        synchronized (lock) {
+            if (optimisticUnchokeTime + OPTIMISTIC_UNCHOKE_DELAY < now) {
+                optimisticUnchokeTime = now;
+                optimisticUnchoke = true;
+            }
+        }
+        unchokePeers(optimisticUnchoke);
+        unchokeTask.schedule(UNCHOKE_DELAY);
+    }
+
+    /**
+     * Returns true if we are only seeding, false if we are also downloading.
+     */
+    private boolean isSeeding() {
         switch (torrent.getState()) {
             case SHARING:
-                return new RateComparator.DLRateComparator();
+                return false;
             case SEEDING:
-                return new RateComparator.ULRateComparator();
+                return true;
             default:
                 throw new IllegalStateException("Client is neither sharing nor "
                         + "seeding, we shouldn't be comparing peers at this point.");
@@ -487,23 +756,10 @@ public class SwarmHandler implements Runnable,
      * </p>
      *
      * <p>
-     * Reciprocation (tit-for-tat) and upload capping is implemented here by
-     * carefully choosing which peers we unchoke, and which peers we choke.
-     * </p>
-     *
-     * <p>
-     * The four peers with the best download rate and are interested in us get
-     * unchoked. This maximizes our download rate as we'll be able to get data
-     * from the four "best" peers quickly, while allowing these peers to
-     * download from us and thus reciprocate their generosity.
-     * </p>
-     *
-     * <p>
-     * Peers that have a better download rate than these four downloaders but
-     * are not interested get unchoked too, we want to be able to download from
-     * them to get more data more quickly. If one becomes interested, it takes
-     * a downloader's place as one of the four top downloaders (i.e. we choke
-     * the downloader with the worst upload rate).
+     * Peers which are not interested in us are choked. The torrent's
+     * {@link ChokingStrategy} chooses which of the interested peers to
+     * unchoke; by default, this is reciprocation (tit-for-tat) with the four
+     * best peers plus one optimistic unchoke.
      * </p>
      *
      * @param optimistic Whether to perform an optimistic unchoke as well.
@@ -522,66 +778,14 @@ public class SwarmHandler implements Runnable,
 
         if (LOG.isTraceEnabled())
             LOG.trace("{}: Running unchokePeers() on {} connected peers.", getLocalPeerName(), candidates.size());
-        // Collections.shuffle(candidates);    // Make the sort unstable, so if we have no downloaders, we select at random.
-        Collections.sort(candidates, getPeerRateComparator());
-        // LOG.info("{}: Candidates are {}", getLocalPeerName(), candidates);
-
-        int downloaders = 0;
-        // We're interested in the top downloaders first, so use a descending set.
-        int i = 0;
-        for (/* */; i < candidates.size(); i++) {
-            if (++downloaders > MAX_DOWNLOADERS_UNCHOKE)
-                break;
-            PeerHandler peer = candidates.get(i);
-            peer.unchoke();
-        }
-
-        // Actually choke all chosen peers (if any), except the eventual
-        // optimistic unchoke.
-        int nchoked = candidates.size() - i;
-        if (nchoked > 0) {
-            int unchoke;
-            if (optimistic) {
-                unchoke = i + getRandom().nextInt(nchoked);
-                if (LOG.isTraceEnabled()) {
-                    PeerHandler peer = candidates.get(unchoke);
-                    LOG.trace("Optimistic unchoke of {}.", peer);
-                }
-            } else {
-                unchoke = -1;
-            }
-            for (/* */; i < candidates.size(); i++) {
-                if (i == unchoke)
-                    candidates.get(i).unchoke();
-                else
-                    candidates.get(i).choke();
-            }
-        }
-    }
-
-    /**
-     * Computes the set of rarest pieces from the interesting set.
-     */
-    private int computeRarestPieces(@Nonnull BitSet rarest, @Nonnull BitSet interesting) {
-        rarest.clear();
-        int rarestAvailability = Integer.MAX_VALUE;
-        for (int i = interesting.nextSetBit(0); i >= 0;
-                i = interesting.nextSetBit(i + 1)) {
-            int availability = availablePieces.get(i);
-            // This looks weird, but: The bit wouldn't be set in interesting if availability was 0.
-            // So we got a miscount somewhere (entirely possible) and we patch up here.
-            if (availability == 0)
-                availability = 1;
-            // Now, !interesting.isEmpty() -> !rarest.isEmpty()
-            if (availability > rarestAvailability)
-                continue;
-            if (availability < rarestAvailability) {
-                rarestAvailability = availability;
-                rarest.clear();
-            }
-            rarest.set(i);
+        ChokingStrategy strategy = torrent.getChokingStrategy();
+        Set<PeerHandler> unchoked = strategy.getUnchokedPeers(candidates, isSeeding(), optimistic, getRandom());
+        for (PeerHandler peer : candidates) {
+            if (unchoked.contains(peer))
+                peer.unchoke();
+            else
+                peer.choke();
         }
-        return rarestAvailability;
     }
 
     @Override
@@ -599,9 +803,19 @@ public class SwarmHandler implements Runnable,
         return torrent.getBlockLength();
     }
 
+    @Override
+    public int getMaxBlockLength() {
+        return torrent.getMaxBlockLength();
+    }
+
     @Override
     public BitSet getCompletedPieces() {
-        return torrent.getCompletedPieces();
+        return torrent.getCompletedPiecesSnapshot();
+    }
+
+    @Override
+    public int getCompletedPieceCount() {
+        return torrent.getCompletedPieceCount();
     }
 
     @Override
@@ -614,6 +828,16 @@ public class SwarmHandler implements Runnable,
         torrent.andNotCompletedPieces(out);
     }
 
+    @Override
+    public boolean isSkippedPiece(int index) {
+        return torrent.isSkippedPiece(index);
+    }
+
+    @Override
+    public void andNotSkippedPieces(BitSet out) {
+        torrent.andNotSkippedPieces(out);
+    }
+
     @Override
     public Iterable<PieceHandler.AnswerableRequestMessage> getNextPieceHandler(
             @Nonnull PeerHandler peer,
@@ -621,129 +845,321 @@ public class SwarmHandler implements Runnable,
         int peerAvailable = peer.getAvailablePieceCount();
         // LOG.debug("Peer interesting is {}", peerInteresting);
 
-        // TODO: We hold this lock for a LONG time. :-(
-        // I'm fairly sure our lock acquisition order is peer then torrent.
-        // We can't drop the lock earlier, else two peers will get the
-        // same DownloadingPiece, and we don't reference those.
-        synchronized (lock) {
-            PARTIAL:
-            {
-                List<PieceHandler.AnswerableRequestMessage> piece = new ArrayList<PieceHandler.AnswerableRequestMessage>();
-                Iterator<PieceHandler.AnswerableRequestMessage> it = partialPieces.iterator();
-                while (it.hasNext()) {
-                    if (piece.size() > 20)
-                        break;
-                    PieceHandler.AnswerableRequestMessage request = it.next();
-                    if (peerInteresting.get(request.getPiece())) {
-                        // An endgame might have requested it elsewhere.
-                        if (!isCompletedPiece(request.getPiece())) {
-                            if (LOG.isDebugEnabled())
-                                LOG.debug("{}: Peer {} retrying request {}", new Object[]{
-                                    getLocalPeerName(),
-                                    peer, request
-                                });
-                            piece.add(request);
-                        }
-
-                        it.remove();
-                    }
-                }
-                // LOG.info("Looking for partials generated " + piece);
+        // There is no global lock here: pieces are claimed by putIfAbsent on
+        // pieceHandlers, blocks under the lock of their own PieceHandler, and
+        // retried requests by removal from the partialPieces queue.
+
+        // A snubbed peer probes with a fresh piece, so that the blocks it
+        // gave up, and others in progress, go to peers which are sending.
+        boolean fresh = peer.isSnubbed();
+
+        // Pieces which an application is waiting to read come first, whether
+        // they are waiting for retry, in progress, or not yet started.
+        DEADLINE:
+        {
+            if (fresh || pieceDeadlines.isEmpty())
+                break DEADLINE;
+            BitSet urgent = (BitSet) peerInteresting.clone();
+            for (;;) {
+                int index = pieceDeadlines.getUrgentPiece(urgent);
+                if (index < 0)
+                    break DEADLINE;
+                urgent.clear(index);
+                if (isCompletedPiece(index))
+                    continue;
+                BitSet retry = new BitSet();
+                retry.set(index);
+                List<PieceHandler.AnswerableRequestMessage> piece = pollRetries(peer, retry);
                 if (!piece.isEmpty())
                     return piece;
+                PieceHandler pieceHandler = pieceHandlers.get(index);
+                if (pieceHandler == null)
+                    pieceHandler = getPieceHandler(index);
+                if (pieceHandler != null && pieceHandler.hasUnrequestedBlocks())
+                    return pieceHandler.getRequests(peer.getRequestLength());
             }
+        }
 
-            // TODO: Should this be before or after PARTIAL?
-            BitSet interesting = (BitSet) peerInteresting.clone();
-            this.andNotRequestedPieces(interesting);
-
-            // If we didn't find interesting pieces, we need to check if we're in
-            // an end-game situation. If yes, we request an already requested piece
-            // to try to speed up the end.
-            if (interesting.isEmpty()) {
-                if (torrent.getCompletedPieceCount() < END_GAME_COMPLETION_RATIO * torrent.getPieceCount()) {
-                    if (LOG.isTraceEnabled())
-                        LOG.trace("{}: Not far along enough to warrant end-game mode.", getLocalPeerName());
-                    return null;
-                }
+        PARTIAL:
+        {
+            if (fresh)
+                break PARTIAL;
+            List<PieceHandler.AnswerableRequestMessage> piece = pollRetries(peer, peerInteresting);
+            // LOG.info("Looking for partials generated " + piece);
+            if (!piece.isEmpty())
+                return piece;
+        }
 
-                interesting = (BitSet) peerInteresting.clone();
-                torrent.andNotCompletedPieces(interesting);
-                if (LOG.isTraceEnabled())
-                    LOG.trace("{}: Possible end-game, we're about to request a piece "
-                            + "that was already requested from another peer.",
-                            getLocalPeerName());
+        // Help out with a piece which is already being downloaded.
+        INPROGRESS:
+        {
+            if (fresh)
+                break INPROGRESS;
+            for (PieceHandler pieceHandler : pieceHandlers.values()) {
+                int index = pieceHandler.getIndex();
+                if (!peerInteresting.get(index))
+                    continue;
+                if (isCompletedPiece(index))
+                    continue;
+                if (pieceHandler.hasUnrequestedBlocks())
+                    return pieceHandler.getRequests(peer.getRequestLength());
             }
+        }
 
-            if (interesting.isEmpty()) {
+        // TODO: Should this be before or after PARTIAL?
+        BitSet interesting = (BitSet) peerInteresting.clone();
+        this.andNotRequestedPieces(interesting);
+        // Pieces in progress have been handed out above, or are kept from a
+        // snubbed peer.
+        for (Integer index : pieceHandlers.keySet())
+            interesting.clear(index);
+
+        // If we didn't find interesting pieces, we need to check if we're in
+        // an end-game situation. If yes, we request an already requested block
+        // to try to speed up the end.
+        if (interesting.isEmpty()) {
+            long unrequestedBlocks = getUnrequestedBlockCount();
+            boolean endGame = unrequestedBlocks == 0;
+            if (this.endGame != endGame) {
+                this.endGame = endGame;
+                if (LOG.isDebugEnabled())
+                    LOG.debug("{}: {} end-game with {} requests in flight.", new Object[]{
+                        getLocalPeerName(),
+                        endGame ? "Entering" : "Leaving",
+                        requestedPieces.getRequestCount()
+                    });
+            }
+            if (!endGame) {
                 if (LOG.isTraceEnabled())
-                    LOG.trace("{}: No interesting piece from {}!", getLocalPeerName(), peer);
+                    LOG.trace("{}: {} blocks not yet requested; not in end-game.", getLocalPeerName(), unrequestedBlocks);
                 return null;
             }
+            return getEndGameRequests(peer, peerInteresting);
+        }
 
-            BitSet rarestPieces = new BitSet(interesting.length());
-            computeRarestPieces(rarestPieces, interesting);
-            // Since interesting is nonempty, rarestPieces should be nonempty.
-            // We can violate that if we have a miscount of 0 in availablePieces.
-            // Pick a random piece from the rarest pieces from this peer.
-            int rarestIndex = getRandom().nextInt(rarestPieces.cardinality());
-            SEARCH:
-            {
-                // This loop will NEVER terminate "normally" because rarestIndex < rarestPieces.cardinality();
-                for (int i = rarestPieces.nextSetBit(0); i >= 0;
-                        i = rarestPieces.nextSetBit(i + 1)) {
-                    if (rarestIndex-- == 0) {
-                        rarestIndex = i;
-                        break SEARCH;
-                    }
-                }
-                // NOTREACHED
-                LOG.error("{}: No rare piece from {}!", getLocalPeerName(), peer);
-                return null;
-            }
+        if (interesting.isEmpty()) {
+            if (LOG.isTraceEnabled())
+                LOG.trace("{}: No interesting piece from {}!", getLocalPeerName(), peer);
+            return null;
+        }
+
+        PiecePicker piecePicker = torrent.getPiecePicker();
+        // Pieces of high priority files come first.
+        torrent.andHighPriorityPieces(interesting);
+        int nextIndex = piecePicker.getNextPiece(this, availablePieces, peer, interesting, getRandom());
+        if (nextIndex < 0) {
+            // Since interesting is nonempty, and completed pieces are
+            // never in interesting, this should not happen.
+            LOG.error("{}: No piece from {} picked by {}!", new Object[]{
+                getLocalPeerName(),
+                peer, piecePicker
+            });
+            return null;
+        }
 
+        if (LOG.isTraceEnabled())
+            LOG.trace("{}: Peer {} has {}/{}/{} interesting piece(s); {} requesting {}, requests {}", new Object[]{
+                getLocalPeerName(),
+                peer,
+                interesting.cardinality(), peerAvailable, torrent.getPieceCount(),
+                piecePicker, nextIndex,
+                getRequestedPieces()
+            });
+
+        PieceHandler pieceHandler = getPieceHandler(nextIndex);
+        if (pieceHandler == null) {
             if (LOG.isTraceEnabled())
-                LOG.trace("{}: Peer {} has {}/{}/{} interesting piece(s); requesting {}, requests {}", new Object[]{
+                LOG.trace("{}: Not starting piece {}: completed, or no room in {}", new Object[]{
                     getLocalPeerName(),
-                    peer,
-                    interesting.cardinality(), peerAvailable, torrent.getPieceCount(),
-                    rarestIndex,
-                    getRequestedPieces()
+                    nextIndex, getClient().getPieceBufferManager()
                 });
+            return null;
+        }
+        return pieceHandler.getRequests(peer.getRequestLength());
+    }
+
+    /**
+     * Removes and returns retried requests for pieces in the given set,
+     * releasing any which are no longer needed.
+     */
+    @Nonnull
+    private List<PieceHandler.AnswerableRequestMessage> pollRetries(@Nonnull PeerHandler peer, @Nonnull BitSet interesting) {
+        if (partialPieces.isEmpty())
+            return Collections.emptyList();
+        List<PieceHandler.AnswerableRequestMessage> piece = partialPieces.poll(interesting, availablePieces, getRandom(), MAX_RETRY_REQUESTS);
+        for (Iterator<PieceHandler.AnswerableRequestMessage> it = piece.iterator(); it.hasNext(); /**/) {
+            PieceHandler.AnswerableRequestMessage request = it.next();
+            // An endgame might have requested it elsewhere.
+            // A released piece has been started afresh.
+            if (isCompletedPiece(request.getPiece()) || request.getPieceHandler().isReleased()) {
+                request.cancel();
+                it.remove();
+                continue;
+            }
+            if (LOG.isDebugEnabled())
+                LOG.debug("{}: Peer {} retrying request {}", new Object[]{
+                    getLocalPeerName(),
+                    peer, request
+                });
+        }
+        return piece;
+    }
+
+    /**
+     * Returns requests for blocks which are already requested from other
+     * peers, or null.
+     *
+     * Each block is requested from at most {@link #END_GAME_MAX_REQUESTS}
+     * peers, and the first copy to arrive cancels the others.
+     *
+     * @see #handleBlockReceived(PeerHandler, int, int, int)
+     */
+    @CheckForNull
+    private Iterable<PieceHandler.AnswerableRequestMessage> getEndGameRequests(
+            @Nonnull PeerHandler peer,
+            @Nonnull BitSet peerInteresting) {
+        BitSet interesting = (BitSet) peerInteresting.clone();
+        torrent.andNotCompletedPieces(interesting);
+        for (;;) {
+            int index = availablePieces.getRarestPiece(interesting, getRandom());
+            if (index < 0) {
+                if (LOG.isTraceEnabled())
+                    LOG.trace("{}: No end-game piece from {}!", getLocalPeerName(), peer);
+                return null;
+            }
+            PieceHandler pieceHandler = pieceHandlers.get(index);
+            if (pieceHandler != null) {
+                // Never ask the same peer twice for a block.
+                BitSet excludedBlocks = pieceHandler.getBlocks(peer.getRequestsSent());
+                if (pieceHandler.hasRequestableBlocks(END_GAME_MAX_REQUESTS, excludedBlocks)) {
+                    if (LOG.isTraceEnabled())
+                        LOG.trace("{}: End-game: requesting duplicates of piece {} from {}", new Object[]{
+                            getLocalPeerName(),
+                            index, peer
+                        });
+                    duplicateRequestsSent = true;
+                    return pieceHandler.getDuplicateRequests(END_GAME_MAX_REQUESTS, excludedBlocks);
+                }
+            }
+            interesting.clear(index);
+        }
+    }
 
-            // TODO: We don't keep track of these, so it is possible to have more than one
-            // PieceHandler for a given piece. We make some attempt with rejected or timed out
-            // requests, but it isn't great.
-            return new PieceHandler(/* this, */this, rarestIndex);
+    public boolean isEndGame() {
+        return endGame;
+    }
+
+    /**
+     * Returns the number of blocks we still need to complete the torrent,
+     * and have not requested from any peer.
+     *
+     * This counts the blocks of pieces not yet started, blocks of pieces in
+     * progress which no request holds, and requests waiting to be retried.
+     */
+    @Nonnegative
+    private long getUnrequestedBlockCount() {
+        long blocksPerPiece = IntMath.divide(torrent.getPieceLength(), getBlockLength(), RoundingMode.CEILING);
+        long unrequestedBlocks = partialPieces.getRequestCount();
+        int idlePieces = torrent.getRemainingPieceCount();
+        for (PieceHandler pieceHandler : pieceHandlers.values()) {
+            unrequestedBlocks += pieceHandler.getMissingBlockCount();
+            idlePieces--;
         }
+        return unrequestedBlocks + Math.max(idlePieces, 0) * blocksPerPiece;
+    }
+
+    /**
+     * Returns the active PieceHandler for the given piece, creating it if
+     * required.
+     *
+     * If the {@link PieceBufferManager} has no room, this first releases
+     * pieces in progress which hold no received blocks and no requests, if
+     * no connected peer can supply them or they have been idle for
+     * {@link #PIECE_IDLE_TIME}.
+     *
+     * @return the PieceHandler, or null if the piece is completed, or the
+     * client's {@link PieceBufferManager} has no room for a new piece.
+     */
+    @CheckForNull
+    @VisibleForTesting
+    /* pp */ PieceHandler getPieceHandler(@Nonnegative int piece) {
+        PieceHandler pieceHandler = pieceHandlers.get(piece);
+        if (pieceHandler != null)
+            return pieceHandler;
+        PieceBufferManager manager = getClient().getPieceBufferManager();
+        int pieceLength = getPieceLength(piece);
+        ByteBuf pieceData = manager.tryAllocate(pieceLength);
+        if (pieceData == null) {
+            // A piece which no connected peer can supply, or which nobody
+            // has worked on for a while, would otherwise hold its buffer.
+            // A piece with received blocks is never given up for another.
+            long now = System.currentTimeMillis();
+            for (PieceHandler idle : pieceHandlers.values()) {
+                long idleSince = now - PIECE_IDLE_TIME;
+                if (availablePieces.getAvailability(idle.getIndex()) == 0)
+                    idleSince = Long.MAX_VALUE;
+                if (!idle.releaseIfIdle(idleSince))
+                    continue;
+                pieceHandlers.remove(idle.getIndex(), idle);
+                pieceData = manager.tryAllocate(pieceLength);
+                if (pieceData != null)
+                    break;
+            }
+            if (pieceData == null)
+                return null;
+        }
+        pieceHandler = new PieceHandler(this, piece, pieceData);
+        PieceHandler prev = pieceHandlers.putIfAbsent(piece, pieceHandler);
+        if (prev != null) {
+            pieceHandler.release();
+            return prev;
+        }
+        // The piece may have completed, and its handler been removed, since
+        // we picked it. Nobody would then ever remove ours.
+        if (isCompletedPiece(piece)) {
+            pieceHandlers.remove(piece, pieceHandler);
+            pieceHandler.release();
+            return null;
+        }
+        return pieceHandler;
     }
 
     @Override
     public int addRequestTimeout(Iterable<? extends PieceHandler.AnswerableRequestMessage> requests) {
         int count = 0;
-        synchronized (lock) {
-            for (PieceHandler.AnswerableRequestMessage request : requests) {
-                if (!isCompletedPiece(request.getPiece())) {
-                    partialPieces.add(request);
-                    count++;
-                }
+        for (PieceHandler.AnswerableRequestMessage request : requests) {
+            if (!isCompletedPiece(request.getPiece()) && !request.getPieceHandler().isReleased()) {
+                // The next peer may not accept the length we negotiated with this one.
+                for (PieceHandler.AnswerableRequestMessage block : request.split())
+                    partialPieces.add(block);
+                count++;
+            } else {
+                request.cancel();
             }
         }
         return count;
     }
 
+    @Override
+    public void addRequestSent(PieceHandler.AnswerableRequestMessage request) {
+        requestedPieces.addRequest(request.getPiece());
+    }
+
+    @Override
+    public void removeRequestSent(PieceHandler.AnswerableRequestMessage request) {
+        requestedPieces.removeRequest(request.getPiece());
+    }
+
     @Nonnegative
     private int getPartialPieceCount() {
-        synchronized (lock) {
-            return partialPieces.size();
-        }
+        return partialPieces.getRequestCount();
     }
 
-    private void ioBlock(@Nonnull ByteBuffer block, @Nonnegative int piece, @Nonnegative int offset, boolean completed) throws IOException {
+    private void ioBlock(@Nonnegative int length, @Nonnegative int piece, @Nonnegative int offset, boolean completed) throws IOException {
         int rawLength = torrent.getTorrent().getPieceLength(piece);
-        if (offset + block.remaining() > rawLength)
+        if (offset + length > rawLength)
             throw new IllegalArgumentException("Offset "
-                    + offset + "+" + block.remaining()
+                    + offset + "+" + length
                     + " too large for piece " + piece
                     + " of length " + rawLength);
         if (completed && !isCompletedPiece(piece))
@@ -752,14 +1168,26 @@ public class SwarmHandler implements Runnable,
 
     @Override
     public void readBlock(ByteBuffer block, int piece, int offset) throws IOException {
-        ioBlock(block, piece, offset, true);
+        ioBlock(block.remaining(), piece, offset, true);
         long rawOffset = torrent.getTorrent().getPieceOffset(piece) + offset;
         torrent.getBucket().read(block, rawOffset);
     }
 
+    @Override
+    public FileRegion getBlockRegion(int piece, int offset, int length) throws IOException {
+        ioBlock(length, piece, offset, true);
+        long rawOffset = torrent.getTorrent().getPieceOffset(piece) + offset;
+        return torrent.getBucket().getFileRegion(rawOffset, length);
+    }
+
+    @Override
+    public void releasePieceData(ByteBuf pieceData) {
+        getClient().getPieceBufferManager().release(pieceData);
+    }
+
     @Override
     public void writeBlock(ByteBuffer block, int piece, int offset) throws IOException {
-        ioBlock(block, piece, offset, false);
+        ioBlock(block.remaining(), piece, offset, false);
         long rawOffset = torrent.getTorrent().getPieceOffset(piece) + offset;
         torrent.getBucket().write(block, rawOffset);
     }
@@ -808,6 +1236,9 @@ public class SwarmHandler implements Runnable,
         }
 
         peerHandler = new PeerHandler(channel, remotePeerId, remoteReserved, this, this, this, this, this);
+        peerHandler.setLazyHaveInterval(torrent.getLazyHaveInterval());
+        if (torrent.isSuperSeeding() && torrent.isComplete())
+            peerHandler.setSuperSeeding(true);
         if (LOG.isTraceEnabled())
             LOG.trace("{}: Created new peer: {}.", getLocalPeerName(), peerHandler);
 
@@ -914,15 +1345,39 @@ public class SwarmHandler implements Runnable,
 
             peer.getRemoteAddress();
 
+            ConnectionManager connectionManager = getClient().getConnectionManager();
+            ACQUIRE:
+            {
+                if (getConnectedPeerCount() < torrent.getMaxConnectedPeers()
+                        && connectionManager.tryAcquireConnection(this))
+                    break ACQUIRE;
+                // A seed prefers a new peer, which may be a leecher, to one which wants nothing.
+                if (torrent.isComplete() && evictIdlePeer())
+                    break ACQUIRE;
+                if (LOG.isDebugEnabled())
+                    LOG.debug("{}: Closing peer connection {}: too many connections {} [{}/{}]", new Object[]{
+                        getLocalPeerName(), peer, connectionManager,
+                        getConnectedPeerCount(), getPeerCount()
+                    });
+                peer.close("too many connections");
+                return;
+            }
+            // The connection now holds its place in the budget.
+            releaseHalfOpenConnection(peer.getChannel());
+
             for (;;) {
                 // See whether we are already connected.
                 PeerHandler prev = connectedPeers.putIfAbsent(peer.getHexRemotePeerId(), peer);
                 // Simple success.
-                if (prev == null)
+                if (prev == null) {
+                    updateReservedConnections();
                     break;
+                }
                 // Some weird race which is simple success, but can't happen.
-                if (prev == peer)
+                if (prev == peer) {
+                    connectionManager.releaseConnection();
                     break;
+                }
                 // If so, choose a connection deterministically.
                 int cmp = PeerConnectionComparator.INSTANCE.compare(prev, peer);
                 // We didn't like the new connection.
@@ -932,6 +1387,7 @@ public class SwarmHandler implements Runnable,
                             getLocalPeerName(), peer, prev,
                             getConnectedPeerCount(), getPeerCount()
                         });
+                    connectionManager.releaseConnection();
                     peer.close("duplicate connection");
                     return;
                 }
@@ -943,12 +1399,22 @@ public class SwarmHandler implements Runnable,
                             getLocalPeerName(), prev, peer,
                             getConnectedPeerCount(), getPeerCount()
                         });
+                    // The new connection takes over the budget of the old one.
+                    connectionManager.releaseConnection();
                     prev.close("superceded connection");
                     break;
                 }
                 // We preferred the new connection, but replace() failed. Try again.
             }
 
+            PeerInformation peerInformation = knownPeers.get(peer.getRemoteAddress());
+            if (peerInformation != null) {
+                peerInformation.connectedTime = System.currentTimeMillis();
+                peerInformation.connectFailures = 0;
+            }
+            new PeerTask(peer).schedule(Rate.INTERVAL_MS);
+            unchokeTask.schedule(UNCHOKE_DELAY);
+
             // Give the peer a chance to send a bitfield message.
             peer.run("new connection");
         } catch (Exception e) {
@@ -957,6 +1423,62 @@ public class SwarmHandler implements Runnable,
         }
     }
 
+    /**
+     * Disconnects a peer which wants nothing from us: a seed, or else a peer
+     * which is not interested.
+     *
+     * The caller inherits the evicted peer's connection from the
+     * {@link ConnectionManager}.
+     *
+     * @return false if there was no such peer.
+     */
+    private boolean evictIdlePeer() {
+        long then = System.currentTimeMillis() - IDLE_PEER_DELAY;
+        PeerHandler victim = null;
+        for (PeerHandler peer : getConnectedPeers()) {
+            if (peer.isSeed()) {
+                victim = peer;
+                break;
+            }
+            if (victim == null && !peer.isInterested() && peer.getConnectionTime() < then)
+                victim = peer;
+        }
+        if (victim == null)
+            return false;
+        // Once removed, its disconnect will not release its connection.
+        if (!connectedPeers.remove(victim.getHexRemotePeerId(), victim))
+            return false;
+        updateReservedConnections();
+        victim.close("making room for another peer");
+        return true;
+    }
+
+    /**
+     * Announces another piece to a peer from which we hide our pieces, if
+     * the last piece we announced to it has spread.
+     */
+    private void revealPiece(@Nonnull PeerHandler peer) {
+        if (!peer.isSuperSeeding())
+            return;
+        int piece = superSeeder.reveal(peer, availablePieces, getRandom());
+        if (piece < 0)
+            return;
+        if (LOG.isDebugEnabled())
+            LOG.debug("{}: Super-seeding piece {} to {}.", new Object[]{
+                getLocalPeerName(), piece, peer
+            });
+        peer.sendHave(piece);
+    }
+
+    /**
+     * Closes the connection if both we and the peer are complete, as
+     * neither will send the other anything.
+     */
+    private void closeIfSeeds(@Nonnull PeerHandler peer) {
+        if (peer.isSeed() && torrent.isComplete())
+            peer.close("seed to seed");
+    }
+
     /**
      * Handle a failed peer connection.
      *
@@ -980,6 +1502,7 @@ public class SwarmHandler implements Runnable,
 
         PeerInformation peerInformation = knownPeers.get(remoteAddress);
         if (peerInformation != null) {
+            peerInformation.connectFailures++;
             long reconnectDelay;
             if (cause != null)
                 reconnectDelay = RECONNECT_DELAY_PERMANENT;
@@ -1052,6 +1575,10 @@ public class SwarmHandler implements Runnable,
     @Override
     public void handlePieceAvailability(PeerHandler peer, int piece) {
         setAvailablePiece(piece, true);
+        closeIfSeeds(peer);
+        // The peers to which we revealed this piece have passed it on.
+        for (PeerHandler revealedPeer : superSeeder.handlePieceAvailability(peer, piece, System.currentTimeMillis()))
+            revealPiece(revealedPeer);
         if (LOG.isTraceEnabled())
             LOG.trace("{}: Peer {} contributes {}/{} piece(s) "
                     + "[completed={}, available={}/{}] "
@@ -1101,6 +1628,11 @@ public class SwarmHandler implements Runnable,
                 setAvailablePiece(i, true);
         }
 
+        closeIfSeeds(peer);
+        // Reveal a piece which the peer does not have.
+        superSeeder.remove(peer);
+        revealPiece(peer);
+
         // Determine if the peer is interesting for us or not, and notify it.
         BitSet interesting = currAvailablePieces;
         torrent.andNotCompletedPieces(interesting);
@@ -1130,7 +1662,7 @@ public class SwarmHandler implements Runnable,
             });
 
         // Fast unchoking: TODO: Move to somewhere more useful.
-        if (connectedPeers.size() < MAX_DOWNLOADERS_UNCHOKE) {
+        if (connectedPeers.size() < torrent.getChokingStrategy().getFastUnchokeCount()) {
             if (LOG.isDebugEnabled())
                 LOG.debug("{}: Fast-unchoking {}.", new Object[]{
                     getLocalPeerName(), peer
@@ -1161,6 +1693,33 @@ public class SwarmHandler implements Runnable,
     @Override
     public void handleBlockReceived(PeerHandler peer, int piece, int offset, int length) {
         this.downloaded.addAndGet(length);
+        // Duplicates may outlive the end-game which sent them.
+        if (duplicateRequestsSent)
+            cancelDuplicateRequests(peer, piece, offset, length);
+    }
+
+    /**
+     * Sends a CANCEL to every other peer holding a request for a block which
+     * we have just received.
+     */
+    private void cancelDuplicateRequests(@Nonnull PeerHandler peer, @Nonnegative int piece, @Nonnegative int offset, @Nonnegative int length) {
+        // An unsolicited block is discarded, so we may still need the other copies.
+        if (!isCompletedPiece(piece)) {
+            PieceHandler pieceHandler = pieceHandlers.get(piece);
+            if (pieceHandler == null || !pieceHandler.isReceivedBlock(offset))
+                return;
+        }
+        int count = 0;
+        for (PeerHandler remote : getConnectedPeers()) {
+            if (remote == peer)
+                continue;
+            count += remote.cancelRequestSent(piece, offset, length);
+        }
+        if (count > 0 && LOG.isDebugEnabled())
+            LOG.debug("{}: End-game: received {}[{}@{}] from {}; cancelled {} duplicate request(s).", new Object[]{
+                getLocalPeerName(),
+                piece, length, offset, peer, count
+            });
     }
 
     /**
@@ -1185,14 +1744,8 @@ public class SwarmHandler implements Runnable,
             throws IOException {
         // Regardless of validity, record the number of bytes downloaded and
         // mark the piece as not requested anymore
-        synchronized (lock) {
-            // TODO: Not sure if this is required.
-            for (Iterator<PieceHandler.AnswerableRequestMessage> it = partialPieces.iterator(); it.hasNext(); /**/) {
-                PieceHandler.AnswerableRequestMessage request = it.next();
-                if (request.getPiece() == piece)
-                    it.remove();
-            }
-        }
+        // TODO: Not sure if this is required.
+        partialPieces.remove(piece);
 
         if (reception == PieceHandler.Reception.VALID) {
             // Make sure the piece is marked as completed in the torrent
@@ -1202,6 +1755,12 @@ public class SwarmHandler implements Runnable,
             // handler is.
             // Do this before we print the log message, else the counts are misleading.
             torrent.setCompletedPiece(piece);
+            availablePieces.remove(piece);
+            pieceDeadlines.remove(piece);
+            // A no-op if the handler wrote the piece.
+            PieceHandler pieceHandler = pieceHandlers.remove(piece);
+            if (pieceHandler != null)
+                pieceHandler.release();
         }
 
         if (LOG.isDebugEnabled())
@@ -1216,10 +1775,11 @@ public class SwarmHandler implements Runnable,
             });
 
         if (reception == PieceHandler.Reception.VALID) {
-            // Send a HAVE message to all connected peers
-            PeerMessage have = new PeerMessage.HaveMessage(piece);
-            for (PeerHandler remote : getConnectedPeers())
-                remote.send(have, true);
+            // Send a HAVE message to all connected peers which don't have it.
+            for (PeerHandler remote : getConnectedPeers()) {
+                remote.removeInterestingPiece(piece);
+                remote.sendHave(piece);
+            }
         } else {
             LOG.warn("{}, Downloaded piece#{} from {} was not valid: {} ;-(", new Object[]{
                 getLocalPeerName(),
@@ -1234,9 +1794,12 @@ public class SwarmHandler implements Runnable,
                     getLocalPeerName(), torrent, piece
                 });
 
-            // Cancel all remaining outstanding requests
-            for (PeerHandler remote : getConnectedPeers())
+            // Cancel all remaining outstanding requests, and stop dialing.
+            connectTask.cancel();
+            for (PeerHandler remote : getConnectedPeers()) {
                 remote.cancelRequestsSent("torrent completed");
+                closeIfSeeds(remote);
+            }
 
             torrent.finish();
         }
@@ -1261,6 +1824,7 @@ public class SwarmHandler implements Runnable,
         }
 
         peer.rejectRequestsSent("peer disconnected");
+        superSeeder.remove(peer);
 
         if (LOG.isDebugEnabled())
             LOG.debug("{}: Peer {} went away with {} piece(s) "
@@ -1277,13 +1841,18 @@ public class SwarmHandler implements Runnable,
                 getPeerCount()
             });
 
-        connectedPeers.remove(peer.getHexRemotePeerId(), peer);
+        if (connectedPeers.remove(peer.getHexRemotePeerId(), peer)) {
+            getClient().getConnectionManager().releaseConnection();
+            updateReservedConnections();
+            connectTask.schedule(CONNECT_DELAY);
+        }
 
         long now = System.currentTimeMillis();
         PeerInformation peerInformation = knownPeers.get(peer.getRemoteAddress());
-        if (peerInformation != null)
+        if (peerInformation != null) {
+            peerInformation.downloadRate = peer.getDLRate().getRate(TimeUnit.SECONDS);
             peerInformation.setReconnectTime(getRandom(), now + RECONNECT_DELAY_TEMPORARY);
-        else
+        } else
             for (Map.Entry<SocketAddress, PeerInformation> e : knownPeers.entrySet()) {
                 peerInformation = e.getValue();
                 if (Arrays.equals(peerInformation.remotePeerId, peer.getRemotePeerId()))
@@ -1297,7 +1866,10 @@ public class SwarmHandler implements Runnable,
                 + "closing connection with it!", ioe);
         peer.close("I/O error");
         // This should be done by handlePeerDisconnected but let's double up.
-        connectedPeers.remove(peer.getHexRemotePeerId(), peer);
+        if (connectedPeers.remove(peer.getHexRemotePeerId(), peer)) {
+            getClient().getConnectionManager().releaseConnection();
+            updateReservedConnections();
+        }
     }
 
     public void info(boolean verbose) {
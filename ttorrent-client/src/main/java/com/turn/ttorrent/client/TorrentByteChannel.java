@@ -0,0 +1,173 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A read-only view of the data of a torrent, which may still be downloading.
+ *
+ * <p>
+ * A read blocks until the piece it covers is complete, and never returns
+ * data from more than one piece. Before blocking, it sets deadlines on the
+ * pieces just ahead of the read position, so that the swarm fetches them
+ * before the pieces chosen by the torrent's
+ * {@link com.turn.ttorrent.client.peer.PiecePicker}.
+ * </p>
+ *
+ * <p>
+ * Closing the channel does not interrupt a blocked read; stopping the
+ * torrent does.
+ * </p>
+ *
+ * @see TorrentHandler#newByteChannel()
+ * @author shevek
+ */
+public class TorrentByteChannel implements SeekableByteChannel {
+
+    /** The number of pieces after the current piece to ask for. */
+    public static final int DEFAULT_READ_AHEAD_PIECES = 4;
+    /** The interval between the deadlines of consecutive pieces. */
+    private static final long DEADLINE_INTERVAL = 1000;
+    private final TorrentHandler torrent;
+    private final int readAheadPieces;
+    @GuardedBy("lock")
+    private long position = 0;
+    /** The last piece on which we set deadlines, to avoid doing so on every read. */
+    @GuardedBy("lock")
+    private int deadlinePiece = -1;
+    private volatile boolean open = true;
+    private final Object lock = new Object();
+
+    public TorrentByteChannel(@Nonnull TorrentHandler torrent, @Nonnegative int readAheadPieces) {
+        this.torrent = torrent;
+        this.readAheadPieces = readAheadPieces;
+    }
+
+    public TorrentByteChannel(@Nonnull TorrentHandler torrent) {
+        this(torrent, DEFAULT_READ_AHEAD_PIECES);
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open)
+            throw new ClosedChannelException();
+    }
+
+    @GuardedBy("lock")
+    private void setDeadlines(@Nonnegative int piece) {
+        if (piece == deadlinePiece)
+            return;
+        deadlinePiece = piece;
+        SwarmHandler swarmHandler = torrent.getSwarmHandler();
+        long now = System.currentTimeMillis();
+        int end = Math.min(piece + readAheadPieces + 1, torrent.getPieceCount());
+        for (int i = piece; i < end; i++)
+            swarmHandler.setPieceDeadline(i, now + (i - piece) * DEADLINE_INTERVAL);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        synchronized (lock) {
+            ensureOpen();
+            long size = size();
+            if (position >= size)
+                return -1;
+            if (!dst.hasRemaining())
+                return 0;
+
+            int piece = (int) (position / torrent.getPieceLength());
+            if (!torrent.isCompletedPiece(piece)) {
+                if (torrent.isSkippedPiece(piece))
+                    throw new IOException("Piece " + piece + " at " + position + " is in a skipped file.");
+                setDeadlines(piece);
+                try {
+                    torrent.awaitCompletedPiece(piece);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for piece " + piece);
+                }
+                ensureOpen();
+            }
+
+            long pieceEnd = Math.min(torrent.getPieceOffset(piece + 1), size);
+            int length = (int) Math.min(dst.remaining(), pieceEnd - position);
+            ByteBuffer buffer = dst.duplicate();
+            buffer.limit(buffer.position() + length);
+            int count = torrent.getBucket().read(buffer, position);
+            dst.position(buffer.position());
+            position += count;
+            return count;
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        synchronized (lock) {
+            return position;
+        }
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        if (newPosition < 0)
+            throw new IllegalArgumentException("Negative position " + newPosition);
+        ensureOpen();
+        synchronized (lock) {
+            this.position = newPosition;
+        }
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return torrent.getSize();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) throws IOException {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+    }
+
+    @Override
+    public String toString() {
+        return "TorrentByteChannel(" + torrent + ")";
+    }
+}
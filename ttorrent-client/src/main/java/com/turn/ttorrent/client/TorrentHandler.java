@@ -20,10 +20,16 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.io.Files;
 import com.turn.ttorrent.protocol.torrent.Torrent;
+import com.turn.ttorrent.client.peer.ChokingStrategy;
 import com.turn.ttorrent.client.peer.PieceHandler;
+import com.turn.ttorrent.client.peer.PiecePicker;
+import com.turn.ttorrent.client.peer.RarestFirstPiecePicker;
+import com.turn.ttorrent.client.peer.TitForTatChokingStrategy;
+import com.turn.ttorrent.client.storage.ByteRangeStorage;
 import com.turn.ttorrent.client.storage.ByteStorage;
 import com.turn.ttorrent.client.storage.FileStorage;
 import com.turn.ttorrent.client.storage.FileCollectionStorage;
+import com.turn.ttorrent.client.storage.SkippedFileStorage;
 
 import com.turn.ttorrent.tracker.client.TorrentMetadataProvider;
 import com.turn.ttorrent.protocol.TorrentUtils;
@@ -31,16 +37,25 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.GuardedBy;
@@ -72,19 +87,41 @@ import org.slf4j.LoggerFactory;
 public class TorrentHandler implements TorrentMetadataProvider, Closeable {
 
     private static final Logger LOG = LoggerFactory.getLogger(TorrentHandler.class);
+    public static final int DEFAULT_MIN_CONNECTED_PEERS = 8;
+    public static final int DEFAULT_MAX_CONNECTED_PEERS = 50;
     private final Client client;
     private final Torrent torrent;
     private final ByteStorage bucket;
+    @Nonnull
+    private final List<FilePriority> filePriorities;
+    /** Pieces which overlap no file we want. Immutable. */
+    @Nonnull
+    private final BitSet skippedPieces;
+    /** Pieces which overlap a file of high priority. Immutable. */
+    @Nonnull
+    private final BitSet highPriorityPieces;
     private final SwarmHandler swarmHandler;
     private final TrackerHandler trackerHandler;
     @Nonnull
     @GuardedBy("lock")
     private State state = State.WAITING;
     // private SortedSet<Piece> rarest;
+    /** Replaced, never modified, by {@link #init()}; otherwise lock-free. */
     @Nonnull
-    @GuardedBy("lock")
-    private BitSet completedPieces = new BitSet();
+    private volatile AtomicBitSet completedPieces;
+    /** The number of pieces we want, which is fixed by {@link #skippedPieces}. */
+    @Nonnegative
+    private final int wantedPieceCount;
+    /** Pieces we want and have not completed; kept by {@link #setCompletedPiece(int)} and {@link #init()}. */
+    private final AtomicInteger remainingPieceCount;
     private int blockLength = PieceHandler.DEFAULT_BLOCK_SIZE;
+    private int maxBlockLength = PieceHandler.DEFAULT_BLOCK_SIZE;
+    private volatile PiecePicker piecePicker = new RarestFirstPiecePicker();
+    private volatile ChokingStrategy chokingStrategy = new TitForTatChokingStrategy();
+    private volatile int minConnectedPeers = DEFAULT_MIN_CONNECTED_PEERS;
+    private volatile int maxConnectedPeers = DEFAULT_MAX_CONNECTED_PEERS;
+    private volatile long lazyHaveInterval = 0;
+    private volatile boolean superSeeding = false;
     private double maxUploadRate = 0.0;
     private double maxDownloadRate = 0.0;
     private final Object lock = new Object();
@@ -127,11 +164,60 @@ public class TorrentHandler implements TorrentMetadataProvider, Closeable {
      */
     public TorrentHandler(@Nonnull Client client, @Nonnull Torrent torrent, @Nonnull File destDir)
             throws IOException {
-        this(client, torrent, toStorage(torrent, destDir));
+        this(client, torrent, destDir, null);
+    }
+
+    /**
+     * Create a new shared torrent which downloads only some of its files.
+     *
+     * <p>
+     * A file which we skip is not created, unless it shares a piece with a
+     * file we want. In that case, the shared part is stored, but the file
+     * is never moved from its partial location.
+     * </p>
+     *
+     * @param filePriorities The priority of each file, in the order of
+     * {@link Torrent#getFiles()}, or null to download every file.
+     * @see #TorrentHandler(Client, Torrent, File)
+     */
+    public TorrentHandler(@Nonnull Client client, @Nonnull Torrent torrent, @Nonnull File destDir, @CheckForNull List<FilePriority> filePriorities)
+            throws IOException {
+        this(client, torrent, toStorage(torrent, destDir, toFilePriorities(torrent, filePriorities)), filePriorities);
+    }
+
+    @Nonnull
+    private static List<FilePriority> toFilePriorities(@Nonnull Torrent torrent, @CheckForNull List<FilePriority> filePriorities) {
+        int fileCount = torrent.getFiles().size();
+        if (filePriorities == null)
+            return Collections.nCopies(fileCount, FilePriority.NORMAL);
+        Preconditions.checkArgument(filePriorities.size() == fileCount,
+                "Expected %s file priorities, not %s.", fileCount, filePriorities.size());
+        for (FilePriority filePriority : filePriorities)
+            Preconditions.checkNotNull(filePriority, "FilePriority was null.");
+        return Collections.unmodifiableList(new ArrayList<FilePriority>(filePriorities));
+    }
+
+    /**
+     * Returns the pieces which overlap any file with one of the given
+     * priorities.
+     */
+    @Nonnull
+    private static BitSet toPieces(@Nonnull Torrent torrent, @Nonnull List<FilePriority> filePriorities, @Nonnull Set<FilePriority> priorities) {
+        BitSet out = new BitSet(torrent.getPieceCount());
+        long pieceLength = torrent.getPieceLength();
+        long offset = 0L;
+        List<Torrent.TorrentFile> files = torrent.getFiles();
+        for (int i = 0; i < files.size(); i++) {
+            Torrent.TorrentFile file = files.get(i);
+            if (file.size > 0 && priorities.contains(filePriorities.get(i)))
+                out.set((int) (offset / pieceLength), (int) ((offset + file.size - 1) / pieceLength) + 1);
+            offset += file.size;
+        }
+        return out;
     }
 
     @Nonnull
-    private static ByteStorage toStorage(@Nonnull Torrent torrent, @Nonnull File parent)
+    private static ByteStorage toStorage(@Nonnull Torrent torrent, @Nonnull File parent, @Nonnull List<FilePriority> filePriorities)
             throws IOException {
         Preconditions.checkNotNull(parent, "Parent directory was null.");
 
@@ -140,9 +226,13 @@ public class TorrentHandler implements TorrentMetadataProvider, Closeable {
         if (!torrent.isMultifile() && parent.isFile())
             return new FileStorage(parent, torrent.getSize());
 
-        List<FileStorage> files = new LinkedList<FileStorage>();
+        BitSet wantedPieces = toPieces(torrent, filePriorities, EnumSet.of(FilePriority.NORMAL, FilePriority.HIGH));
+        long pieceLength = torrent.getPieceLength();
+        List<ByteRangeStorage> files = new LinkedList<ByteRangeStorage>();
         long offset = 0L;
-        for (Torrent.TorrentFile file : torrent.getFiles()) {
+        List<Torrent.TorrentFile> torrentFiles = torrent.getFiles();
+        for (int i = 0; i < torrentFiles.size(); i++) {
+            Torrent.TorrentFile file = torrentFiles.get(i);
             // TODO: Files.simplifyPath() is a security check here to avoid jail-escape.
             // However, it uses "/" not File.separator internally.
             String path = Files.simplifyPath("/" + file.path);
@@ -151,8 +241,19 @@ public class TorrentHandler implements TorrentMetadataProvider, Closeable {
             if (!actualPath.startsWith(parentPath))
                 throw new SecurityException("Torrent file path attempted to break directory jail: " + actualPath + " is not within " + parentPath);
 
-            FileUtils.forceMkdir(actual.getParentFile());
-            files.add(new FileStorage(actual, offset, file.size));
+            if (filePriorities.get(i) == FilePriority.SKIP) {
+                // Do we share a piece with a file we want?
+                int firstPiece = (int) (offset / pieceLength);
+                int lastPiece = (int) ((offset + Math.max(file.size, 1) - 1) / pieceLength);
+                int wantedPiece = wantedPieces.nextSetBit(firstPiece);
+                boolean create = wantedPiece >= 0 && wantedPiece <= lastPiece && file.size > 0;
+                if (create)
+                    FileUtils.forceMkdir(actual.getParentFile());
+                files.add(new SkippedFileStorage(actual, offset, file.size, create));
+            } else {
+                FileUtils.forceMkdir(actual.getParentFile());
+                files.add(new FileStorage(actual, offset, file.size));
+            }
             offset += file.size;
         }
         if (files.size() == 1)
@@ -167,9 +268,29 @@ public class TorrentHandler implements TorrentMetadataProvider, Closeable {
      * @param bucket The storage bucket for the torrent data.
      */
     public TorrentHandler(@Nonnull Client client, @Nonnull Torrent torrent, @Nonnull ByteStorage bucket) {
+        this(client, torrent, bucket, null);
+    }
+
+    /**
+     * Constructs a new TorrentHandler which downloads only some of its files.
+     *
+     * @param torrent The meta-info byte data.
+     * @param bucket The storage bucket for the torrent data. It must be able
+     * to store every piece which overlaps a file we want.
+     * @param filePriorities The priority of each file, in the order of
+     * {@link Torrent#getFiles()}, or null to download every file.
+     */
+    public TorrentHandler(@Nonnull Client client, @Nonnull Torrent torrent, @Nonnull ByteStorage bucket, @CheckForNull List<FilePriority> filePriorities) {
         this.client = client;
         this.torrent = torrent;
         this.bucket = bucket;
+        this.filePriorities = toFilePriorities(torrent, filePriorities);
+        this.skippedPieces = toPieces(torrent, this.filePriorities, EnumSet.of(FilePriority.NORMAL, FilePriority.HIGH));
+        this.skippedPieces.flip(0, torrent.getPieceCount());
+        this.highPriorityPieces = toPieces(torrent, this.filePriorities, EnumSet.of(FilePriority.HIGH));
+        this.completedPieces = new AtomicBitSet(torrent.getPieceCount());
+        this.wantedPieceCount = torrent.getPieceCount() - skippedPieces.cardinality();
+        this.remainingPieceCount = new AtomicInteger(wantedPieceCount);
         this.swarmHandler = new SwarmHandler(this);
         this.trackerHandler = new TrackerHandler(client, this, this.swarmHandler);
 
@@ -192,6 +313,35 @@ public class TorrentHandler implements TorrentMetadataProvider, Closeable {
         return torrent;
     }
 
+    /** Returns the priority of each file, in the order of {@link Torrent#getFiles()}. */
+    @Nonnull
+    public List<FilePriority> getFilePriorities() {
+        return filePriorities;
+    }
+
+    /** Returns true if the given piece overlaps no file we want. */
+    public boolean isSkippedPiece(@Nonnegative int index) {
+        return skippedPieces.get(index);
+    }
+
+    /** Clears every piece which overlaps no file we want. Zero-copy. */
+    public void andNotSkippedPieces(@Nonnull BitSet b) {
+        b.andNot(skippedPieces);
+    }
+
+    /**
+     * Clears every piece which overlaps no file of high priority, unless
+     * that would leave the set empty. Zero-copy.
+     *
+     * @return true if the set was modified.
+     */
+    public boolean andHighPriorityPieces(@Nonnull BitSet b) {
+        if (!highPriorityPieces.intersects(b))
+            return false;
+        b.and(highPriorityPieces);
+        return true;
+    }
+
     @Nonnull
     public ByteStorage getBucket() {
         return bucket;
@@ -244,6 +394,81 @@ public class TorrentHandler implements TorrentMetadataProvider, Closeable {
         this.blockLength = blockLength;
     }
 
+    @Nonnegative
+    public int getMaxBlockLength() {
+        return Math.max(maxBlockLength, getBlockLength());
+    }
+
+    /**
+     * Sets the largest block we will request from or serve to peers which
+     * advertise support for larger blocks in their extended handshake.
+     *
+     * Larger blocks reduce the per-block overhead on fast links. Other peers
+     * always use {@link #getBlockLength()}. The default is not to negotiate.
+     */
+    public void setMaxBlockLength(@Nonnegative int maxBlockLength) {
+        Preconditions.checkArgument(maxBlockLength <= PieceHandler.MAX_NEGOTIATED_BLOCK_SIZE,
+                "Max block length %s exceeds %s.", maxBlockLength, PieceHandler.MAX_NEGOTIATED_BLOCK_SIZE);
+        this.maxBlockLength = maxBlockLength;
+    }
+
+    @Nonnull
+    public PiecePicker getPiecePicker() {
+        return piecePicker;
+    }
+
+    /**
+     * Sets the strategy used to choose the next piece to download.
+     *
+     * The default is {@link RarestFirstPiecePicker}.
+     */
+    public void setPiecePicker(@Nonnull PiecePicker piecePicker) {
+        this.piecePicker = Preconditions.checkNotNull(piecePicker, "PiecePicker was null.");
+    }
+
+    @Nonnull
+    public ChokingStrategy getChokingStrategy() {
+        return chokingStrategy;
+    }
+
+    /**
+     * Sets the strategy used to choose which peers to upload to.
+     *
+     * The default is {@link TitForTatChokingStrategy}.
+     * {@link com.turn.ttorrent.client.peer.SeedingChokingStrategy} suits a
+     * torrent which is mostly seeded.
+     */
+    public void setChokingStrategy(@Nonnull ChokingStrategy chokingStrategy) {
+        this.chokingStrategy = Preconditions.checkNotNull(chokingStrategy, "ChokingStrategy was null.");
+    }
+
+    @Nonnegative
+    public int getMinConnectedPeers() {
+        return minConnectedPeers;
+    }
+
+    /**
+     * Sets the number of connections this torrent reserves from the
+     * {@link ConnectionManager} of its client.
+     */
+    public void setMinConnectedPeers(@Nonnegative int minConnectedPeers) {
+        this.minConnectedPeers = minConnectedPeers;
+        swarmHandler.updateReservedConnections();
+    }
+
+    @Nonnegative
+    public int getMaxConnectedPeers() {
+        return maxConnectedPeers;
+    }
+
+    /**
+     * Sets the maximum number of peers, inbound and outbound, connected to
+     * this torrent at once.
+     */
+    public void setMaxConnectedPeers(@Nonnegative int maxConnectedPeers) {
+        this.maxConnectedPeers = maxConnectedPeers;
+    }
+
     @Override
     public List<? extends List<? extends URI>> getAnnounceList() {
         return getTorrent().getAnnounceList();
@@ -272,6 +497,8 @@ public class TorrentHandler implements TorrentMetadataProvider, Closeable {
             if (this.state.equals(state))
                 return;
             this.state = state;
+            // Wake any reader waiting for a piece we may never complete.
+            lock.notifyAll();
         }
         getClient().fireTorrentState(this, state);
     }
@@ -281,11 +508,20 @@ public class TorrentHandler implements TorrentMetadataProvider, Closeable {
      */
     @Nonnull
     public BitSet getCompletedPieces() {
+        return (BitSet) getCompletedPiecesSnapshot().clone();
+    }
+
+    /**
+     * Return a snapshot of the completed pieces bitset.
+     *
+     * The snapshot is shared until another piece is completed, so the
+     * caller must not modify it.
+     */
+    @Nonnull
+    /* pp */ BitSet getCompletedPiecesSnapshot() {
         if (!this.isInitialized())
             throw new IllegalStateException("Torrent not yet initialized!");
-        synchronized (lock) {
-            return (BitSet) completedPieces.clone();
-        }
+        return completedPieces.getSnapshot();
     }
 
     /**
@@ -295,28 +531,51 @@ public class TorrentHandler implements TorrentMetadataProvider, Closeable {
     public void setCompletedPiece(@Nonnegative int index) {
         // A completed piece means that's that much data left to download for
         // this torrent.
-        synchronized (lock) {
-            this.completedPieces.set(index);
+        if (completedPieces.set(index)) {
+            if (!isSkippedPiece(index))
+                remainingPieceCount.decrementAndGet();
+            // Wake any reader waiting for this piece.
+            synchronized (lock) {
+                lock.notifyAll();
+            }
         }
     }
 
-    public boolean isCompletedPiece(@Nonnegative int index) {
+    /**
+     * Blocks until the given piece is completed.
+     *
+     * @throws IOException if the torrent stops before the piece is completed.
+     */
+    public void awaitCompletedPiece(@Nonnegative int index) throws InterruptedException, IOException {
         synchronized (lock) {
-            return completedPieces.get(index);
+            while (!completedPieces.get(index)) {
+                switch (state) {
+                    case ERROR:
+                    case DONE:
+                        throw new IOException("Torrent stopped in state " + state + " before piece " + index + " was completed.");
+                }
+                lock.wait();
+            }
         }
     }
 
+    public boolean isCompletedPiece(@Nonnegative int index) {
+        return completedPieces.get(index);
+    }
+
     @Nonnegative
     public int getCompletedPieceCount() {
-        synchronized (lock) {
-            return completedPieces.cardinality();
-        }
+        return completedPieces.cardinality();
+    }
+
+    /** Returns the number of pieces we want and have not completed. */
+    @Nonnegative
+    public int getRemainingPieceCount() {
+        return remainingPieceCount.get();
     }
 
     public void andNotCompletedPieces(BitSet b) {
-        synchronized (lock) {
-            b.andNot(completedPieces);
-        }
+        b.andNot(completedPieces.getSnapshot());
     }
 
     /**
@@ -328,9 +587,45 @@ public class TorrentHandler implements TorrentMetadataProvider, Closeable {
      * </p>
      */
     public float getCompletion() {
-        return this.isInitialized()
-                ? (float) getCompletedPieceCount() / getPieceCount() * 100.0f
-                : 0.0f;
+        if (!isInitialized())
+            return 0.0f;
+        if (wantedPieceCount == 0)
+            return 100.0f;
+        return (float) (wantedPieceCount - getRemainingPieceCount()) / wantedPieceCount * 100.0f;
+    }
+
+    @Nonnegative
+    public long getLazyHaveInterval() {
+        return lazyHaveInterval;
+    }
+
+    /**
+     * Set the interval (in milliseconds) at which peers are sent HAVE
+     * messages for pieces they already had when we completed them. A
+     * setting of 0 never sends them.
+     *
+     * This applies to peers which connect after the call.
+     */
+    public void setLazyHaveInterval(@Nonnegative long lazyHaveInterval) {
+        this.lazyHaveInterval = lazyHaveInterval;
+    }
+
+    public boolean isSuperSeeding() {
+        return superSeeding;
+    }
+
+    /**
+     * Sets whether, while complete, we hide our pieces from peers and reveal
+     * them one at a time, so that peers pass each piece on before we upload
+     * another. This is for the initial distribution of a torrent from a
+     * single seed.
+     *
+     * This applies to peers which connect after the call.
+     *
+     * @see com.turn.ttorrent.client.peer.SuperSeeder
+     */
+    public void setSuperSeeding(boolean superSeeding) {
+        this.superSeeding = superSeeding;
     }
 
     public double getMaxUploadRate() {
@@ -377,11 +672,11 @@ public class TorrentHandler implements TorrentMetadataProvider, Closeable {
     @Override
     public long getLeft() {
         synchronized (lock) {
-            long count = getPieceCount() - getCompletedPieceCount();
+            long count = getRemainingPieceCount();
             long left = count * getPieceLength();
 
             int lastPieceIndex = getPieceCount() - 1;
-            if (!isCompletedPiece(lastPieceIndex)) {
+            if (!isCompletedPiece(lastPieceIndex) && !isSkippedPiece(lastPieceIndex)) {
                 left -= getPieceLength();
                 left += getPieceLength(lastPieceIndex);
             }
@@ -451,8 +746,11 @@ public class TorrentHandler implements TorrentMetadataProvider, Closeable {
                 });
 
                 int step = 10;
-                CountDownLatch latch = new CountDownLatch(npieces);
+                CountDownLatch latch = new CountDownLatch(wantedPieceCount);
                 for (int index = 0; index < npieces; index++) {
+                    // We may not have storage for a skipped piece.
+                    if (isSkippedPiece(index))
+                        continue;
                     // TODO: Read the file sequentially and pass it to the validator.
                     // Otherwise we thrash the disk on validation.
                     ByteBuffer buffer = ByteBuffer.allocate(getPieceLength(index));
@@ -487,8 +785,11 @@ public class TorrentHandler implements TorrentMetadataProvider, Closeable {
                 getPieceCount()
             });
 
+            // The validator never completes a skipped piece.
+            this.remainingPieceCount.set(wantedPieceCount - completedPieces.cardinality());
+            this.completedPieces = new AtomicBitSet(npieces, completedPieces);
             synchronized (lock) {
-                this.completedPieces = completedPieces;
+                lock.notifyAll();
             }
 
             if (isComplete()) {
@@ -518,6 +819,31 @@ public class TorrentHandler implements TorrentMetadataProvider, Closeable {
         getSwarmHandler().info(verbose);
     }
 
+    /**
+     * Returns a read-only channel over the torrent data, which may be used
+     * while the torrent is still downloading.
+     *
+     * Reads block until the pieces they cover are complete, and raise the
+     * priority of the pieces just ahead of the read position.
+     *
+     * @see TorrentByteChannel
+     */
+    @Nonnull
+    public SeekableByteChannel newByteChannel() {
+        return new TorrentByteChannel(this);
+    }
+
+    /**
+     * Returns a stream over the torrent data, which may be used while the
+     * torrent is still downloading.
+     *
+     * @see #newByteChannel()
+     */
+    @Nonnull
+    public InputStream newInputStream() {
+        return Channels.newInputStream(newByteChannel());
+    }
+
     /**
      * Finalize the download of this torrent.
      *
@@ -548,9 +874,11 @@ public class TorrentHandler implements TorrentMetadataProvider, Closeable {
     /**
      * Tells whether this torrent has been fully downloaded, or is fully
      * available locally.
+     *
+     * Pieces of skipped files are not required.
      */
     public boolean isComplete() {
-        return getCompletedPieceCount() == getPieceCount();
+        return getRemainingPieceCount() == 0;
     }
 
     @Override
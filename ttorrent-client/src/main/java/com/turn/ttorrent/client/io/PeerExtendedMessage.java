@@ -91,13 +91,23 @@ public abstract class PeerExtendedMessage extends PeerMessage {
         public static final String K_SENDER_PORT = "p";
         public static final String K_SENDER_VERSION = "v";
         public static final String K_SENDER_REQUEST_QUEUE_LENGTH = "reqq";
+        /** Not a standard key: the largest block the sender will request or serve. */
+        public static final String K_SENDER_MAX_BLOCK_LENGTH = "max_block_length";
         public static final String K_RECEIVER_IP = "yourip";
+        /**
+         * The reqq assumed for a peer which does not advertise one.
+         *
+         * This is the default of common clients, and is independent of
+         * {@link PeerHandler#MAX_REQUESTS_SENT}, which caps our own pipeline.
+         */
+        public static final int DEFAULT_SENDER_REQUEST_QUEUE_LENGTH = 100;
         private final Map<ExtendedType, Byte> senderExtendedTypeMap = new EnumMap<ExtendedType, Byte>(ExtendedType.class);
         private byte[] senderIp4;
         private byte[] senderIp6;
         private int senderPort;
         private String senderVersion;
         private int senderRequestQueueLength;
+        private int senderMaxBlockLength = -1;
         private byte[] receiverIp;
 
         /**
@@ -109,10 +119,14 @@ public abstract class PeerExtendedMessage extends PeerMessage {
 
         /**
          * Constructed for local, transmitted to remote.
+         *
+         * @param senderMaxBlockLength The largest block we will request or
+         * serve, or -1 to omit the non-standard key.
          */
-        public HandshakeMessage(int senderRequestQueueLength, Set<? extends SocketAddress> senderAddresses) {
+        public HandshakeMessage(int senderRequestQueueLength, int senderMaxBlockLength, Set<? extends SocketAddress> senderAddresses) {
             this();
             this.senderRequestQueueLength = senderRequestQueueLength;
+            this.senderMaxBlockLength = senderMaxBlockLength;
             for (ExtendedType type : ExtendedType.values())
                 senderExtendedTypeMap.put(type, (byte) type.ordinal());
             for (SocketAddress senderAddress : senderAddresses) {
@@ -184,6 +198,15 @@ public abstract class PeerExtendedMessage extends PeerMessage {
             return senderRequestQueueLength;
         }
 
+        /**
+         * Returns the largest block the sender will request or serve, or -1
+         * if the sender did not say.
+         */
+        @CheckForSigned
+        public int getSenderMaxBlockLength() {
+            return senderMaxBlockLength;
+        }
+
         @Override
         public void fromWire(ByteBuf in) throws IOException {
             NettyBDecoder decoder = new NettyBDecoder(in);
@@ -208,7 +231,8 @@ public abstract class PeerExtendedMessage extends PeerMessage {
             senderIp6 = BEUtils.getBytes(payload.get(K_SENDER_IPV6));
             senderPort = BEUtils.getInt(payload.get(K_SENDER_PORT), -1);
             senderVersion = BEUtils.getString(payload.get(K_SENDER_VERSION));
-            senderRequestQueueLength = BEUtils.getInt(payload.get(K_SENDER_REQUEST_QUEUE_LENGTH), PeerHandler.MAX_REQUESTS_SENT);
+            senderRequestQueueLength = BEUtils.getInt(payload.get(K_SENDER_REQUEST_QUEUE_LENGTH), DEFAULT_SENDER_REQUEST_QUEUE_LENGTH);
+            senderMaxBlockLength = BEUtils.getInt(payload.get(K_SENDER_MAX_BLOCK_LENGTH), -1);
             receiverIp = BEUtils.getBytes(payload.get(K_RECEIVER_IP));
         }
 
@@ -236,6 +260,8 @@ public abstract class PeerExtendedMessage extends PeerMessage {
                 payload.put(K_SENDER_PORT, new BEValue(senderVersion));
             if (senderRequestQueueLength > 0)
                 payload.put(K_SENDER_REQUEST_QUEUE_LENGTH, new BEValue(senderRequestQueueLength));
+            if (senderMaxBlockLength > 0)
+                payload.put(K_SENDER_MAX_BLOCK_LENGTH, new BEValue(senderMaxBlockLength));
             if (receiverIp != null)
                 payload.put(K_RECEIVER_IP, new BEValue(receiverIp));
             encoder.bencode(payload);
@@ -255,6 +281,8 @@ public abstract class PeerExtendedMessage extends PeerMessage {
                 ret = ret + " ip6-error=" + e;
             }
             ret = ret + " port=" + senderPort;
+            if (senderMaxBlockLength > 0)
+                ret = ret + " maxblock=" + senderMaxBlockLength;
             return ret;
         }
     }
@@ -52,10 +52,7 @@ public abstract class PeerHandshakeHandler extends LengthFieldBasedFrameDecoder
     }
 
     private void addMessageHandlers(@Nonnull ChannelPipeline pipeline, @Nonnull PeerMessageListener listener) {
-        // TODO: Merge LengthFieldPrepender into PeerMessageCodec and use only a PeerFrameDecoder here.
-        pipeline.addLast(new PeerFrameDecoder());
-        // pipeline.addLast(frameEncoder);
-        // pipeline.addLast(getFrameLogger());
+        // The codec frames and dispatches messages itself.
         pipeline.addLast(new PeerMessageCodec(listener));
         // pipeline.addLast(getMessageLogger());
         // pipeline.addLast(new PeerMessageTrafficShapingHandler());
@@ -20,11 +20,15 @@ import com.turn.ttorrent.client.PeerPieceProvider;
 import com.turn.ttorrent.client.io.PeerExtendedMessage.ExtendedType;
 import com.turn.ttorrent.protocol.TorrentUtils;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.FileRegion;
+import io.netty.util.ReferenceCounted;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.text.ParseException;
 import java.util.BitSet;
 import java.util.Map;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import org.slf4j.Logger;
@@ -130,6 +134,9 @@ public abstract class PeerMessage {
      */
     public static class KeepAliveMessage extends PeerMessage {
 
+        /** Shared by all senders and receivers; this message has no state. */
+        public static final KeepAliveMessage INSTANCE = new KeepAliveMessage();
+
         @Override
         public Type getType() {
             return Type.KEEP_ALIVE;
@@ -151,6 +158,9 @@ public abstract class PeerMessage {
      */
     public static class ChokeMessage extends PeerMessage {
 
+        /** Shared by all senders and receivers; this message has no state. */
+        public static final ChokeMessage INSTANCE = new ChokeMessage();
+
         @Override
         public Type getType() {
             return Type.CHOKE;
@@ -168,6 +178,9 @@ public abstract class PeerMessage {
      */
     public static class UnchokeMessage extends PeerMessage {
 
+        /** Shared by all senders and receivers; this message has no state. */
+        public static final UnchokeMessage INSTANCE = new UnchokeMessage();
+
         @Override
         public Type getType() {
             return Type.UNCHOKE;
@@ -185,6 +198,9 @@ public abstract class PeerMessage {
      */
     public static class InterestedMessage extends PeerMessage {
 
+        /** Shared by all senders and receivers; this message has no state. */
+        public static final InterestedMessage INSTANCE = new InterestedMessage();
+
         @Override
         public Type getType() {
             return Type.INTERESTED;
@@ -202,6 +218,9 @@ public abstract class PeerMessage {
      */
     public static class NotInterestedMessage extends PeerMessage {
 
+        /** Shared by all senders and receivers; this message has no state. */
+        public static final NotInterestedMessage INSTANCE = new NotInterestedMessage();
+
         @Override
         public Type getType() {
             return Type.NOT_INTERESTED;
@@ -384,9 +403,13 @@ public abstract class PeerMessage {
 
         public boolean answers(@Nonnull AbstractPieceMessage message) {
             Preconditions.checkNotNull(message, "Message was null.");
-            return getPiece() == message.getPiece()
-                    && getOffset() == message.getOffset()
-                    && getLength() == message.getLength();
+            return answers(message.getPiece(), message.getOffset(), message.getLength());
+        }
+
+        public boolean answers(int piece, int offset, int length) {
+            return getPiece() == piece
+                    && getOffset() == offset
+                    && getLength() == length;
         }
 
         @Override
@@ -443,18 +466,34 @@ public abstract class PeerMessage {
      */
     public static class PieceMessage extends AbstractPieceMessage {
 
-        private static final int BASE_SIZE = 9;
-        // TODO: Use a FileRegion.
-        private ByteBuffer block;
+        /* pp */ static final int BASE_SIZE = 9;
+        /**
+         * The block, if received or sent from memory. A received block is
+         * a retained slice of the frame it was read from.
+         */
+        private ByteBuf block;
+        /** The block, if sent from a file. */
+        private FileRegion region;
 
         public PieceMessage() {
         }
 
-        public PieceMessage(int piece, int offset, ByteBuffer block) {
+        public PieceMessage(int piece, int offset, @Nonnull ByteBuffer block) {
+            this(piece, offset, Unpooled.wrappedBuffer(block));
+        }
+
+        /** Sends the readable bytes of the given buffer, and releases it. */
+        public PieceMessage(int piece, int offset, @Nonnull ByteBuf block) {
             super(piece, offset);
             this.block = block;
         }
 
+        /** Sends the given region of a file, and releases it. */
+        public PieceMessage(int piece, int offset, @Nonnull FileRegion region) {
+            super(piece, offset);
+            this.region = region;
+        }
+
         @Override
         public Type getType() {
             return Type.PIECE;
@@ -462,33 +501,77 @@ public abstract class PeerMessage {
 
         @Override
         public int getLength() {
-            return getBlock().remaining();
+            if (region != null)
+                return (int) region.count();
+            return block.readableBytes();
+        }
+
+        /**
+         * Returns the block, or null if this message sends a {@link FileRegion}.
+         *
+         * The block of a received message is valid only until the message
+         * is released; the caller must copy anything it keeps.
+         */
+        @CheckForNull
+        public ByteBuf getBlock() {
+            return this.block;
         }
 
-        public ByteBuffer getBlock() {
-            return this.block;
+        /** Returns the block to send, as a {@link ByteBuf} or {@link FileRegion}. */
+        @Nonnull
+        public ReferenceCounted getContent() {
+            if (region != null)
+                return region;
+            return block;
+        }
+
+        /**
+         * Releases the block.
+         *
+         * {@link PeerMessageCodec}, which owns the frame of a received
+         * message, calls this once the listener returns, so a listener which
+         * keeps the block must retain it. The transport releases the block
+         * of a sent message.
+         */
+        public boolean release() {
+            return getContent().release();
         }
 
         @Override
         public void fromWire(ByteBuf in) {
             super.fromWire(in);
-            block = ByteBuffer.allocate(in.readableBytes());
-            in.readBytes(block);
-            block.flip();
-            // We can't do this because netty recycles the buffer.
-            // block = in.nioBuffer();
-            // in.readerIndex(in.writerIndex());
+            // The frame is ours, so we keep a slice of it rather than copying.
+            block = in.readSlice(in.readableBytes()).retain();
+        }
+
+        /**
+         * Writes the length field and everything but the block, for
+         * {@link PeerMessageCodec}, which writes the block separately.
+         */
+        /* pp */ void toWireHeader(@Nonnull ByteBuf out) throws IOException {
+            out.writeInt(BASE_SIZE + getLength());
+            toWire(out, null, false);
         }
 
         @Override
         public void toWire(ByteBuf out, Map<? extends ExtendedType, ? extends Byte> extendedTypes) throws IOException {
+            toWire(out, extendedTypes, true);
+        }
+
+        private void toWire(@Nonnull ByteBuf out, Map<? extends ExtendedType, ? extends Byte> extendedTypes, boolean withBlock) throws IOException {
             super.toWire(out, extendedTypes);
-            out.writeBytes(block);
+            if (withBlock) {
+                if (block == null)
+                    throw new IOException("Cannot copy a FileRegion into a buffer.");
+                out.writeBytes(block, block.readerIndex(), block.readableBytes());
+            }
         }
 
         @Override
         public String toString() {
-            return super.toString() + " " + TorrentUtils.toString(block, 16);
+            if (region != null)
+                return super.toString() + " " + region;
+            return super.toString() + " " + TorrentUtils.toString(block.nioBuffer(), 16);
         }
     }
 
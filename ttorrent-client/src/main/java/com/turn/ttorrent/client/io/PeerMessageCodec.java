@@ -16,9 +16,14 @@
 package com.turn.ttorrent.client.io;
 
 import com.turn.ttorrent.client.peer.PeerMessageListener;
+import com.turn.ttorrent.client.peer.PieceHandler;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.ByteToMessageCodec;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.ReferenceCounted;
 import java.io.IOException;
 import java.util.List;
 import javax.annotation.Nonnull;
@@ -26,6 +31,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Frames, decodes and dispatches incoming peer messages, and encodes outgoing
+ * ones.
+ *
+ * <p>
+ * Each frame is parsed in place in the cumulated input, and handed to the
+ * {@link PeerMessageListener} as soon as it is read, so messages are handled
+ * in the order in which they arrived. The stateless messages are shared
+ * singletons, and HAVE, REQUEST and CANCEL are passed to the listener as
+ * fields, so the common small messages allocate nothing. Other messages are
+ * read from a slice of their frame; a PIECE message retains a slice of the
+ * input, which is released once the listener returns.
+ * </p>
  *
  * @author shevek
  */
@@ -33,52 +50,90 @@ import org.slf4j.LoggerFactory;
 public class PeerMessageCodec extends ByteToMessageCodec<PeerMessage> {
 
     private static final Logger LOG = LoggerFactory.getLogger(PeerMessageCodec.class);
+    /** Room for a PIECE message carrying the largest negotiated block. */
+    /* pp */ static final int MAX_FRAME_LENGTH = 2 * PieceHandler.MAX_NEGOTIATED_BLOCK_SIZE;
+    /** The length of a HAVE message, after the length field. */
+    private static final int HAVE_LENGTH = 1 + 4;
+    /** The length of a REQUEST or CANCEL message, after the length field. */
+    private static final int REQUEST_LENGTH = 1 + 4 + 4 + 4;
     private final PeerMessageListener listener;
 
     public PeerMessageCodec(@Nonnull PeerMessageListener listener) {
         this.listener = listener;
     }
 
+    /**
+     * Decodes and dispatches at most one frame.
+     *
+     * {@link ByteToMessageCodec} calls this again for as long as it consumes
+     * input.
+     */
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf buf, List<Object> out) throws Exception {
-        if (buf.readableBytes() == 0) {
-            out.add(new PeerMessage.KeepAliveMessage());
+        if (buf.readableBytes() < PeerMessage.MESSAGE_LENGTH_FIELD_SIZE)
             return;
+        int index = buf.readerIndex();
+        int length = buf.getInt(index);
+        if (length < 0) {
+            discard(ctx, buf);
+            throw new CorruptedFrameException("Negative frame length " + length);
+        }
+        if (length > MAX_FRAME_LENGTH) {
+            discard(ctx, buf);
+            throw new TooLongFrameException("Frame length " + length + " exceeds " + MAX_FRAME_LENGTH);
         }
+        if (buf.readableBytes() < PeerMessage.MESSAGE_LENGTH_FIELD_SIZE + length)
+            return;
+        index += PeerMessage.MESSAGE_LENGTH_FIELD_SIZE;
+        buf.readerIndex(index + length);
 
-        byte type = buf.readByte();
+        if (length == 0) {
+            listener.handleMessage(PeerMessage.KeepAliveMessage.INSTANCE);
+            return;
+        }
 
-        PeerMessage message;
+        byte type = buf.getByte(index);
         switch (type) {
             case 0:
-                message = new PeerMessage.ChokeMessage();
-                break;
+                listener.handleMessage(PeerMessage.ChokeMessage.INSTANCE);
+                return;
             case 1:
-                message = new PeerMessage.UnchokeMessage();
-                break;
+                listener.handleMessage(PeerMessage.UnchokeMessage.INSTANCE);
+                return;
             case 2:
-                message = new PeerMessage.InterestedMessage();
-                break;
+                listener.handleMessage(PeerMessage.InterestedMessage.INSTANCE);
+                return;
             case 3:
-                message = new PeerMessage.NotInterestedMessage();
-                break;
+                listener.handleMessage(PeerMessage.NotInterestedMessage.INSTANCE);
+                return;
             case 4:
-                message = new PeerMessage.HaveMessage();
-                break;
+                checkLength(type, length, HAVE_LENGTH);
+                listener.handleHave(buf.getInt(index + 1));
+                return;
+            case 6:
+                checkLength(type, length, REQUEST_LENGTH);
+                listener.handleRequest(buf.getInt(index + 1), buf.getInt(index + 5), buf.getInt(index + 9));
+                return;
+            case 8:
+                checkLength(type, length, REQUEST_LENGTH);
+                listener.handleCancel(buf.getInt(index + 1), buf.getInt(index + 5), buf.getInt(index + 9));
+                return;
+        }
+
+        PeerMessage message;
+        int headerLength = 1;
+        switch (type) {
             case 5:
                 message = new PeerMessage.BitfieldMessage();
                 break;
-            case 6:
-                message = new PeerMessage.RequestMessage();
-                break;
             case 7:
                 message = new PeerMessage.PieceMessage();
                 break;
-            case 8:
-                message = new PeerMessage.CancelMessage();
-                break;
             case 20:
-                byte extendedType = buf.readByte(); // Throws on short packet. This is normal.
+                if (length < 2)
+                    throw new IOException("Badly framed extended message; length=" + length);
+                byte extendedType = buf.getByte(index + 1);
+                headerLength = 2;
                 switch (extendedType) {
                     case 0:
                         message = new PeerExtendedMessage.HandshakeMessage();
@@ -93,10 +148,55 @@ public class PeerMessageCodec extends ByteToMessageCodec<PeerMessage> {
             default:
                 throw new IOException("Unknown message type " + type);
         }
-        message.fromWire(buf);
-        out.add(message);
+        // A short frame throws from the slice, rather than reading into the next frame.
+        message.fromWire(buf.slice(index + headerLength, length - headerLength));
+        try {
+            listener.handleMessage(message);
+        } finally {
+            // A PIECE message holds a slice of the input.
+            if (message instanceof PeerMessage.PieceMessage)
+                ((PeerMessage.PieceMessage) message).release();
+        }
+    }
 
-        // if (buf.readableBytes() > 0) throw new IOException("Badly framed message " + message + "; remaining=" + buf.readableBytes());
+    /**
+     * Drops the input and closes the connection, as we can no longer find
+     * the next frame. Otherwise every later read would fail on the same
+     * header, while the cumulated input grew without bound.
+     */
+    private static void discard(@Nonnull ChannelHandlerContext ctx, @Nonnull ByteBuf buf) {
+        buf.skipBytes(buf.readableBytes());
+        ctx.close();
+    }
+
+    private static void checkLength(byte type, int length, int expected) throws IOException {
+        if (length != expected)
+            throw new IOException("Badly framed message type " + type + "; length=" + length + ", expected " + expected);
+    }
+
+    /**
+     * Writes a PIECE message as a header, followed by its {@link ByteBuf} or
+     * {@link io.netty.channel.FileRegion} block, so the block is never
+     * copied into the encoder's buffer.
+     */
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof PeerMessage.PieceMessage) {
+            PeerMessage.PieceMessage message = (PeerMessage.PieceMessage) msg;
+            ReferenceCounted content = message.getContent();
+            ByteBuf header = ctx.alloc().ioBuffer(PeerMessage.MESSAGE_LENGTH_FIELD_SIZE + PeerMessage.PieceMessage.BASE_SIZE);
+            try {
+                message.toWireHeader(header);
+            } catch (Exception e) {
+                header.release();
+                content.release();
+                throw e;
+            }
+            ctx.write(header, ctx.voidPromise());
+            ctx.write(content, promise);
+            return;
+        }
+        super.write(ctx, msg, promise);
     }
 
     @Override
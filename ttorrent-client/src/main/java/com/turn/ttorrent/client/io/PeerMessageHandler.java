@@ -23,6 +23,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Passes channel events to the {@link PeerMessageListener}.
+ *
+ * Messages are dispatched by the {@link PeerMessageCodec} as it decodes them.
  *
  * @author shevek
  */
@@ -35,13 +38,6 @@ public class PeerMessageHandler extends ChannelInboundHandlerAdapter {
         this.listener = listener;
     }
 
-    @Override
-    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        // LOG.info("Received " + msg + " for " + listener);
-        PeerMessage message = (PeerMessage) msg;
-        listener.handleMessage(message);
-    }
-
     @Override
     public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
         if (ctx.channel().isOpen())
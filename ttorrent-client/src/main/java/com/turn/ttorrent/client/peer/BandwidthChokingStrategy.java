@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.peer;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnegative;
+import javax.annotation.concurrent.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tit-for-tat, with the number of upload slots sized to our upload capacity.
+ *
+ * <p>
+ * A fixed number of slots leaves a fast link idle. After each round, if
+ * every slot was in use and the unchoked peers averaged at least the
+ * minimum slot rate, the link has room to spare, and we add a slot. If they
+ * averaged less than half of it, the link is saturated, and we remove one.
+ * The slot count thus settles where the measured upload rate stops growing.
+ * </p>
+ *
+ * @author shevek
+ */
+public class BandwidthChokingStrategy extends TitForTatChokingStrategy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BandwidthChokingStrategy.class);
+    /** Bytes per second. */
+    public static final double DEFAULT_MIN_SLOT_RATE = 512 * 1024;
+    public static final int DEFAULT_MAX_UPLOAD_SLOTS = 256;
+    private final int minUploadSlots;
+    private final int maxUploadSlots;
+    private final double minSlotRate;
+    @GuardedBy("lock")
+    private int uploadSlots;
+    private final Object lock = new Object();
+
+    /**
+     * @param minSlotRate The upload rate, in bytes per second, which we
+     * would like to give each unchoked peer.
+     */
+    public BandwidthChokingStrategy(@Nonnegative int minUploadSlots, @Nonnegative int maxUploadSlots, @Nonnegative double minSlotRate) {
+        super(minUploadSlots);
+        this.minUploadSlots = minUploadSlots;
+        this.maxUploadSlots = Math.max(minUploadSlots, maxUploadSlots);
+        this.minSlotRate = minSlotRate;
+        this.uploadSlots = minUploadSlots;
+    }
+
+    public BandwidthChokingStrategy() {
+        this(DEFAULT_UPLOAD_SLOTS, DEFAULT_MAX_UPLOAD_SLOTS, DEFAULT_MIN_SLOT_RATE);
+    }
+
+    @Override
+    protected int getUploadSlots() {
+        synchronized (lock) {
+            return uploadSlots;
+        }
+    }
+
+    @Override
+    public Set<PeerHandler> getUnchokedPeers(List<PeerHandler> candidates, boolean seeding, boolean optimistic, Random random) {
+        int unchoked = 0;
+        double rate = 0;
+        for (PeerHandler peer : candidates) {
+            if (peer.isChoked(0))
+                continue;
+            unchoked++;
+            rate += peer.getULRate().getRate(TimeUnit.SECONDS);
+        }
+
+        synchronized (lock) {
+            int prev = uploadSlots;
+            if (unchoked >= uploadSlots && rate >= unchoked * minSlotRate)
+                uploadSlots = Math.min(uploadSlots + 1, maxUploadSlots);
+            else if (unchoked > 0 && rate < unchoked * minSlotRate / 2)
+                uploadSlots = Math.max(uploadSlots - 1, minUploadSlots);
+            if (uploadSlots != prev && LOG.isDebugEnabled())
+                LOG.debug("Upload rate {}/s over {} unchoked peer(s); upload slots {} -> {}.", new Object[]{
+                    (long) rate, unchoked, prev, uploadSlots
+                });
+        }
+
+        return super.getUnchokedPeers(candidates, seeding, optimistic, random);
+    }
+}
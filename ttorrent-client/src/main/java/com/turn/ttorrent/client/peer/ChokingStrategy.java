@@ -0,0 +1,60 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.peer;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * Chooses which interested peers we upload to.
+ *
+ * <p>
+ * The {@link com.turn.ttorrent.client.SwarmHandler} runs a choking round
+ * every few seconds, unchokes the peers chosen by the strategy, and chokes
+ * every other peer. Peers which are not interested in us are always choked.
+ * </p>
+ *
+ * @see com.turn.ttorrent.client.TorrentHandler#setChokingStrategy(ChokingStrategy)
+ * @author shevek
+ */
+public interface ChokingStrategy {
+
+    /**
+     * Returns the number of connected peers below which a new peer is
+     * unchoked as soon as it connects, without waiting for the next round.
+     */
+    @Nonnegative
+    public int getFastUnchokeCount();
+
+    /**
+     * Chooses the peers to unchoke in this round.
+     *
+     * @param candidates The connected peers which are interested in us. May
+     * be reordered.
+     * @param seeding True if we have every piece we want, so we only upload.
+     * @param optimistic True if an optimistic unchoke is due.
+     * @return The peers to unchoke. Every other candidate is choked.
+     */
+    @Nonnull
+    public Set<PeerHandler> getUnchokedPeers(
+            @Nonnull List<PeerHandler> candidates,
+            boolean seeding,
+            boolean optimistic,
+            @Nonnull Random random);
+}
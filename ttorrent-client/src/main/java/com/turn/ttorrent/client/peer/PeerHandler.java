@@ -25,7 +25,10 @@ import com.turn.ttorrent.protocol.SuppressWarnings;
 import com.turn.ttorrent.protocol.TorrentUtils;
 import com.turn.ttorrent.tracker.client.PeerAddressProvider;
 import io.netty.channel.Channel;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.FileRegion;
+import io.netty.channel.socket.SocketChannel;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
@@ -41,11 +44,14 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLongArray;
 import javax.annotation.CheckForNull;
 import javax.annotation.CheckForSigned;
@@ -84,10 +90,13 @@ import org.slf4j.LoggerFactory;
 public class PeerHandler implements PeerMessageListener {
 
     private static final Logger LOG = LoggerFactory.getLogger(PeerHandler.class);
-    public static final int MAX_REQUESTS_SENT = 100;
+    public static final int MAX_REQUESTS_SENT = 250;
     public static final int MIN_REQUESTS_SENT = 16;
     public static final int MAX_REQUESTS_RCVD = 100;
+    /** The request timeout until we have measured the peer's round trip, and its upper bound. */
     public static final long MAX_REQUESTS_TIME = TimeUnit.SECONDS.toMillis(32);
+    /** The least time for which a peer must send us nothing before we consider it to be snubbing us. */
+    public static final long MIN_SNUB_TIME = TimeUnit.SECONDS.toMillis(5);
     public static final long MIN_PEX_DELAY = TimeUnit.SECONDS.toMillis(72); // Protocol requires minimum 60.
     private static final Map<PeerExtendedMessage.ExtendedType, Byte> DEFAULT_EXTENDED_MESSAGE_TYPE_MAP = Collections.singletonMap(PeerExtendedMessage.ExtendedType.handshake, (byte) 0);
 
@@ -108,6 +117,13 @@ public class PeerHandler implements PeerMessageListener {
     private final PeerActivityListener activityListener;
     @GuardedBy("lock")
     private final BitSet availablePieces;
+    /** The cardinality of {@link #availablePieces}, readable without the lock. */
+    private volatile int availablePieceCount = 0;
+    /** The available pieces which we have neither completed nor skipped. */
+    @GuardedBy("lock")
+    private final BitSet interestingPieces;
+    /** The cardinality of {@link #interestingPieces}, readable without the lock. */
+    private volatile int interestingPieceCount = 0;
     @GuardedBy("lock")
     private Map<PeerExtendedMessage.ExtendedType, Byte> extendedMessageTypes = DEFAULT_EXTENDED_MESSAGE_TYPE_MAP;
     // TODO: Convert to AtomicLongArray and allow some hysteresis on flag changes.
@@ -116,6 +132,7 @@ public class PeerHandler implements PeerMessageListener {
     // private final BlockingQueue<PeerMessage.RequestMessage> requests = new ArrayBlockingQueue<PeerMessage.RequestMessage>(SharingPeer.MAX_REQUESTS_SENT);
     private final Rate download = new Rate(60);
     private final Rate upload = new Rate(60);
+    private final long connectionTime = System.currentTimeMillis();
     private final Object lock = new Object();
 
     private static enum SendState {
@@ -130,8 +147,13 @@ public class PeerHandler implements PeerMessageListener {
     // @GuardedBy("lock")   // It's now a concurrent structure.
     // The limit should be irrelevant, it's just to protect us.
     private final BlockingQueue<PieceHandler.AnswerableRequestMessage> requestsSent = new LinkedBlockingQueue<PieceHandler.AnswerableRequestMessage>(MAX_REQUESTS_SENT * 2);
-    @GuardedBy("lock")
-    private int requestsSentLimit = MAX_REQUESTS_SENT;
+    private final RequestWindow requestWindow;
+    /** The length of the requests we send, as negotiated in the extended handshake. */
+    private volatile int requestLength;
+    /** The time at which we last received a block. */
+    private volatile long blockReceivedAt = 0;
+    /** True if the peer has stopped sending us blocks; we then send it one request at a time. */
+    private volatile boolean snubbed = false;
     @GuardedBy("lock")
     private long requestsExpiredAt = 0;
     // @GuardedBy("lock")   // Also now a concurrent structure.
@@ -140,6 +162,24 @@ public class PeerHandler implements PeerMessageListener {
     private final Set<SocketAddress> peersExchanged = new HashSet<SocketAddress>();
     @GuardedBy("lock")
     private long peersExchangedAt = 0;
+    /** Pieces we have completed, to announce in the next batch of HAVE messages. */
+    private final Queue<Integer> havesPending = new ConcurrentLinkedQueue<Integer>();
+    private final AtomicBoolean havesScheduled = new AtomicBoolean(false);
+    private final Runnable havesTask = new Runnable() {
+        @Override
+        public void run() {
+            flushHaves();
+        }
+    };
+    /** Pieces we have completed which the peer already had, for lazy HAVE messages. */
+    @GuardedBy("lock")
+    private final BitSet havesSuppressed = new BitSet();
+    @GuardedBy("lock")
+    private long havesSuppressedAt = 0;
+    /** The interval between lazy HAVE messages, or 0 never to send them. */
+    private volatile long lazyHaveInterval = 0;
+    /** True if we hide our pieces from this peer, as a super-seed. */
+    private volatile boolean superSeeding = false;
 
     /**
      * Create a new sharing peer on a given torrent.
@@ -170,6 +210,9 @@ public class PeerHandler implements PeerMessageListener {
         this.activityListener = activityListener;
 
         this.availablePieces = new BitSet(pieceProvider.getPieceCount());
+        this.interestingPieces = new BitSet(pieceProvider.getPieceCount());
+        this.requestWindow = new RequestWindow(pieceProvider.getBlockLength(), MIN_REQUESTS_SENT, MAX_REQUESTS_SENT);
+        this.requestLength = pieceProvider.getBlockLength();
 
         setFlag(Flag.CHOKING, true);
         setFlag(Flag.INTERESTING, false);
@@ -203,6 +246,11 @@ public class PeerHandler implements PeerMessageListener {
         return channel.localAddress();
     }
 
+    @Nonnull
+    public Channel getChannel() {
+        return channel;
+    }
+
     @Nonnull
     public SocketAddress getRemoteAddress() {
         return channel.remoteAddress();
@@ -260,8 +308,50 @@ public class PeerHandler implements PeerMessageListener {
 
     @Nonnegative
     public int getAvailablePieceCount() {
+        return availablePieceCount;
+    }
+
+    /** Returns true if this peer has every piece, and so wants nothing from anyone. */
+    public boolean isSeed() {
+        return availablePieceCount >= pieceProvider.getPieceCount();
+    }
+
+    /** Returns the time at which this PeerHandler was created. */
+    public long getConnectionTime() {
+        return connectionTime;
+    }
+
+    /**
+     * Returns the pieces this peer has, and we have neither completed nor
+     * skipped.
+     *
+     * @return A clone of the interesting pieces of this peer.
+     */
+    @Nonnull
+    public BitSet getInterestingPieces() {
         synchronized (lock) {
-            return availablePieces.cardinality();
+            return (BitSet) interestingPieces.clone();
+        }
+    }
+
+    @Nonnegative
+    public int getInterestingPieceCount() {
+        return interestingPieceCount;
+    }
+
+    /**
+     * Tells this peer that we have completed the given piece, so it is no
+     * longer interesting.
+     *
+     * The caller must mark the piece completed in the {@link PeerPieceProvider}
+     * first, so that a concurrent HAVE cannot make it interesting again.
+     */
+    public void removeInterestingPiece(@Nonnegative int piece) {
+        synchronized (lock) {
+            if (interestingPieces.get(piece)) {
+                interestingPieces.clear(piece);
+                interestingPieceCount--;
+            }
         }
     }
 
@@ -307,6 +397,36 @@ public class PeerHandler implements PeerMessageListener {
         return requestsSent.size();
     }
 
+    /**
+     * Returns the length of the requests to send to this peer.
+     *
+     * This is the torrent's block length, unless this peer negotiated a
+     * larger one.
+     */
+    @Nonnegative
+    public int getRequestLength() {
+        return requestLength;
+    }
+
+    /**
+     * Returns true if this peer has stopped answering our requests.
+     *
+     * A snubbed peer loses its outstanding requests to other peers, and is
+     * sent one request at a time, from a piece no other peer is working on,
+     * until it answers one.
+     */
+    public boolean isSnubbed() {
+        return snubbed;
+    }
+
+    /**
+     * @return the window which limits the number of requests sent to this peer
+     */
+    @Nonnull
+    public RequestWindow getRequestWindow() {
+        return requestWindow;
+    }
+
     /**
      * Choke this peer.
      *
@@ -319,7 +439,7 @@ public class PeerHandler implements PeerMessageListener {
         if (setFlag(Flag.CHOKED, true)) {
             if (LOG.isTraceEnabled())
                 LOG.trace("{}: Choking {}", getLocalPeerName(), this);
-            send(new PeerMessage.ChokeMessage(), true);
+            send(PeerMessage.ChokeMessage.INSTANCE, true);
         }
     }
 
@@ -335,7 +455,7 @@ public class PeerHandler implements PeerMessageListener {
         if (setFlag(Flag.CHOKED, false)) {
             if (LOG.isTraceEnabled())
                 LOG.trace("{}: Unchoking {}", getLocalPeerName(), this);
-            send(new PeerMessage.UnchokeMessage(), true);
+            send(PeerMessage.UnchokeMessage.INSTANCE, true);
             // LOG.info("{}: Unchoking {}", getLocalPeerName(), this);
         }
     }
@@ -348,7 +468,7 @@ public class PeerHandler implements PeerMessageListener {
         if (setFlag(Flag.INTERESTING, true)) {
             if (LOG.isTraceEnabled())
                 LOG.trace("{}: Telling {} we're interested.", getLocalPeerName(), this);
-            send(new PeerMessage.InterestedMessage(), true);
+            send(PeerMessage.InterestedMessage.INSTANCE, true);
         }
     }
 
@@ -356,7 +476,7 @@ public class PeerHandler implements PeerMessageListener {
         if (setFlag(Flag.INTERESTING, false)) {
             if (LOG.isTraceEnabled())
                 LOG.trace("{}: Telling {} we're no longer interested.", getLocalPeerName(), this);
-            send(new PeerMessage.NotInterestedMessage(), true);
+            send(PeerMessage.NotInterestedMessage.INSTANCE, true);
         }
     }
 
@@ -406,15 +526,86 @@ public class PeerHandler implements PeerMessageListener {
             channel.write(message, channel.voidPromise());
     }
 
+    /**
+     * Announces a piece we have completed.
+     *
+     * HAVE messages are batched per turn of the channel's event loop, and
+     * written with a single flush. If the peer already has the piece, we
+     * send nothing, or a lazy HAVE if {@link #setLazyHaveInterval(long)}
+     * says so.
+     */
+    public void sendHave(@Nonnegative int piece) {
+        synchronized (lock) {
+            if (availablePieces.get(piece)) {
+                if (lazyHaveInterval > 0)
+                    havesSuppressed.set(piece);
+                return;
+            }
+        }
+        havesPending.add(piece);
+        scheduleHaves();
+    }
+
+    private void scheduleHaves() {
+        if (havesScheduled.compareAndSet(false, true))
+            channel.eventLoop().execute(havesTask);
+    }
+
+    private void flushHaves() {
+        // Clear this first, so that a HAVE added while we drain schedules another batch.
+        havesScheduled.set(false);
+        boolean flush = false;
+        for (;;) {
+            Integer piece = havesPending.poll();
+            if (piece == null)
+                break;
+            send(new PeerMessage.HaveMessage(piece), false);
+            flush = true;
+        }
+        if (flush)
+            channel.flush();
+    }
+
+    @Nonnegative
+    public long getLazyHaveInterval() {
+        return lazyHaveInterval;
+    }
+
+    /**
+     * Sets the interval, in milliseconds, at which we send this peer HAVE
+     * messages for pieces it already had when we completed them.
+     *
+     * A setting of 0, the default, never sends them.
+     */
+    public void setLazyHaveInterval(@Nonnegative long lazyHaveInterval) {
+        this.lazyHaveInterval = lazyHaveInterval;
+    }
+
+    public boolean isSuperSeeding() {
+        return superSeeding;
+    }
+
+    /**
+     * Hides our pieces from this peer, sending it an empty bitfield. We then
+     * announce the pieces we choose with {@link #sendHave(int)}.
+     *
+     * Must be called before the bitfield is sent.
+     *
+     * @see SuperSeeder
+     */
+    public void setSuperSeeding(boolean superSeeding) {
+        this.superSeeding = superSeeding;
+    }
+
     @GuardedBy("lock")
     private static <T extends PeerMessage.RequestMessage> T removeRequestMessage(
-            @Nonnull PeerMessage.AbstractPieceMessage response,
+            int piece, int offset, int length,
             @Nonnull Iterator<T> requests) {
         // int count = 0;
         T out = null;
         while (requests.hasNext()) {
             T request = requests.next();
-            if (response.answers(request)) {
+            if (request.answers(piece, offset, length)) {
                 out = request;
                 requests.remove();
                 // count++;
@@ -438,22 +629,33 @@ public class PeerHandler implements PeerMessageListener {
      */
     @CheckForNull
     private PieceHandler.AnswerableRequestMessage removeRequestSent(@Nonnull PeerMessage.PieceMessage response) {
-        return removeRequestMessage(response, requestsSent.iterator());
+        PieceHandler.AnswerableRequestMessage out = null;
+        for (PieceHandler.AnswerableRequestMessage request : requestsSent) {
+            // Only the thread which actually removes the request may unregister it.
+            if (response.answers(request) && requestsSent.remove(request)) {
+                pieceProvider.removeRequestSent(request);
+                out = request;
+            }
+        }
+        return out;
     }
 
-    private void removeRequestReceived(@Nonnull PeerMessage.CancelMessage request) {
-        removeRequestMessage(request, requestsReceived.iterator());
+    private void removeRequestReceived(int piece, int offset, int length) {
+        removeRequestMessage(piece, offset, length, requestsReceived.iterator());
     }
 
     /**
      * Notifies the {@link PieceProvider} that requests that we sent have been
      * rejected and will not be answered.
      *
-     * @param requests a subset of the requests sent by this peer
+     * @param requests a subset of the requests sent by this peer, already
+     * removed from {@link #requestsSent}
      * @param reason the reason to log that these requests are being rejected
      */
     private void rejectRequests(@Nonnull Collection<? extends PieceHandler.AnswerableRequestMessage> requests, @Nonnull String reason) {
         // LOG.debug("{}: Rejecting {} requests.", provider.getLocalPeerName(), requests.size());
+        for (PieceHandler.AnswerableRequestMessage request : requests)
+            pieceProvider.removeRequestSent(request);
         if (!requests.isEmpty()) {
             int count = pieceProvider.addRequestTimeout(requests);
             if (LOG.isDebugEnabled())
@@ -470,6 +672,21 @@ public class PeerHandler implements PeerMessageListener {
         List<PieceHandler.AnswerableRequestMessage> requestsRejected = new ArrayList<PieceHandler.AnswerableRequestMessage>();
         requestsSent.drainTo(requestsRejected);
         rejectRequests(requestsRejected, reason);
+        cancelRequestsSource();
+    }
+
+    /**
+     * Releases the claims of the requests we took from the
+     * {@link PeerPieceProvider} but never sent, such as retried requests.
+     */
+    private void cancelRequestsSource() {
+        Iterator<PieceHandler.AnswerableRequestMessage> source;
+        synchronized (lock) {
+            source = requestsSource;
+            requestsSource = Iterators.emptyIterator();
+        }
+        while (source.hasNext())
+            source.next().cancel();
     }
 
     /**
@@ -497,6 +714,42 @@ public class PeerHandler implements PeerMessageListener {
         return requestsRejected.size();
     }
 
+    /**
+     * Cancels any request we have sent within the given block, because a copy
+     * has arrived from another peer.
+     *
+     * <p>
+     * Unlike {@link #cancelRequestsSent(java.lang.String)}, the cancelled
+     * requests are not offered for retry.
+     * </p>
+     *
+     * @return the number of requests cancelled.
+     */
+    public int cancelRequestSent(@Nonnegative int piece, @Nonnegative int offset, @Nonnegative int length) {
+        int count = 0;
+        for (PieceHandler.AnswerableRequestMessage request : requestsSent) {
+            // The block may span several of our requests, if it came from a peer with a larger block length.
+            if (request.getPiece() != piece || request.getOffset() < offset || request.getOffset() + request.getLength() > offset + length)
+                continue;
+            // Only the thread which actually removes the request may unregister it.
+            if (!requestsSent.remove(request))
+                continue;
+            pieceProvider.removeRequestSent(request);
+            request.cancel();
+            send(new PeerMessage.CancelMessage(request), false);
+            count++;
+        }
+        if (count > 0) {
+            channel.flush();
+            if (LOG.isTraceEnabled())
+                LOG.trace("{}: Cancelled {} duplicate request(s) for {}[{}@{}] on {}.", new Object[]{
+                    getLocalPeerName(),
+                    count, piece, length, offset, this
+                });
+        }
+        return count;
+    }
+
     private boolean isWritable(@Nonnull Channel c, @Nonnull String message) {
         if (c.isWritable())
             return true;
@@ -531,7 +784,8 @@ public class PeerHandler implements PeerMessageListener {
                         if (!isWritable(c, "bitfield"))
                             return;
                         flush = true;
-                        send(new PeerMessage.BitfieldMessage(pieceProvider.getCompletedPieces()), false);
+                        BitSet bitfield = superSeeding ? new BitSet() : pieceProvider.getCompletedPieces();
+                        send(new PeerMessage.BitfieldMessage(bitfield), false);
                         sent.add(SendState.BITFIELD);
                     }
                 }
@@ -544,8 +798,13 @@ public class PeerHandler implements PeerMessageListener {
                         if (!isWritable(c, "extended handshake"))
                             return;
                         flush = true;
+                        // The key is not standard, so only send it if larger blocks are enabled.
+                        int maxBlockLength = pieceProvider.getMaxBlockLength();
+                        if (maxBlockLength <= pieceProvider.getBlockLength())
+                            maxBlockLength = -1;
                         PeerExtendedMessage.HandshakeMessage message = new PeerExtendedMessage.HandshakeMessage(
                                 MAX_REQUESTS_RCVD,
+                                maxBlockLength,
                                 addressProvider.getLocalAddresses());
                         // We could add the InetSocketAddresses chosen by the HandshakeMessage to peersExchanged.
                         send(message, false);
@@ -594,36 +853,68 @@ public class PeerHandler implements PeerMessageListener {
                     send(new PeerExtendedMessage.UtPexMessage(peers, Collections.<InetSocketAddress>emptyList()), false);
                 }
 
-                BitSet interesting = getAvailablePieces();
-                pieceProvider.andNotCompletedPieces(interesting);
                 INTERESTING:
                 {
-                    if (interesting.isEmpty())
+                    if (interestingPieceCount == 0)
                         notInteresting();
                     else
                         interesting();
                     // This might have flushed.
                 }
 
+                // Pieces not to request in this run, allocated only if there are any.
+                BitSet uninteresting = null;
+
+                // The timeout adapts to the round trip we have seen from this peer.
+                long requestTimeout = requestWindow.getRequestTimeout(MAX_REQUESTS_TIME);
+
+                // Gives away the requests of a peer which has stopped sending.
+                SNUB:
+                {
+                    PieceHandler.AnswerableRequestMessage requestOldest = requestsSent.peek();
+                    if (requestOldest == null)
+                        break SNUB;
+                    long then = now - Math.max(requestTimeout, MIN_SNUB_TIME);
+                    if (requestOldest.getRequestTime() >= then || blockReceivedAt >= then)
+                        break SNUB;
+                    if (!snubbed) {
+                        snubbed = true;
+                        if (LOG.isDebugEnabled())
+                            LOG.debug("{}: Peer {} sent nothing since {}; snubbed.", new Object[]{
+                                getLocalPeerName(), this, blockReceivedAt
+                            });
+                    }
+                    // Don't ask this peer for the same pieces again.
+                    uninteresting = new BitSet();
+                    for (PieceHandler.AnswerableRequestMessage requestSent : requestsSent)
+                        uninteresting.set(requestSent.getPiece());
+                    cancelRequestsSent("peer snubbed us");
+                    // Nor the rest of a piece it was working on.
+                    cancelRequestsSource();
+                }
+
                 // Expires dead requests, and marks live ones uninteresting.
                 EXPIRE:
                 {
                     if (LOG.isTraceEnabled())
                         LOG.trace("{}: requestsExpiredAt={}, now={}, comp={}, diff={}", new Object[]{
                             getLocalPeerName(),
-                            requestsExpiredAt, now, now - (MAX_REQUESTS_TIME >> 2),
-                            (now - (MAX_REQUESTS_TIME >> 2)) - requestsExpiredAt
+                            requestsExpiredAt, now, now - (requestTimeout >> 2),
+                            (now - (requestTimeout >> 2)) - requestsExpiredAt
                         });
-                    if (requestsExpiredAt < now - (MAX_REQUESTS_TIME >> 2)) {
+                    // As when we are a seed.
+                    if (requestsSent.isEmpty())
+                        break EXPIRE;
+                    if (requestsExpiredAt < now - (requestTimeout >> 2)) {
                         // LOG.debug("{}: Running request expiry.", provider.getLocalPeerName());
-                        long then = now - MAX_REQUESTS_TIME;
+                        long then = now - requestTimeout;
                         List<PieceHandler.AnswerableRequestMessage> requestsExpired = new ArrayList<PieceHandler.AnswerableRequestMessage>();
                         Iterator<PieceHandler.AnswerableRequestMessage> it = requestsSent.iterator();
                         while (it.hasNext()) {
                             PieceHandler.AnswerableRequestMessage requestSent = it.next();
                             if (LOG.isTraceEnabled())
                                 LOG.trace("{}: Awaiting sent message {} until {}", new Object[]{
-                                    getLocalPeerName(), requestSent, MAX_REQUESTS_TIME
+                                    getLocalPeerName(), requestSent, requestTimeout
                                 });
                             if (requestSent.getRequestTime() < then) {
                                 if (LOG.isDebugEnabled())
@@ -631,16 +922,19 @@ public class PeerHandler implements PeerMessageListener {
                                         getLocalPeerName(),
                                         getRemoteAddress(), requestSent
                                     });
-                                requestsExpired.add(requestSent);
-                                it.remove();
+                                if (requestsSent.remove(requestSent))
+                                    requestsExpired.add(requestSent);
                             } else {
-                                interesting.clear(requestSent.getPiece());
+                                if (uninteresting == null)
+                                    uninteresting = new BitSet();
+                                uninteresting.set(requestSent.getPiece());
                             }
                         }
                         if (!requestsExpired.isEmpty()) {
                             rejectRequests(requestsExpired, "requests expired");
-                            requestsSentLimit = Math.max((int) (requestsSentLimit * 0.8), MIN_REQUESTS_SENT);
-                            LOG.debug("{}: Lowered requestsSentLimit to {}", getLocalPeerName(), requestsSentLimit);
+                            requestWindow.addRequestsExpired();
+                            if (LOG.isDebugEnabled())
+                                LOG.debug("{}: Lowered request window to {}", getLocalPeerName(), requestWindow);
                         }
                         requestsExpiredAt = now;
                     }
@@ -649,6 +943,12 @@ public class PeerHandler implements PeerMessageListener {
                 // Makes new requests.
                 REQUEST:
                 {
+                    // Nothing to download from this peer, as when we are a seed.
+                    if (interestingPieceCount == 0 && !requestsSource.hasNext())
+                        break REQUEST;
+                    int requestsSentLimit = snubbed ? 1 : requestWindow.getSize();
+                    // Copied only when we make requests, as we clear each piece we request from.
+                    BitSet interesting = null;
                     while (requestsSent.size() < requestsSentLimit) {
                         // A choke message can come in while we are iterating.
                         if (isChoking()) {
@@ -669,6 +969,12 @@ public class PeerHandler implements PeerMessageListener {
                             return;
                         }
 
+                        if (interesting == null) {
+                            interesting = (BitSet) interestingPieces.clone();
+                            if (uninteresting != null)
+                                interesting.andNot(uninteresting);
+                        }
+
                         // Search for a block we can request. Ideally, this iterates 0 or 1 times.
                         while (!requestsSource.hasNext()) {
                             // This calls a significant piece of infrastructure elsewhere,
@@ -695,9 +1001,13 @@ public class PeerHandler implements PeerMessageListener {
                             });
                         interesting.clear(request.getPiece());  // Don't pick up the same piece on the next iteration.
                         request.setRequestTime();
+                        pieceProvider.addRequestSent(request);
                         requestsSent.add(request);
                         flush = true;
                         send(request, false);
+                        // A probe leaves the rest of its piece to other peers.
+                        if (snubbed)
+                            cancelRequestsSource();
                     }
                 }
             }
@@ -721,14 +1031,7 @@ public class PeerHandler implements PeerMessageListener {
 
                 // At this point we agree to send the requested piece block to
                 // the remote peer, so let's queue a message with that block
-                ByteBuffer block = ByteBuffer.allocate(request.getLength());
-                pieceProvider.readBlock(block, request.getPiece(), request.getOffset());
-                block.flip();
-                // ByteBuffer block = piece.read(request.getOffset(), request.getLength());
-                PeerMessage.PieceMessage response = new PeerMessage.PieceMessage(
-                        request.getPiece(),
-                        request.getOffset(),
-                        block);
+                PeerMessage.PieceMessage response = newPieceMessage(request);
                 // response = provider.getInstrumentation().
                 flush = true;
                 send(response, false);
@@ -744,6 +1047,39 @@ public class PeerHandler implements PeerMessageListener {
         }
     }
 
+    /**
+     * Reads the requested block without copying it onto the heap.
+     *
+     * If the block is stored in a single file, and our transport can send
+     * from a file, we send a {@link FileRegion}. Otherwise we read the block
+     * into a pooled direct buffer, which the transport releases once it is
+     * written.
+     */
+    @Nonnull
+    private PeerMessage.PieceMessage newPieceMessage(@Nonnull PeerMessage.RequestMessage request) throws IOException {
+        int piece = request.getPiece();
+        int offset = request.getOffset();
+        int length = request.getLength();
+        // A local channel, in tests, passes a FileRegion to the remote pipeline, which can't decode it.
+        if (channel instanceof SocketChannel) {
+            FileRegion region = pieceProvider.getBlockRegion(piece, offset, length);
+            if (region != null)
+                return new PeerMessage.PieceMessage(piece, offset, region);
+        }
+        ByteBuf block = channel.alloc().directBuffer(length, length);
+        try {
+            pieceProvider.readBlock(block.nioBuffer(0, length), piece, offset);
+        } catch (IOException e) {
+            block.release();
+            throw e;
+        } catch (RuntimeException e) {
+            block.release();
+            throw e;
+        }
+        block.writerIndex(length);
+        return new PeerMessage.PieceMessage(piece, offset, block);
+    }
+
     /**
      * Handle an incoming message from this peer.
      *
@@ -787,15 +1123,8 @@ public class PeerHandler implements PeerMessageListener {
                 break;
 
             case HAVE: {
-                // Record this peer has the given piece
                 PeerMessage.HaveMessage message = (PeerMessage.HaveMessage) msg;
-
-                synchronized (lock) {
-                    availablePieces.set(message.getPiece());
-                }
-
-                activityListener.handlePieceAvailability(this, message.getPiece());
-                // run(); // We might now be interested, but we should get it in handleReadComplete.
+                handleHave(message.getPiece());
                 break;
             }
 
@@ -808,6 +1137,12 @@ public class PeerHandler implements PeerMessageListener {
                     prevAvailablePieces = getAvailablePieces();
                     availablePieces.clear();
                     availablePieces.or(message.getBitfield());
+                    availablePieceCount = availablePieces.cardinality();
+                    interestingPieces.clear();
+                    interestingPieces.or(availablePieces);
+                    pieceProvider.andNotCompletedPieces(interestingPieces);
+                    pieceProvider.andNotSkippedPieces(interestingPieces);
+                    interestingPieceCount = interestingPieces.cardinality();
                 }
 
                 // The copy from the message is independent, and thus threadsafe.
@@ -818,43 +1153,7 @@ public class PeerHandler implements PeerMessageListener {
 
             case REQUEST: {
                 PeerMessage.RequestMessage message = (PeerMessage.RequestMessage) msg;
-
-                // If we are choking from this peer and it still sends us
-                // requests, it is a violation of the BitTorrent protocol.
-                // Similarly, if the peer requests a piece we don't have, it
-                // is a violation of the BitTorrent protocol. In these
-                // situation, terminate the connection.
-                if (isChoked(2000)) {
-                    // TODO: This isn't synchronous. We need to remember WHEN we choked them.
-                    long choked = flags.get(Flag.CHOKED.ordinal());
-                    long now = System.currentTimeMillis();
-                    LOG.warn("{}: Peer {} ignored choking, terminating exchange; choked at {} ({} ago), now {}", new Object[]{
-                        getLocalPeerName(), this,
-                        choked, (now - choked), now
-                    });
-                    close("ignored choking");
-                    break;
-                }
-
-                // TODO: Ignore this condition for fast links.
-                if (message.getLength() > PieceHandler.MAX_BLOCK_SIZE) {
-                    LOG.warn("{}: Peer {} requested a block too big ({}), terminating exchange.", new Object[]{
-                        getLocalPeerName(), this,
-                        message.getLength()
-                    });
-                    close("requested huge block");
-                    break;
-                }
-
-                if (!requestsReceived.offer(message)) {
-                    LOG.warn("{}: Peer {} requested too many blocks; dropping {}", new Object[]{
-                        getLocalPeerName(),
-                        this, message
-                    });
-                    break;
-                }
-
-                // run();
+                handleRequest(message.getPiece(), message.getOffset(), message.getLength());
                 break;
             }
 
@@ -870,9 +1169,17 @@ public class PeerHandler implements PeerMessageListener {
                 // Remove the corresponding request from the request queue to
                 // make room for next block requests.
                 PieceHandler.AnswerableRequestMessage request = removeRequestSent(message);
+                blockReceivedAt = System.currentTimeMillis();
+                if (snubbed) {
+                    snubbed = false;
+                    if (LOG.isDebugEnabled())
+                        LOG.debug("{}: Peer {} sent a block; no longer snubbed.", getLocalPeerName(), this);
+                }
                 PieceHandler.Reception reception = PieceHandler.Reception.WAT;
-                if (request != null)
+                if (request != null) {
+                    requestWindow.addBlockReceived(request.getRequestTime(), blockLength, blockReceivedAt);
                     reception = request.answer(message);
+                }
                 else if (LOG.isTraceEnabled())
                     LOG.trace("{}: {}: Response received to unsent request: {}", new Object[]{
                         getLocalPeerName(),
@@ -895,7 +1202,7 @@ public class PeerHandler implements PeerMessageListener {
 
             case CANCEL: {
                 PeerMessage.CancelMessage message = (PeerMessage.CancelMessage) msg;
-                removeRequestReceived(message);
+                handleCancel(message.getPiece(), message.getOffset(), message.getLength());
                 break;
             }
 
@@ -911,12 +1218,97 @@ public class PeerHandler implements PeerMessageListener {
         }
     }
 
+    @Override
+    public void handleHave(int piece) throws IOException {
+        // Record this peer has the given piece
+        synchronized (lock) {
+            if (!availablePieces.get(piece)) {
+                availablePieces.set(piece);
+                availablePieceCount++;
+            }
+            // Checked under our lock, against removeInterestingPiece().
+            if (!interestingPieces.get(piece)
+                    && !pieceProvider.isCompletedPiece(piece)
+                    && !pieceProvider.isSkippedPiece(piece)) {
+                interestingPieces.set(piece);
+                interestingPieceCount++;
+            }
+        }
+
+        activityListener.handlePieceAvailability(this, piece);
+        // run(); // We might now be interested, but we should get it in handleReadComplete.
+    }
+
+    @Override
+    public void handleRequest(int piece, int offset, int length) throws IOException {
+        // If we are choking from this peer and it still sends us
+        // requests, it is a violation of the BitTorrent protocol.
+        // Similarly, if the peer requests a piece we don't have, it
+        // is a violation of the BitTorrent protocol. In these
+        // situation, terminate the connection.
+        if (isChoked(2000)) {
+            // TODO: This isn't synchronous. We need to remember WHEN we choked them.
+            long choked = flags.get(Flag.CHOKED.ordinal());
+            long now = System.currentTimeMillis();
+            LOG.warn("{}: Peer {} ignored choking, terminating exchange; choked at {} ({} ago), now {}", new Object[]{
+                getLocalPeerName(), this,
+                choked, (now - choked), now
+            });
+            close("ignored choking");
+            return;
+        }
+
+        if (length > Math.max(PieceHandler.MAX_BLOCK_SIZE, getRequestLength())) {
+            LOG.warn("{}: Peer {} requested a block too big ({}), terminating exchange.", new Object[]{
+                getLocalPeerName(), this,
+                length
+            });
+            close("requested huge block");
+            return;
+        }
+
+        // The queue holds messages, so build one only once we accept the request.
+        PeerMessage.RequestMessage message = new PeerMessage.RequestMessage(piece, offset, length);
+        if (!requestsReceived.offer(message)) {
+            LOG.warn("{}: Peer {} requested too many blocks; dropping {}", new Object[]{
+                getLocalPeerName(),
+                this, message
+            });
+            return;
+        }
+
+        // run();
+    }
+
+    @Override
+    public void handleCancel(int piece, int offset, int length) throws IOException {
+        removeRequestReceived(piece, offset, length);
+    }
+
     @VisibleForTesting
     public void handleExtendedMessage(@Nonnull PeerExtendedMessage msg) throws IOException {
         switch (msg.getExtendedType()) {
             case handshake: {
                 PeerExtendedMessage.HandshakeMessage message = (PeerExtendedMessage.HandshakeMessage) msg;
-                // this.requestsSentLimit = message.getRemoteRequestQueueLength();
+                requestWindow.setRemoteMaxSize(message.getSenderRequestQueueLength());
+                BLOCK_LENGTH:
+                {
+                    int remoteMaxBlockLength = message.getSenderMaxBlockLength();
+                    if (remoteMaxBlockLength <= 0)
+                        break BLOCK_LENGTH;
+                    int blockLength = pieceProvider.getBlockLength();
+                    int length = Math.min(remoteMaxBlockLength, pieceProvider.getMaxBlockLength());
+                    // Requests must span whole blocks.
+                    length -= length % blockLength;
+                    if (length <= blockLength)
+                        break BLOCK_LENGTH;
+                    requestLength = length;
+                    requestWindow.setBlockLength(length);
+                    if (LOG.isDebugEnabled())
+                        LOG.debug("{}: Peer {} negotiated block length {}.", new Object[]{
+                            getLocalPeerName(), this, length
+                        });
+                }
                 // existenceListener.addPeers(Arrays.asList());
                 synchronized (lock) {
                     extendedMessageTypes = message.getSenderExtendedTypeMap();
@@ -1000,6 +1392,23 @@ public class PeerHandler implements PeerMessageListener {
         upload.tick();
         download.tick();
         // TODO: Keepalives.
+
+        LAZY_HAVE:
+        {
+            long interval = lazyHaveInterval;
+            if (interval <= 0)
+                break LAZY_HAVE;
+            long now = System.currentTimeMillis();
+            synchronized (lock) {
+                if (havesSuppressed.isEmpty() || havesSuppressedAt > now - interval)
+                    break LAZY_HAVE;
+                for (int i = havesSuppressed.nextSetBit(0); i >= 0; i = havesSuppressed.nextSetBit(i + 1))
+                    havesPending.add(i);
+                havesSuppressed.clear();
+                havesSuppressedAt = now;
+            }
+            scheduleHaves();
+        }
     }
 
     @Override
@@ -1017,10 +1426,9 @@ public class PeerHandler implements PeerMessageListener {
                 .append("|")
                 .append(getAvailablePieceCount())
                 .append("]");
-        buf.append(" queue=").append(requestsSent.size()).append("/");
-        synchronized (lock) {
-            buf.append(requestsSentLimit);
-        }
+        buf.append(" queue=").append(requestsSent.size()).append("/").append(requestWindow.getSize());
+        if (isSnubbed())
+            buf.append(" snubbed");
         buf.append(" ul/dl=").append(getULRate().getRate(TimeUnit.SECONDS)).append("/").append(getDLRate().getRate(TimeUnit.SECONDS));
         return buf.toString();
     }
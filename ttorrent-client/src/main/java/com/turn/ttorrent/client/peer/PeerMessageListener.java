@@ -35,6 +35,15 @@ public interface PeerMessageListener extends EventListener {
 
     public void handleMessage(@Nonnull PeerMessage msg) throws IOException;
 
+    /** Handles a HAVE message, without building a {@link PeerMessage.HaveMessage}. */
+    public void handleHave(int piece) throws IOException;
+
+    /** Handles a REQUEST message, without building a {@link PeerMessage.RequestMessage}. */
+    public void handleRequest(int piece, int offset, int length) throws IOException;
+
+    /** Handles a CANCEL message, without building a {@link PeerMessage.CancelMessage}. */
+    public void handleCancel(int piece, int offset, int length) throws IOException;
+
     public void handleReadComplete() throws IOException;
 
     public void handleWritable() throws IOException;
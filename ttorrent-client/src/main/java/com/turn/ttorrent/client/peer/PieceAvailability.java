@@ -0,0 +1,338 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.peer;
+
+import com.google.common.math.IntMath;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.CheckForSigned;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * An availability-bucketed index of the pieces in a swarm.
+ *
+ * <p>
+ * Pieces are held in a single permutation array, sorted by availability, with
+ * the start of each availability bucket recorded separately. Changing the
+ * availability of a piece by one is a single swap at a bucket boundary, so
+ * HAVE, BITFIELD and disconnect events cost O(1) per piece, and finding the
+ * rarest piece a peer has only visits the rarest buckets rather than every
+ * piece in the torrent.
+ * </p>
+ *
+ * <p>
+ * Pieces we have completed are moved to a region below bucket zero, and are
+ * never visited by a search again. Their availability is still counted.
+ * </p>
+ *
+ * <p>
+ * The index is striped by piece range, each stripe with its own lock, so
+ * that updates from many peers do not all contend on a single monitor.
+ * </p>
+ *
+ * @author shevek
+ */
+public class PieceAvailability {
+
+    /** Stripes smaller than this are not worth the search overhead. */
+    private static final int MIN_STRIPE_LENGTH = 256;
+    private static final int MAX_STRIPES = 16;
+
+    private static class Stripe {
+
+        /** Index of the first piece in this stripe. */
+        private final int base;
+        /** Local piece index to availability. */
+        @GuardedBy("lock")
+        private final int[] availability;
+        /** Local pieces, sorted by availability. Removed pieces come first. */
+        @GuardedBy("lock")
+        private final int[] pieces;
+        /** Local piece index to index in pieces. */
+        @GuardedBy("lock")
+        private final int[] positions;
+        /** Index in pieces of the first piece with availability >= the array index. */
+        @GuardedBy("lock")
+        private int[] buckets;
+        @GuardedBy("lock")
+        private final BitSet removed;
+        private final Object lock = new Object();
+
+        public Stripe(@Nonnegative int base, @Nonnegative int length) {
+            this.base = base;
+            this.availability = new int[length];
+            this.pieces = new int[length];
+            this.positions = new int[length];
+            for (int i = 0; i < length; i++) {
+                pieces[i] = i;
+                positions[i] = i;
+            }
+            this.buckets = new int[8];
+            Arrays.fill(buckets, 1, buckets.length, length);
+            this.removed = new BitSet(length);
+        }
+
+        @GuardedBy("lock")
+        private int getBucketStart(@Nonnegative int level) {
+            if (level >= buckets.length)
+                return pieces.length;
+            return buckets[level];
+        }
+
+        @GuardedBy("lock")
+        private void swap(@Nonnegative int piece, @Nonnegative int position) {
+            int prevPosition = positions[piece];
+            int other = pieces[position];
+            pieces[prevPosition] = other;
+            positions[other] = prevPosition;
+            pieces[position] = piece;
+            positions[piece] = position;
+        }
+
+        @GuardedBy("lock")
+        private int increment(@Nonnegative int piece) {
+            int level = availability[piece];
+            availability[piece] = level + 1;
+            if (removed.get(piece))
+                return level + 1;
+            if (level + 2 >= buckets.length) {
+                int length = buckets.length;
+                buckets = Arrays.copyOf(buckets, Math.max(length * 2, level + 3));
+                Arrays.fill(buckets, length, buckets.length, pieces.length);
+            }
+            // Move the piece to the end of its bucket, then shrink the next bucket over it.
+            int position = buckets[level + 1] - 1;
+            swap(piece, position);
+            buckets[level + 1] = position;
+            return level + 1;
+        }
+
+        @GuardedBy("lock")
+        private int decrement(@Nonnegative int piece) {
+            int level = availability[piece];
+            if (level <= 0)
+                return 0;
+            availability[piece] = level - 1;
+            if (removed.get(piece))
+                return level - 1;
+            // Move the piece to the start of its bucket, then grow the bucket below over it.
+            int position = buckets[level];
+            swap(piece, position);
+            buckets[level] = position + 1;
+            return level - 1;
+        }
+
+        @GuardedBy("lock")
+        private void remove(@Nonnegative int piece) {
+            if (removed.get(piece))
+                return;
+            // Walk the piece down through every bucket to the removed region.
+            for (int level = availability[piece]; level >= 0; level--) {
+                int position = buckets[level];
+                swap(piece, position);
+                buckets[level] = position + 1;
+            }
+            removed.set(piece);
+        }
+
+        /** Returns the local index of a piece at the given level, or -1. */
+        @CheckForSigned
+        @GuardedBy("lock")
+        private int search(@Nonnull BitSet interesting, @Nonnull Random random, @Nonnegative int level) {
+            int start = getBucketStart(level);
+            int end = getBucketStart(level + 1);
+            int size = end - start;
+            if (size <= 0)
+                return -1;
+            // Start at a random point in the bucket, so that all peers don't converge on the same piece.
+            int offset = random.nextInt(size);
+            for (int i = 0; i < size; i++) {
+                int piece = pieces[start + (offset + i) % size];
+                if (interesting.get(base + piece))
+                    return piece;
+            }
+            return -1;
+        }
+    }
+    private final int stripeLength;
+    private final Stripe[] stripes;
+    private final int pieceCount;
+    private final AtomicInteger availableCount = new AtomicInteger(0);
+
+    public PieceAvailability(@Nonnegative int pieceCount) {
+        this.pieceCount = pieceCount;
+        int stripeCount = IntMath.divide(pieceCount, MIN_STRIPE_LENGTH, RoundingMode.CEILING);
+        stripeCount = Math.max(1, Math.min(stripeCount, MAX_STRIPES));
+        this.stripeLength = Math.max(1, IntMath.divide(pieceCount, stripeCount, RoundingMode.CEILING));
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            int base = Math.min(i * stripeLength, pieceCount);
+            stripes[i] = new Stripe(base, Math.min(stripeLength, pieceCount - base));
+        }
+    }
+
+    @Nonnegative
+    public int getPieceCount() {
+        return pieceCount;
+    }
+
+    @Nonnull
+    private Stripe getStripe(@Nonnegative int piece) {
+        if (piece < 0 || piece >= pieceCount)
+            throw new ArrayIndexOutOfBoundsException("Bad piece index " + piece + " of " + pieceCount);
+        return stripes[piece / stripeLength];
+    }
+
+    /** Returns the number of connected peers known to have the given piece. */
+    @Nonnegative
+    public int getAvailability(@Nonnegative int piece) {
+        Stripe stripe = getStripe(piece);
+        synchronized (stripe.lock) {
+            return stripe.availability[piece - stripe.base];
+        }
+    }
+
+    /** Returns the number of pieces available from at least one peer. */
+    @Nonnegative
+    public int getAvailablePieceCount() {
+        return availableCount.get();
+    }
+
+    /**
+     * Records that one more peer has the given piece.
+     *
+     * @return the new availability of the piece.
+     */
+    @Nonnegative
+    public int increment(@Nonnegative int piece) {
+        Stripe stripe = getStripe(piece);
+        int level;
+        synchronized (stripe.lock) {
+            level = stripe.increment(piece - stripe.base);
+        }
+        if (level == 1)
+            availableCount.incrementAndGet();
+        return level;
+    }
+
+    /**
+     * Records that one fewer peer has the given piece.
+     *
+     * This is an unsigned decrement, since we may have missed an increment
+     * for a peer which was disconnected before we processed its bitfield.
+     *
+     * @return the new availability of the piece.
+     */
+    @Nonnegative
+    public int decrement(@Nonnegative int piece) {
+        Stripe stripe = getStripe(piece);
+        int prev, level;
+        synchronized (stripe.lock) {
+            prev = stripe.availability[piece - stripe.base];
+            level = stripe.decrement(piece - stripe.base);
+        }
+        if (prev == 1)
+            availableCount.decrementAndGet();
+        return level;
+    }
+
+    /**
+     * Removes the given piece from future searches.
+     *
+     * This is used for pieces which we have completed. It is idempotent.
+     */
+    public void remove(@Nonnegative int piece) {
+        Stripe stripe = getStripe(piece);
+        synchronized (stripe.lock) {
+            stripe.remove(piece - stripe.base);
+        }
+    }
+
+    /**
+     * Chooses one of the rarest pieces in the given set.
+     *
+     * <p>
+     * Buckets are searched in increasing order of availability. If a piece in
+     * the set has an availability of zero, we got a miscount somewhere
+     * (entirely possible) and we consider it only after every available piece.
+     * </p>
+     *
+     * <p>
+     * Stripes are searched one at a time, starting from a random stripe, and
+     * each stripe only searches buckets rarer than the best piece found so
+     * far. The result is therefore one of the rarest pieces, although it may
+     * be stale by the time the caller sees it.
+     * </p>
+     *
+     * @return the index of the chosen piece, or -1 if no piece in the set is
+     * present in this index.
+     */
+    @CheckForSigned
+    public int getRarestPiece(@Nonnull BitSet interesting, @Nonnull Random random) {
+        if (interesting.isEmpty())
+            return -1;
+        int rarestPiece = -1;
+        int rarestLevel = Integer.MAX_VALUE;
+        int offset = random.nextInt(stripes.length);
+        for (int i = 0; i < stripes.length; i++) {
+            Stripe stripe = stripes[(offset + i) % stripes.length];
+            // Skip stripes which contain nothing interesting, without locking.
+            int next = interesting.nextSetBit(stripe.base);
+            if (next < 0 || next >= stripe.base + stripe.pieces.length)
+                continue;
+            synchronized (stripe.lock) {
+                int limit = Math.min(rarestLevel, stripe.buckets.length);
+                for (int level = 1; level < limit; level++) {
+                    int piece = stripe.search(interesting, random, level);
+                    if (piece >= 0) {
+                        rarestPiece = stripe.base + piece;
+                        rarestLevel = level;
+                        break;
+                    }
+                }
+            }
+            if (rarestLevel == 1)
+                return rarestPiece;
+        }
+        if (rarestPiece >= 0)
+            return rarestPiece;
+        for (int i = 0; i < stripes.length; i++) {
+            Stripe stripe = stripes[(offset + i) % stripes.length];
+            synchronized (stripe.lock) {
+                int piece = stripe.search(interesting, random, 0);
+                if (piece >= 0)
+                    return stripe.base + piece;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        int removedCount = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe.lock) {
+                removedCount += stripe.removed.cardinality();
+            }
+        }
+        return "PieceAvailability(available=" + getAvailablePieceCount() + "/" + pieceCount + ", stripes=" + stripes.length + ", removed=" + removedCount + ")";
+    }
+}
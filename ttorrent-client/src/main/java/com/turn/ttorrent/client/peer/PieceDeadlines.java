@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.peer;
+
+import java.util.BitSet;
+import javax.annotation.CheckForSigned;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * The time by which an application would like each of a few pieces.
+ *
+ * <p>
+ * A streaming reader sets deadlines on the pieces just ahead of its read
+ * position. Pieces with a deadline are started before any piece chosen by
+ * the {@link PiecePicker}, earliest deadline first. There are few such
+ * pieces at any time, so a search only visits the pieces with a deadline.
+ * </p>
+ *
+ * @author shevek
+ */
+public class PieceDeadlines {
+
+    /** Pieces with a deadline. */
+    @GuardedBy("lock")
+    private final BitSet pieces;
+    /** Piece index to deadline in milliseconds, if set in pieces. */
+    @GuardedBy("lock")
+    private final long[] deadlines;
+    private volatile int pieceCount = 0;
+    private final Object lock = new Object();
+
+    public PieceDeadlines(@Nonnegative int pieceCount) {
+        this.pieces = new BitSet(pieceCount);
+        this.deadlines = new long[pieceCount];
+    }
+
+    /** Returns the number of pieces with a deadline. */
+    @Nonnegative
+    public int getPieceCount() {
+        return pieceCount;
+    }
+
+    public boolean isEmpty() {
+        return getPieceCount() == 0;
+    }
+
+    /**
+     * Sets the deadline of the given piece, unless it already has an earlier
+     * one.
+     */
+    public void setDeadline(@Nonnegative int piece, long deadline) {
+        synchronized (lock) {
+            if (pieces.get(piece)) {
+                deadlines[piece] = Math.min(deadlines[piece], deadline);
+            } else {
+                pieces.set(piece);
+                deadlines[piece] = deadline;
+                pieceCount++;
+            }
+        }
+    }
+
+    /** Removes the deadline of the given piece, usually because it is complete. */
+    public void remove(@Nonnegative int piece) {
+        synchronized (lock) {
+            if (!pieces.get(piece))
+                return;
+            pieces.clear(piece);
+            pieceCount--;
+        }
+    }
+
+    /**
+     * Returns the piece in the given set with the earliest deadline, or -1.
+     */
+    @CheckForSigned
+    public int getUrgentPiece(@Nonnull BitSet interesting) {
+        if (isEmpty())
+            return -1;
+        int urgentPiece = -1;
+        long urgentDeadline = Long.MAX_VALUE;
+        synchronized (lock) {
+            for (int i = pieces.nextSetBit(0); i >= 0; i = pieces.nextSetBit(i + 1)) {
+                if (!interesting.get(i))
+                    continue;
+                if (urgentPiece < 0 || deadlines[i] < urgentDeadline) {
+                    urgentPiece = i;
+                    urgentDeadline = deadlines[i];
+                }
+            }
+        }
+        return urgentPiece;
+    }
+
+    @Override
+    public String toString() {
+        return "PieceDeadlines(pieces=" + getPieceCount() + ")";
+    }
+}
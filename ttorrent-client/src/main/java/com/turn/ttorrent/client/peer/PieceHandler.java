@@ -17,12 +17,19 @@ package com.turn.ttorrent.client.peer;
 
 import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.UnmodifiableIterator;
+import com.google.common.math.IntMath;
 import com.turn.ttorrent.client.PeerPieceProvider;
 import com.turn.ttorrent.client.io.PeerMessage;
 import com.turn.ttorrent.client.peer.PieceHandler.AnswerableRequestMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.GuardedBy;
@@ -38,6 +45,19 @@ import org.slf4j.LoggerFactory;
  * {@link PeerHandler#send(com.turn.ttorrent.client.io.PeerMessage, boolean)} on
  * the messages as it iterates over them.
  *
+ * There is at most one active PieceHandler for each piece, shared by every
+ * peer downloading that piece. Each block is handed out by at most one
+ * iterator, so several peers may download different blocks of the same piece
+ * at once.
+ *
+ * Blocks are tracked at the torrent's block length. A peer which negotiated a
+ * larger block length is handed requests which span several consecutive
+ * blocks.
+ *
+ * The piece is assembled in a buffer which is handed back to the
+ * {@link PeerPieceProvider} once the piece is written, or once this
+ * PieceHandler is {@link #release() released}.
+ *
  * @author shevek
  */
 public class PieceHandler implements Iterable<AnswerableRequestMessage> {
@@ -47,23 +67,60 @@ public class PieceHandler implements Iterable<AnswerableRequestMessage> {
     public static final int DEFAULT_BLOCK_SIZE = 16384;
     /** Max block request size is 2^17 bytes, or 131kB. */
     public static final int MAX_BLOCK_SIZE = 128 * 1024;   // This is 131072 in most implementations.
+    /** Max block request size between peers which negotiate it, 2^20 bytes. */
+    public static final int MAX_NEGOTIATED_BLOCK_SIZE = 1024 * 1024;
     private final int piece;
     // private final PeerIdentityProvider identityProvider;
     private final PeerPieceProvider pieceProvider;
+    /** Not yet handed out by an iterator. Larger values count the requests handed out. */
+    private static final byte BLOCK_MISSING = 0;
+    /** Received, but the piece is not yet verified. */
+    private static final byte BLOCK_RECEIVED = -1;
+    /** Part of a verified piece. */
+    private static final byte BLOCK_VERIFIED = -2;
+    /** Excludes no blocks. Never modified. */
+    private static final BitSet NO_BLOCKS = new BitSet();
+    private final int blockLength;
+    private final int pieceLength;
     // TODO: Maintain the set of peers which sent us data, so we can bin bad peers.
+    /** The piece being assembled, or null once written or released. */
+    @GuardedBy("lock")
+    private ByteBuf pieceData;
+    /** For each block, a BLOCK_* state, or the number of requests handed out. */
     @GuardedBy("lock")
-    private final byte[] pieceData;
+    private final byte[] blockStates;
+    /** The number of blocks in state BLOCK_MISSING. */
     @GuardedBy("lock")
-    private final BitSet pieceRequiredBytes;    // We should do this with blocks.
+    private int blocksMissing;
+    /** The number of blocks not yet received. */
+    @GuardedBy("lock")
+    private int blocksRequired;
+    /** The time at which a block was last claimed, released or received. */
+    @GuardedBy("lock")
+    private long activityTime = System.currentTimeMillis();
     private final Object lock = new Object();
 
+    /** Assembles the piece in an unpooled heap buffer. */
     public PieceHandler(/*@Nonnull PeerIdentityProvider identityProvider,*/ @Nonnull PeerPieceProvider pieceProvider, @Nonnegative int piece) {
-        // this.identityProvider = identityProvider;
+        this(pieceProvider, piece, Unpooled.buffer(pieceProvider.getPieceLength(piece), pieceProvider.getPieceLength(piece)));
+    }
+
+    /**
+     * @param pieceData A buffer with room for the whole piece, which this
+     * PieceHandler passes to {@link PeerPieceProvider#releasePieceData(ByteBuf)}
+     * when done with it.
+     */
+    public PieceHandler(@Nonnull PeerPieceProvider pieceProvider, @Nonnegative int piece, @Nonnull ByteBuf pieceData) {
         this.pieceProvider = pieceProvider;
         this.piece = piece;
-        this.pieceData = new byte[pieceProvider.getPieceLength(piece)];
-        this.pieceRequiredBytes = new BitSet(pieceData.length);
-        this.pieceRequiredBytes.set(0, pieceData.length);  // It's easier to find 1s than 0s.
+        this.blockLength = pieceProvider.getBlockLength();
+        this.pieceLength = pieceProvider.getPieceLength(piece);
+        if (pieceData.capacity() < pieceLength)
+            throw new IllegalArgumentException("Buffer of " + pieceData.capacity() + " bytes too small for piece " + piece + " of length " + pieceLength);
+        this.pieceData = pieceData;
+        this.blockStates = new byte[IntMath.divide(pieceLength, blockLength, RoundingMode.CEILING)];
+        this.blocksMissing = blockStates.length;
+        this.blocksRequired = blockStates.length;
     }
 
     /**
@@ -91,44 +148,86 @@ public class PieceHandler implements Iterable<AnswerableRequestMessage> {
     /**
      * Record the given block at the given offset in this piece.
      *
-     * @param block The ByteBuffer containing the block data.
+     * @param block The ByteBuf containing the block data, which we copy
+     * straight into the piece.
      * @param offset The block offset in this piece.
      */
     @Nonnull
-    private Reception receive(ByteBuffer block, int offset) throws IOException {
-        int length = block.remaining();
+    private Reception receive(ByteBuf block, int offset) throws IOException {
+        int length = block.readableBytes();
         // LOG.debug("Received {}[{}]", offset, length);
 
+        // We only ever request whole blocks, so we only accept whole blocks.
+        int end = offset + length;
+        if (offset % blockLength != 0 || (end % blockLength != 0 && end != pieceLength)) {
+            if (LOG.isDebugEnabled())
+                LOG.debug("{}: Discarding misaligned block {}[{}] for {}", new Object[]{
+                    pieceProvider.getLocalPeerName(),
+                    offset, length, piece
+                });
+            return Reception.IGNORED;
+        }
+        int blockStart = offset / blockLength;
+        int blockEnd = IntMath.divide(end, blockLength, RoundingMode.CEILING);
+
+        ByteBuf data;
         synchronized (lock) {
+            if (pieceData == null) {
+                if (LOG.isDebugEnabled())
+                    LOG.debug("{}: Discarding block of released piece {}", pieceProvider.getLocalPeerName(), piece);
+                return Reception.IGNORED;
+            }
             // Make sure we actually needed any of these bytes.
             if (pieceProvider.isCompletedPiece(piece)) {
                 if (LOG.isDebugEnabled())
                     LOG.debug("{}: Discarding block of completed piece {}", pieceProvider.getLocalPeerName(), piece);
                 return Reception.IGNORED;
             }
-            if (pieceRequiredBytes.nextSetBit(offset) >= offset + length) {
+            REQUIRED:
+            {
+                for (int i = blockStart; i < blockEnd; i++)
+                    if (blockStates[i] >= BLOCK_MISSING)
+                        break REQUIRED;
                 if (LOG.isDebugEnabled())
                     LOG.debug("{}: Discarding non-required block for {}", pieceProvider.getLocalPeerName(), piece);
                 return Reception.IGNORED;
             }
 
-            block.get(pieceData, offset, length);
-            pieceRequiredBytes.clear(offset, offset + length);
+            pieceData.setBytes(offset, block, block.readerIndex(), length);
+            activityTime = System.currentTimeMillis();
+            for (int i = blockStart; i < blockEnd; i++) {
+                if (blockStates[i] < BLOCK_MISSING)
+                    continue;
+                if (blockStates[i] == BLOCK_MISSING)
+                    blocksMissing--;
+                blocksRequired--;
+                blockStates[i] = BLOCK_RECEIVED;
+            }
 
-            if (!pieceRequiredBytes.isEmpty())
+            if (blocksRequired > 0)
                 return Reception.INCOMPLETE;
 
-            boolean valid = pieceProvider.validateBlock(ByteBuffer.wrap(pieceData), piece);
+            boolean valid = pieceProvider.validateBlock(pieceData.nioBuffer(0, pieceLength), piece);
             if (!valid) {
                 // LOG.warn("{}: Piece {} complete, but invalid. Not saving.", new Object[]{identityProvider.getLocalPeerName(), piece});
-                this.pieceRequiredBytes.set(0, pieceData.length);
+                Arrays.fill(blockStates, BLOCK_MISSING);
+                blocksMissing = blockStates.length;
+                blocksRequired = blockStates.length;
                 return Reception.INVALID;
             }
+            Arrays.fill(blockStates, BLOCK_VERIFIED);
+            // Every block is verified, so nobody else touches the buffer.
+            data = pieceData;
+            pieceData = null;
         }
 
         // if (LOG.isDebugEnabled())
         // LOG.debug("Piece {} complete, and valid.", piece);
-        pieceProvider.writeBlock(ByteBuffer.wrap(pieceData), piece, 0);
+        try {
+            pieceProvider.writeBlock(data.nioBuffer(0, pieceLength), piece, 0);
+        } finally {
+            pieceProvider.releasePieceData(data);
+        }
         return Reception.VALID;
     }
 
@@ -154,9 +253,44 @@ public class PieceHandler implements Iterable<AnswerableRequestMessage> {
             requestTime = System.currentTimeMillis();
         }
 
-        // TODO: Make public, and call when appropriate.
-        private void cancel() {
-            // TODO: Add to partial set.
+        /**
+         * Releases the claim this request holds on its blocks.
+         *
+         * Call this when the request is cancelled and will not be retried.
+         */
+        public void cancel() {
+            int blockStart = getOffset() / blockLength;
+            int blockEnd = IntMath.divide(getOffset() + getLength(), blockLength, RoundingMode.CEILING);
+            synchronized (lock) {
+                activityTime = System.currentTimeMillis();
+                for (int block = blockStart; block < blockEnd; block++) {
+                    if (blockStates[block] > BLOCK_MISSING) {
+                        blockStates[block]--;
+                        if (blockStates[block] == BLOCK_MISSING)
+                            blocksMissing++;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Splits this request into one request per block, each holding the
+         * claim of this request on its block.
+         *
+         * Use this to retry a request which spans several blocks with a peer
+         * which may only accept requests of the torrent's block length.
+         */
+        @Nonnull
+        public List<AnswerableRequestMessage> split() {
+            List<AnswerableRequestMessage> out = new ArrayList<AnswerableRequestMessage>();
+            if (getLength() <= blockLength) {
+                out.add(this);
+                return out;
+            }
+            int end = getOffset() + getLength();
+            for (int offset = getOffset(); offset < end; offset += blockLength)
+                out.add(new AnswerableRequestMessage(getPiece(), offset, Math.min(blockLength, end - offset)));
+            return out;
         }
 
         @Nonnull
@@ -191,38 +325,252 @@ public class PieceHandler implements Iterable<AnswerableRequestMessage> {
             return super.toString() + " (" + offset + " ms ago)";
         }
     }
-    private static final int REQUEST_OFFSET_INIT = -1;
-    private static final int REQUEST_OFFSET_FINI = -2;
-
     private class AnswerableRequestIterator extends AbstractIterator<AnswerableRequestMessage> {
 
-        private int requestOffset = REQUEST_OFFSET_INIT;
+        /** Yields blocks already handed out fewer than this many times. */
+        private final int maxRequests;
+        /** The maximum number of consecutive blocks in one request. */
+        private final int maxBlocks;
+        /** Blocks never to yield. */
+        private final BitSet excludedBlocks;
+        private int nextBlock = 0;
+
+        public AnswerableRequestIterator(@Nonnegative int maxRequests, @Nonnegative int requestLength, @Nonnull BitSet excludedBlocks) {
+            this.maxRequests = maxRequests;
+            this.maxBlocks = Math.max(requestLength / blockLength, 1);
+            this.excludedBlocks = excludedBlocks;
+        }
+
+        public AnswerableRequestIterator(@Nonnegative int maxRequests, @Nonnegative int requestLength) {
+            this(maxRequests, requestLength, NO_BLOCKS);
+        }
+
+        @GuardedBy("lock")
+        private boolean isRequestable(int block) {
+            return PieceHandler.this.isRequestable(block, maxRequests, excludedBlocks);
+        }
+
+        @GuardedBy("lock")
+        private void claim(int block) {
+            byte state = blockStates[block];
+            if (state == BLOCK_MISSING)
+                blocksMissing--;
+            blockStates[block] = (byte) (state + 1);
+            activityTime = System.currentTimeMillis();
+        }
 
         @Override
         protected AnswerableRequestMessage computeNext() {
-            int blockLength = pieceProvider.getBlockLength();
             synchronized (lock) {
-                if (requestOffset == REQUEST_OFFSET_FINI)
-                    return endOfData();
-                else if (requestOffset == REQUEST_OFFSET_INIT)
-                    requestOffset = pieceRequiredBytes.nextSetBit(0);
-                else
-                    requestOffset = pieceRequiredBytes.nextSetBit(requestOffset + blockLength);
-                if (requestOffset < 0) {
-                    requestOffset = REQUEST_OFFSET_FINI;
+                int block = nextBlock;
+                while (block < blockStates.length && !isRequestable(block))
+                    block++;
+                if (block >= blockStates.length || pieceData == null) {
+                    nextBlock = blockStates.length;
                     return endOfData();
                 }
+                int end = block;
+                while (end < blockStates.length && end - block < maxBlocks && isRequestable(end))
+                    claim(end++);
+                nextBlock = end;
+                int requestOffset = block * blockLength;
                 int length = Math.min(
-                        blockLength,
-                        pieceData.length - requestOffset);
+                        (end - block) * blockLength,
+                        pieceLength - requestOffset);
                 return new AnswerableRequestMessage(piece, requestOffset, length);
             }
         }
     }
 
+    /**
+     * Returns true if any required block has not yet been handed out by an
+     * iterator.
+     */
+    public boolean hasUnrequestedBlocks() {
+        synchronized (lock) {
+            return pieceData != null && blocksMissing > 0;
+        }
+    }
+
+    @GuardedBy("lock")
+    private boolean isRequestable(int block, int maxRequests, @Nonnull BitSet excludedBlocks) {
+        byte state = blockStates[block];
+        return state >= BLOCK_MISSING && state < maxRequests && !excludedBlocks.get(block);
+    }
+
+    /**
+     * Returns true if any required block has been handed out fewer than the
+     * given number of times.
+     */
+    public boolean hasRequestableBlocks(@Nonnegative int maxRequests) {
+        return hasRequestableBlocks(maxRequests, NO_BLOCKS);
+    }
+
+    /**
+     * Returns true if any required block not in the given set has been
+     * handed out fewer than the given number of times.
+     *
+     * @see #getBlocks(Iterable)
+     */
+    public boolean hasRequestableBlocks(@Nonnegative int maxRequests, @Nonnull BitSet excludedBlocks) {
+        synchronized (lock) {
+            if (pieceData == null)
+                return false;
+            for (int block = 0; block < blockStates.length; block++)
+                if (isRequestable(block, maxRequests, excludedBlocks))
+                    return true;
+            return false;
+        }
+    }
+
+    /**
+     * Returns the blocks of this piece spanned by any of the given requests.
+     *
+     * Requests for other pieces are ignored.
+     */
+    @Nonnull
+    public BitSet getBlocks(@Nonnull Iterable<? extends PeerMessage.AbstractPieceMessage> requests) {
+        BitSet out = new BitSet(blockStates.length);
+        for (PeerMessage.AbstractPieceMessage request : requests) {
+            if (request.getPiece() != piece)
+                continue;
+            int blockStart = request.getOffset() / blockLength;
+            int blockEnd = IntMath.divide(request.getOffset() + request.getLength(), blockLength, RoundingMode.CEILING);
+            out.set(blockStart, Math.min(blockEnd, blockStates.length));
+        }
+        return out;
+    }
+
+    /** Returns the number of blocks not yet received. */
+    @Nonnegative
+    public int getRequiredBlockCount() {
+        synchronized (lock) {
+            return blocksRequired;
+        }
+    }
+
+    /**
+     * Returns the number of blocks neither received nor held by any request,
+     * sent or waiting to be retried.
+     */
+    @Nonnegative
+    public int getMissingBlockCount() {
+        synchronized (lock) {
+            return blocksMissing;
+        }
+    }
+
+    /**
+     * Returns true if this PieceHandler has been released before its piece
+     * was written.
+     */
+    public boolean isReleased() {
+        synchronized (lock) {
+            return pieceData == null && blocksRequired > 0;
+        }
+    }
+
+    /**
+     * Discards the piece, handing its buffer back to the
+     * {@link PeerPieceProvider}. Blocks received afterwards are ignored.
+     */
+    public void release() {
+        ByteBuf data;
+        synchronized (lock) {
+            data = pieceData;
+            pieceData = null;
+        }
+        if (data != null)
+            pieceProvider.releasePieceData(data);
+    }
+
+    /**
+     * Discards the piece if it holds no work: that is, if no block has been
+     * received, no request holds a block, sent or waiting to be retried, and
+     * nothing has happened to it since the given time.
+     *
+     * @param idleSince A time in milliseconds, or {@link Long#MAX_VALUE} to
+     * ignore the time of the last activity.
+     * @return true if this call released the piece.
+     */
+    public boolean releaseIfIdle(long idleSince) {
+        ByteBuf data;
+        synchronized (lock) {
+            if (pieceData == null)
+                return false;
+            if (activityTime >= idleSince)
+                return false;
+            for (byte state : blockStates)
+                if (state != BLOCK_MISSING)
+                    return false;
+            data = pieceData;
+            pieceData = null;
+        }
+        pieceProvider.releasePieceData(data);
+        return true;
+    }
+
+    /** Returns true if we hold the block at the given offset. */
+    public boolean isReceivedBlock(@Nonnegative int offset) {
+        synchronized (lock) {
+            return blockStates[offset / blockLength] < BLOCK_MISSING;
+        }
+    }
+
+    /**
+     * Returns an iterator over the blocks not yet handed out by any other
+     * iterator. Each block returned is claimed for the caller.
+     */
     @Override
     public UnmodifiableIterator<AnswerableRequestMessage> iterator() {
-        return new AnswerableRequestIterator();
+        return new AnswerableRequestIterator(1, blockLength);
+    }
+
+    /**
+     * Returns an iterable like this one, whose requests each span as many
+     * consecutive blocks as fit in the given length.
+     *
+     * @param requestLength The block length negotiated with the peer.
+     */
+    @Nonnull
+    public Iterable<AnswerableRequestMessage> getRequests(@Nonnegative final int requestLength) {
+        if (requestLength <= blockLength)
+            return this;
+        return new Iterable<AnswerableRequestMessage>() {
+            @Override
+            public Iterator<AnswerableRequestMessage> iterator() {
+                return new AnswerableRequestIterator(1, requestLength);
+            }
+        };
+    }
+
+    /**
+     * Returns an iterable over every block not yet received which has been
+     * handed out fewer than the given number of times, whether or not it has
+     * already been requested from another peer.
+     *
+     * This is used in end-game mode.
+     */
+    @Nonnull
+    public Iterable<AnswerableRequestMessage> getDuplicateRequests(@Nonnegative int maxRequests) {
+        return getDuplicateRequests(maxRequests, NO_BLOCKS);
+    }
+
+    /**
+     * Returns an iterable like {@link #getDuplicateRequests(int)}, which
+     * never yields the given blocks, such as those the peer already has
+     * requested.
+     *
+     * @see #getBlocks(Iterable)
+     */
+    @Nonnull
+    public Iterable<AnswerableRequestMessage> getDuplicateRequests(@Nonnegative final int maxRequests, @Nonnull final BitSet excludedBlocks) {
+        return new Iterable<AnswerableRequestMessage>() {
+            @Override
+            public Iterator<AnswerableRequestMessage> iterator() {
+                return new AnswerableRequestIterator(maxRequests, blockLength, excludedBlocks);
+            }
+        };
     }
 
     @Override
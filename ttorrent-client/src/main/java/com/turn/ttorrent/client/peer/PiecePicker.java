@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.peer;
+
+import com.turn.ttorrent.client.PeerPieceProvider;
+import java.util.BitSet;
+import java.util.Random;
+import javax.annotation.CheckForSigned;
+import javax.annotation.Nonnull;
+
+/**
+ * Chooses the next piece to start downloading from a peer.
+ *
+ * <p>
+ * A PiecePicker is only asked for a new piece: blocks which must be retried,
+ * blocks of pieces already in progress, and end-game duplicates are handled
+ * by the {@link com.turn.ttorrent.client.SwarmHandler} before it is
+ * consulted. Implementations are called concurrently from every peer, and
+ * must be thread-safe.
+ * </p>
+ *
+ * @see com.turn.ttorrent.client.TorrentHandler#setPiecePicker(PiecePicker)
+ * @author shevek
+ */
+public interface PiecePicker {
+
+    /**
+     * Returns the index of a piece in the given set, or -1.
+     *
+     * @param provider The swarm state.
+     * @param availability The availability of each piece in the swarm.
+     * @param peer The peer we will request the piece from.
+     * @param interesting The pieces which the peer has, which we need, and
+     * which nobody else is downloading. Never empty. Not modified.
+     */
+    @CheckForSigned
+    public int getNextPiece(
+            @Nonnull PeerPieceProvider provider,
+            @Nonnull PieceAvailability availability,
+            @Nonnull PeerHandler peer,
+            @Nonnull BitSet interesting,
+            @Nonnull Random random);
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.peer;
+
+import com.turn.ttorrent.client.PeerPieceProvider;
+import java.util.BitSet;
+import java.util.Random;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * Picks random pieces until we have completed a few, then delegates.
+ *
+ * <p>
+ * Rare pieces are, by definition, available from few peers, and are slow to
+ * download. Until we have some pieces to offer in trade, we would rather
+ * complete any piece quickly.
+ * </p>
+ *
+ * @author shevek
+ */
+public class RandomFirstPiecePicker implements PiecePicker {
+
+    public static final int DEFAULT_RANDOM_PIECE_COUNT = 4;
+    private final int randomPieceCount;
+    private final PiecePicker delegate;
+
+    public RandomFirstPiecePicker(@Nonnegative int randomPieceCount, @Nonnull PiecePicker delegate) {
+        this.randomPieceCount = randomPieceCount;
+        this.delegate = delegate;
+    }
+
+    public RandomFirstPiecePicker() {
+        this(DEFAULT_RANDOM_PIECE_COUNT, new RarestFirstPiecePicker());
+    }
+
+    @Override
+    public int getNextPiece(PeerPieceProvider provider, PieceAvailability availability, PeerHandler peer, BitSet interesting, Random random) {
+        if (provider.getCompletedPieceCount() >= randomPieceCount)
+            return delegate.getNextPiece(provider, availability, peer, interesting, random);
+        int piece = interesting.nextSetBit(random.nextInt(provider.getPieceCount()));
+        if (piece < 0)
+            piece = interesting.nextSetBit(0);
+        return piece;
+    }
+
+    @Override
+    public String toString() {
+        return "RandomFirst(" + randomPieceCount + ", " + delegate + ")";
+    }
+}
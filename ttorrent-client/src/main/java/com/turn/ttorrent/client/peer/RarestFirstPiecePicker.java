@@ -0,0 +1,40 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.peer;
+
+import com.turn.ttorrent.client.PeerPieceProvider;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Picks a random piece from the rarest pieces the peer has.
+ *
+ * This is the default, and keeps every piece well replicated in the swarm.
+ *
+ * @author shevek
+ */
+public class RarestFirstPiecePicker implements PiecePicker {
+
+    @Override
+    public int getNextPiece(PeerPieceProvider provider, PieceAvailability availability, PeerHandler peer, BitSet interesting, Random random) {
+        return availability.getRarestPiece(interesting, random);
+    }
+
+    @Override
+    public String toString() {
+        return "RarestFirst";
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.peer;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * A swarm-wide count of the requests we have sent and not yet seen answered.
+ *
+ * <p>
+ * Each {@link PeerHandler} reports every request it adds to or removes from
+ * its queue of sent requests, so "is this piece already requested?" is
+ * answered without visiting the queue of every connected peer.
+ * </p>
+ *
+ * @author shevek
+ */
+public class RequestRegistry {
+
+    /** Piece index to number of outstanding requests. */
+    private final AtomicIntegerArray requests;
+    private final AtomicInteger requestedPieceCount = new AtomicInteger(0);
+    private final AtomicInteger requestCount = new AtomicInteger(0);
+
+    public RequestRegistry(@Nonnegative int pieceCount) {
+        this.requests = new AtomicIntegerArray(pieceCount);
+    }
+
+    /** Records that a request for a block of the given piece was sent. */
+    public void addRequest(@Nonnegative int piece) {
+        requestCount.incrementAndGet();
+        if (requests.getAndIncrement(piece) == 0)
+            requestedPieceCount.incrementAndGet();
+    }
+
+    /**
+     * Records that a request for a block of the given piece was answered,
+     * rejected, cancelled or expired.
+     */
+    public void removeRequest(@Nonnegative int piece) {
+        // Implement an unsigned CAS.
+        for (;;) {
+            int current = requests.get(piece);
+            if (current <= 0)
+                return;
+            int next = current - 1;
+            if (requests.compareAndSet(piece, current, next)) {
+                requestCount.decrementAndGet();
+                if (next == 0)
+                    requestedPieceCount.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    public boolean isRequested(@Nonnegative int piece) {
+        return requests.get(piece) > 0;
+    }
+
+    /** Returns the number of outstanding requests for blocks of the given piece. */
+    @Nonnegative
+    public int getRequestCount(@Nonnegative int piece) {
+        return requests.get(piece);
+    }
+
+    /** Returns the total number of outstanding requests. */
+    @Nonnegative
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    /** Returns the number of pieces with at least one outstanding request. */
+    @Nonnegative
+    public int getRequestedPieceCount() {
+        return requestedPieceCount.get();
+    }
+
+    /**
+     * Returns a new BitSet describing the currently requested pieces.
+     *
+     * This is O(pieces), and is intended for reporting.
+     */
+    @Nonnull
+    public BitSet getRequestedPieces() {
+        BitSet out = new BitSet(requests.length());
+        for (int i = 0; i < requests.length(); i++)
+            if (requests.get(i) > 0)
+                out.set(i);
+        return out;
+    }
+
+    /** Clears every requested piece from the given BitSet. Zero-copy. */
+    public void andNotRequested(@Nonnull BitSet out) {
+        for (int i = out.nextSetBit(0); i >= 0; i = out.nextSetBit(i + 1))
+            if (requests.get(i) > 0)
+                out.clear(i);
+    }
+
+    @Override
+    public String toString() {
+        return "RequestRegistry(requests=" + getRequestCount() + ", pieces=" + getRequestedPieceCount() + ")";
+    }
+}
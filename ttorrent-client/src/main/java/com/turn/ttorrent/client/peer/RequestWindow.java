@@ -0,0 +1,249 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.peer;
+
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnegative;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * The number of requests we keep outstanding to a single peer.
+ *
+ * <p>
+ * A peer can only send us data as fast as we ask for it, so to keep its
+ * upload busy we need about one bandwidth-delay product of requests in
+ * flight: the rate at which it delivers, times the round trip of a request
+ * through an empty pipeline. Fewer requests leave a fast or distant peer
+ * idle between blocks; more requests only queue at a slow peer until they
+ * time out and have to be sent elsewhere.
+ * </p>
+ *
+ * <p>
+ * The window is managed like a TCP congestion window. It starts in slow
+ * start, growing by one request per block received, and then grows by one
+ * request per round trip. It never grows beyond twice the estimated
+ * bandwidth-delay product, and drains back towards it when the estimate
+ * falls. Expired requests halve it. It is always capped by the queue length
+ * advertised by the peer.
+ * </p>
+ *
+ * <p>
+ * The round trip is measured from the time a request is sent to the time
+ * its block arrives. This includes the time the request spends queued
+ * behind earlier requests at the peer, so the bandwidth-delay product uses
+ * the minimum round trip seen, which is the closest we get to an empty
+ * pipeline.
+ * </p>
+ *
+ * @author shevek
+ */
+public class RequestWindow {
+
+    public static final int MIN_SIZE = 2;
+    /** Twice the bandwidth-delay product, to tolerate jitter. */
+    private static final double BDP_GAIN = 2.0;
+    /** The least request timeout, however fast the peer. */
+    public static final long MIN_REQUEST_TIMEOUT = TimeUnit.SECONDS.toMillis(2);
+    /** The minimum interval over which we measure the delivery rate. */
+    private static final long MIN_RATE_INTERVAL = 100;
+    @GuardedBy("lock")
+    private int blockLength;
+    private final int maxSize;
+    @GuardedBy("lock")
+    private int remoteMaxSize = Integer.MAX_VALUE;
+    @GuardedBy("lock")
+    private double size;
+    @GuardedBy("lock")
+    private boolean slowStart = true;
+    /** Smoothed round trip, in milliseconds; -1 if not measured. */
+    @GuardedBy("lock")
+    private long roundTripTime = -1;
+    /** Mean deviation of the round trip, in milliseconds. */
+    @GuardedBy("lock")
+    private long roundTripTimeVariance = 0;
+    /** Minimum round trip, in milliseconds; -1 if not measured. */
+    @GuardedBy("lock")
+    private long minRoundTripTime = -1;
+    /** Smoothed delivery rate, in bytes per millisecond. */
+    @GuardedBy("lock")
+    private double rate = 0;
+    @GuardedBy("lock")
+    private long rateIntervalStart = -1;
+    @GuardedBy("lock")
+    private long rateIntervalBytes = 0;
+    private final Object lock = new Object();
+
+    public RequestWindow(@Nonnegative int blockLength, @Nonnegative int initialSize, @Nonnegative int maxSize) {
+        this.blockLength = blockLength;
+        this.maxSize = Math.max(maxSize, MIN_SIZE);
+        this.size = Math.min(Math.max(initialSize, MIN_SIZE), this.maxSize);
+    }
+
+    /** Returns the number of requests we may have outstanding. */
+    @Nonnegative
+    public int getSize() {
+        synchronized (lock) {
+            return Math.min((int) size, remoteMaxSize);
+        }
+    }
+
+    /**
+     * Sets the length of the requests we send, and rescales the window to
+     * keep the same number of bytes in flight.
+     */
+    public void setBlockLength(@Nonnegative int blockLength) {
+        synchronized (lock) {
+            size = Math.max(size * this.blockLength / blockLength, MIN_SIZE);
+            this.blockLength = blockLength;
+        }
+    }
+
+    /**
+     * Sets the number of outstanding requests the peer will accept, from the
+     * reqq field of its extended handshake.
+     */
+    public void setRemoteMaxSize(int remoteMaxSize) {
+        if (remoteMaxSize <= 0)
+            return;
+        synchronized (lock) {
+            this.remoteMaxSize = remoteMaxSize;
+        }
+    }
+
+    /** Returns the smoothed round trip in milliseconds, or -1 if not yet measured. */
+    public long getRoundTripTime() {
+        synchronized (lock) {
+            return roundTripTime;
+        }
+    }
+
+    /**
+     * Returns the time after which a request to this peer should be
+     * considered lost.
+     *
+     * As TCP, this is the smoothed round trip plus four times its mean
+     * deviation. The round trip includes the time a request waits behind the
+     * rest of the window, so this adapts to the window as well as to the
+     * link.
+     *
+     * @param maxTimeout The timeout to return if we have not measured the
+     * round trip, and the upper bound on the timeout.
+     */
+    @Nonnegative
+    public long getRequestTimeout(@Nonnegative long maxTimeout) {
+        synchronized (lock) {
+            if (roundTripTime < 0)
+                return maxTimeout;
+            long timeout = roundTripTime + 4 * roundTripTimeVariance;
+            return Math.min(Math.max(timeout, MIN_REQUEST_TIMEOUT), maxTimeout);
+        }
+    }
+
+    /** Returns the minimum round trip in milliseconds, or -1 if not yet measured. */
+    public long getMinRoundTripTime() {
+        synchronized (lock) {
+            return minRoundTripTime;
+        }
+    }
+
+    /** Returns the estimated bandwidth-delay product, in blocks. */
+    @GuardedBy("lock")
+    private double getBandwidthDelayProduct() {
+        return rate * minRoundTripTime / blockLength;
+    }
+
+    /**
+     * Records the arrival of a block we requested.
+     *
+     * @param requestTime The time at which the request was sent.
+     * @param length The length of the block.
+     * @param now The current time.
+     */
+    public void addBlockReceived(long requestTime, @Nonnegative int length, long now) {
+        long sample = Math.max(now - requestTime, 1);
+        synchronized (lock) {
+            if (roundTripTime < 0) {
+                roundTripTime = sample;
+                roundTripTimeVariance = sample >> 1;
+                minRoundTripTime = sample;
+            } else {
+                // As TCP (RFC 6298), with gains of 1/4 and 1/8.
+                roundTripTimeVariance += (Math.abs(roundTripTime - sample) - roundTripTimeVariance) >> 2;
+                roundTripTime += (sample - roundTripTime) >> 3;
+                // Letting this rise would let a full queue at the peer inflate
+                // our estimate, and with it the window and the queue.
+                minRoundTripTime = Math.min(minRoundTripTime, sample);
+            }
+
+            RATE:
+            {
+                if (rateIntervalStart < 0) {
+                    rateIntervalStart = now;
+                    break RATE;
+                }
+                rateIntervalBytes += length;
+                long elapsed = now - rateIntervalStart;
+                if (elapsed < Math.max(minRoundTripTime, MIN_RATE_INTERVAL))
+                    break RATE;
+                double sampleRate = (double) rateIntervalBytes / elapsed;
+                if (rate == 0)
+                    rate = sampleRate;
+                else
+                    rate += (sampleRate - rate) / 4;
+                rateIntervalStart = now;
+                rateIntervalBytes = 0;
+            }
+
+            // The queue at the peer has started to grow.
+            if (sample > 2 * minRoundTripTime)
+                slowStart = false;
+
+            // Until we have a rate, only the hard limits apply.
+            double limit = maxSize;
+            if (rate > 0)
+                limit = Math.min(limit, Math.max(BDP_GAIN * getBandwidthDelayProduct() + 1, MIN_SIZE));
+
+            if (size < limit) {
+                if (slowStart)
+                    size += 1;
+                else
+                    size += 1 / size;
+                size = Math.min(size, limit);
+            } else {
+                // The peer is not keeping up with the window.
+                slowStart = false;
+                size = limit;
+            }
+        }
+    }
+
+    /**
+     * Records that requests to the peer timed out, and halves the window.
+     */
+    public void addRequestsExpired() {
+        synchronized (lock) {
+            slowStart = false;
+            size = Math.max(size / 2, MIN_SIZE);
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (lock) {
+            return getSize() + (slowStart ? "S" : "") + " rtt=" + roundTripTime + "/" + minRoundTripTime + "ms";
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.peer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Requests which timed out, were rejected, or were lost with their peer,
+ * waiting to be sent to another peer.
+ *
+ * <p>
+ * Requests are indexed by piece, with a bitmap of the pieces which have any
+ * request waiting, so matching the queue against a peer's availability is a
+ * bitmap intersection rather than a scan over every waiting request. Pieces
+ * are served rarest first, and the requests of a piece oldest first.
+ * </p>
+ *
+ * @author shevek
+ */
+public class RetryQueue {
+
+    /** Pieces with at least one request waiting. */
+    @GuardedBy("lock")
+    private final BitSet pieces;
+    /** Piece index to waiting requests, oldest first. */
+    @GuardedBy("lock")
+    private final Map<Integer, Queue<PieceHandler.AnswerableRequestMessage>> requests = new HashMap<Integer, Queue<PieceHandler.AnswerableRequestMessage>>();
+    /** The number of requests in {@link #requests}; written under the lock, read without it. */
+    @GuardedBy("lock")
+    private volatile int requestCount = 0;
+    private final Object lock = new Object();
+
+    public RetryQueue(@Nonnegative int pieceCount) {
+        this.pieces = new BitSet(pieceCount);
+    }
+
+    /** Returns the number of requests waiting. */
+    @Nonnegative
+    public int getRequestCount() {
+        return requestCount;
+    }
+
+    public boolean isEmpty() {
+        return getRequestCount() == 0;
+    }
+
+    /** Returns the number of pieces with at least one request waiting. */
+    @Nonnegative
+    public int getPieceCount() {
+        synchronized (lock) {
+            return pieces.cardinality();
+        }
+    }
+
+    public void add(@Nonnull PieceHandler.AnswerableRequestMessage request) {
+        int piece = request.getPiece();
+        synchronized (lock) {
+            Queue<PieceHandler.AnswerableRequestMessage> queue = requests.get(piece);
+            if (queue == null) {
+                queue = new ArrayDeque<PieceHandler.AnswerableRequestMessage>();
+                requests.put(piece, queue);
+                pieces.set(piece);
+            }
+            queue.add(request);
+            requestCount++;
+        }
+    }
+
+    /**
+     * Removes and returns waiting requests for pieces in the given set.
+     *
+     * The caller owns the returned requests, and must send them or add them
+     * back.
+     *
+     * @param interesting The pieces the peer has and we want. Not modified.
+     * @param availability Used to serve the rarest pieces first.
+     * @param maxRequests The maximum number of requests to return.
+     */
+    @Nonnull
+    public List<PieceHandler.AnswerableRequestMessage> poll(
+            @Nonnull BitSet interesting,
+            @Nonnull PieceAvailability availability,
+            @Nonnull Random random,
+            @Nonnegative int maxRequests) {
+        List<PieceHandler.AnswerableRequestMessage> out = new ArrayList<PieceHandler.AnswerableRequestMessage>();
+        if (isEmpty())
+            return out;
+        BitSet matching = (BitSet) interesting.clone();
+        synchronized (lock) {
+            matching.and(pieces);
+        }
+        while (out.size() < maxRequests) {
+            // Search outside our lock, and tolerate a stale match.
+            int piece = availability.getRarestPiece(matching, random);
+            if (piece < 0)
+                piece = matching.nextSetBit(0);
+            if (piece < 0)
+                break;
+            matching.clear(piece);
+            synchronized (lock) {
+                Queue<PieceHandler.AnswerableRequestMessage> queue = requests.get(piece);
+                if (queue == null)
+                    continue;
+                while (out.size() < maxRequests && !queue.isEmpty()) {
+                    out.add(queue.remove());
+                    requestCount--;
+                }
+                if (queue.isEmpty()) {
+                    requests.remove(piece);
+                    pieces.clear(piece);
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Discards every waiting request for the given piece, releasing the
+     * claims they hold on their blocks.
+     *
+     * @return the number of requests discarded.
+     */
+    @Nonnegative
+    public int remove(@Nonnegative int piece) {
+        Queue<PieceHandler.AnswerableRequestMessage> queue;
+        synchronized (lock) {
+            if (!pieces.get(piece))
+                return 0;
+            queue = requests.remove(piece);
+            pieces.clear(piece);
+            requestCount -= queue.size();
+        }
+        for (PieceHandler.AnswerableRequestMessage request : queue)
+            request.cancel();
+        return queue.size();
+    }
+
+    @Override
+    public String toString() {
+        return "RetryQueue(requests=" + getRequestCount() + ", pieces=" + getPieceCount() + ")";
+    }
+}
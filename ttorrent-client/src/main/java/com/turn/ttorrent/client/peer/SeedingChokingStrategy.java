@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.peer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Rotates upload slots between peers while seeding.
+ *
+ * <p>
+ * A seed has nothing to gain from tit-for-tat, and ranking peers by upload
+ * rate gives the same fast peers every slot. Instead, each unchoked peer
+ * keeps its slot for a fixed time, and is then replaced by the interested
+ * peer which has waited longest. Every peer gets a turn, and the pieces we
+ * upload reach as many peers as possible, who can then trade them among
+ * themselves.
+ * </p>
+ *
+ * <p>
+ * While we are still downloading, the choice is delegated to another
+ * strategy.
+ * </p>
+ *
+ * @author shevek
+ */
+public class SeedingChokingStrategy implements ChokingStrategy {
+
+    public static final long DEFAULT_SLOT_DURATION = TimeUnit.SECONDS.toMillis(30);
+    private final int uploadSlots;
+    private final long slotDuration;
+    private final ChokingStrategy sharingStrategy;
+    /** The time at which each peer was last given a slot. */
+    @GuardedBy("lock")
+    private final Map<PeerHandler, Long> unchokeTimes = new WeakHashMap<PeerHandler, Long>();
+    private final Object lock = new Object();
+
+    /**
+     * @param slotDuration The time in milliseconds for which a peer keeps a
+     * slot.
+     * @param sharingStrategy The strategy to use while we are not seeding.
+     */
+    public SeedingChokingStrategy(@Nonnegative int uploadSlots, @Nonnegative long slotDuration, @Nonnull ChokingStrategy sharingStrategy) {
+        this.uploadSlots = uploadSlots;
+        this.slotDuration = slotDuration;
+        this.sharingStrategy = sharingStrategy;
+    }
+
+    public SeedingChokingStrategy() {
+        this(TitForTatChokingStrategy.DEFAULT_UPLOAD_SLOTS, DEFAULT_SLOT_DURATION, new TitForTatChokingStrategy());
+    }
+
+    @Override
+    public int getFastUnchokeCount() {
+        return uploadSlots;
+    }
+
+    @GuardedBy("lock")
+    private long getUnchokeTime(@Nonnull PeerHandler peer) {
+        Long time = unchokeTimes.get(peer);
+        if (time == null)
+            return 0L;
+        return time.longValue();
+    }
+
+    @Override
+    public Set<PeerHandler> getUnchokedPeers(List<PeerHandler> candidates, boolean seeding, boolean optimistic, Random random) {
+        if (!seeding)
+            return sharingStrategy.getUnchokedPeers(candidates, seeding, optimistic, random);
+
+        long now = System.currentTimeMillis();
+        Set<PeerHandler> out = new LinkedHashSet<PeerHandler>();
+        synchronized (lock) {
+            // Peers whose turn is not over keep their slots.
+            List<PeerHandler> waiting = new ArrayList<PeerHandler>();
+            for (PeerHandler peer : candidates) {
+                if (out.size() < uploadSlots && !peer.isChoked(0) && getUnchokeTime(peer) + slotDuration > now)
+                    out.add(peer);
+                else
+                    waiting.add(peer);
+            }
+
+            // The rest go to the peers which have waited longest, ties at random.
+            Collections.shuffle(waiting, random);
+            Collections.sort(waiting, new Comparator<PeerHandler>() {
+                @Override
+                public int compare(PeerHandler o1, PeerHandler o2) {
+                    long t1 = getUnchokeTime(o1);
+                    long t2 = getUnchokeTime(o2);
+                    return (t1 < t2) ? -1 : ((t1 == t2) ? 0 : 1);
+                }
+            });
+            for (PeerHandler peer : waiting) {
+                if (out.size() >= uploadSlots)
+                    break;
+                out.add(peer);
+                unchokeTimes.put(peer, now);
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public String toString() {
+        return "SeedingChokingStrategy(uploadSlots=" + uploadSlots + ", slotDuration=" + slotDuration + ", sharing=" + sharingStrategy + ")";
+    }
+}
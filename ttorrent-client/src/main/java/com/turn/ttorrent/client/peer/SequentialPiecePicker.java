@@ -0,0 +1,45 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.peer;
+
+import com.turn.ttorrent.client.PeerPieceProvider;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Picks the lowest-numbered piece the peer has.
+ *
+ * <p>
+ * The torrent is completed roughly front-to-back, so a consumer which reads
+ * the files in order may start before the download is finished. This is bad
+ * for the health of the swarm, since every peer wants the same pieces, so
+ * it is best used for torrents with a well-seeded origin.
+ * </p>
+ *
+ * @author shevek
+ */
+public class SequentialPiecePicker implements PiecePicker {
+
+    @Override
+    public int getNextPiece(PeerPieceProvider provider, PieceAvailability availability, PeerHandler peer, BitSet interesting, Random random) {
+        return interesting.nextSetBit(0);
+    }
+
+    @Override
+    public String toString() {
+        return "Sequential";
+    }
+}
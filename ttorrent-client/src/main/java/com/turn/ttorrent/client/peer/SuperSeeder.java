@@ -0,0 +1,241 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.peer;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForSigned;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Chooses the pieces which a super-seed reveals to its peers, as in BEP 16.
+ *
+ * <p>
+ * A super-seed sends each peer an empty bitfield, then reveals one piece at
+ * a time with a HAVE message. It reveals another piece to a peer only when
+ * some other peer announces the piece last revealed to it, that is, once the
+ * peer has passed the piece on to the swarm. Each piece revealed is the one
+ * least available and least revealed among those the peer does not have,
+ * so the origin uploads each piece as few times as possible.
+ * </p>
+ *
+ * <p>
+ * A peer with nobody to pass its piece to would then wait forever, so a
+ * reveal also lapses a while after the peer announces the piece itself, or
+ * a longer while after we revealed it if the peer never does. A spread time
+ * of zero gives the non-strict behaviour of releasing the peer as soon as it
+ * announces the piece. The caller checks for lapsed reveals with
+ * {@link #expire(PeerHandler, long)}.
+ * </p>
+ *
+ * @author shevek
+ */
+public class SuperSeeder {
+
+    /** The time for which we wait for a piece to spread after the peer we revealed it to announces it. */
+    public static final long DEFAULT_SPREAD_TIME = TimeUnit.SECONDS.toMillis(30);
+    /** The time after which we reveal another piece to a peer which has not announced the last one. */
+    public static final long DEFAULT_REVEAL_TIME = TimeUnit.MINUTES.toMillis(5);
+
+    private static class Reveal {
+
+        private final int piece;
+        private final long revealTime;
+        /** The time at which the peer announced the piece, or 0. */
+        private long announceTime = 0;
+
+        public Reveal(int piece, long revealTime) {
+            this.piece = piece;
+            this.revealTime = revealTime;
+        }
+    }
+    /** Peer to the piece last revealed to it, until we see that piece spread. */
+    @GuardedBy("lock")
+    private final Map<PeerHandler, Reveal> revealedPieces = new HashMap<PeerHandler, Reveal>();
+    /** Piece to the peers to which it is revealed, until we see it spread. */
+    @GuardedBy("lock")
+    private final Map<Integer, Set<PeerHandler>> revealedPeers = new HashMap<Integer, Set<PeerHandler>>();
+    /** Piece to the number of times we have revealed it. */
+    @GuardedBy("lock")
+    private final int[] revealCounts;
+    private final long spreadTime;
+    private final long revealTime;
+    private final Object lock = new Object();
+
+    /**
+     * @param spreadTime The time in milliseconds after a peer announces the
+     * piece we revealed to it, after which we reveal another even if nobody
+     * else has announced it.
+     * @param revealTime The time in milliseconds after which we reveal
+     * another piece to a peer which has not announced the last one.
+     */
+    public SuperSeeder(@Nonnegative int pieceCount, @Nonnegative long spreadTime, @Nonnegative long revealTime) {
+        this.revealCounts = new int[pieceCount];
+        this.spreadTime = spreadTime;
+        this.revealTime = revealTime;
+    }
+
+    public SuperSeeder(@Nonnegative int pieceCount) {
+        this(pieceCount, DEFAULT_SPREAD_TIME, DEFAULT_REVEAL_TIME);
+    }
+
+    /**
+     * Chooses a piece to reveal to the given peer, if the last piece we
+     * revealed to it has spread.
+     *
+     * @return the piece to announce to the peer, or -1 if none.
+     */
+    @CheckForSigned
+    public int reveal(@Nonnull PeerHandler peer, @Nonnull PieceAvailability availability, @Nonnull Random random) {
+        BitSet peerPieces = peer.getAvailablePieces();
+        synchronized (lock) {
+            if (revealedPieces.containsKey(peer))
+                return -1;
+            int pieceCount = revealCounts.length;
+            if (pieceCount == 0)
+                return -1;
+            int start = random.nextInt(pieceCount);
+            int piece = -1;
+            long score = Long.MAX_VALUE;
+            for (int i = 0; i < pieceCount; i++) {
+                int index = (start + i) % pieceCount;
+                if (peerPieces.get(index))
+                    continue;
+                // Prefer pieces the swarm lacks, then pieces we have revealed least.
+                long indexScore = ((long) availability.getAvailability(index) << 32) + revealCounts[index];
+                if (indexScore < score) {
+                    piece = index;
+                    score = indexScore;
+                }
+            }
+            if (piece < 0)
+                return -1;
+            revealedPieces.put(peer, new Reveal(piece, System.currentTimeMillis()));
+            Set<PeerHandler> peers = revealedPeers.get(piece);
+            if (peers == null) {
+                peers = new HashSet<PeerHandler>();
+                revealedPeers.put(piece, peers);
+            }
+            peers.add(peer);
+            revealCounts[piece]++;
+            return piece;
+        }
+    }
+
+    /**
+     * Records that a peer announced a piece.
+     *
+     * @param now The current time in milliseconds.
+     * @return the peers to which we revealed the piece, and may now reveal
+     * another. This includes the announcing peer only if the spread time is
+     * zero.
+     */
+    @Nonnull
+    public List<PeerHandler> handlePieceAvailability(@Nonnull PeerHandler peer, @Nonnegative int piece, long now) {
+        synchronized (lock) {
+            Set<PeerHandler> peers = revealedPeers.get(piece);
+            if (peers == null)
+                return Collections.emptyList();
+            List<PeerHandler> out = new ArrayList<PeerHandler>(peers.size());
+            for (PeerHandler revealedPeer : peers)
+                if (revealedPeer != peer)
+                    out.add(revealedPeer);
+            if (peers.contains(peer)) {
+                Reveal reveal = revealedPieces.get(peer);
+                if (reveal.announceTime == 0)
+                    reveal.announceTime = now;
+                if (spreadTime == 0)
+                    out.add(peer);
+            }
+            for (PeerHandler revealedPeer : out)
+                removeLocked(revealedPeer);
+            return out;
+        }
+    }
+
+    /**
+     * Forgets the piece revealed to the given peer if it has lapsed: that
+     * is, if the peer announced it more than the spread time ago, or never
+     * announced it and we revealed it more than the reveal time ago.
+     *
+     * This should be called periodically for each peer.
+     *
+     * @param now The current time in milliseconds.
+     * @return true if we may now reveal another piece to the peer.
+     */
+    public boolean expire(@Nonnull PeerHandler peer, long now) {
+        synchronized (lock) {
+            Reveal reveal = revealedPieces.get(peer);
+            if (reveal == null)
+                return false;
+            if (reveal.announceTime != 0) {
+                if (now - reveal.announceTime < spreadTime)
+                    return false;
+            } else {
+                if (now - reveal.revealTime < revealTime)
+                    return false;
+            }
+            removeLocked(peer);
+            return true;
+        }
+    }
+
+    @GuardedBy("lock")
+    private void removeLocked(@Nonnull PeerHandler peer) {
+        Reveal reveal = revealedPieces.remove(peer);
+        if (reveal == null)
+            return;
+        Set<PeerHandler> peers = revealedPeers.get(reveal.piece);
+        if (peers != null) {
+            peers.remove(peer);
+            if (peers.isEmpty())
+                revealedPeers.remove(reveal.piece);
+        }
+    }
+
+    /** Forgets the piece revealed to the given peer, as when it disconnects. */
+    public void remove(@Nonnull PeerHandler peer) {
+        synchronized (lock) {
+            removeLocked(peer);
+        }
+    }
+
+    /** Returns the piece revealed to the given peer which has not yet spread, or -1. */
+    @CheckForSigned
+    public int getRevealedPiece(@Nonnull PeerHandler peer) {
+        synchronized (lock) {
+            Reveal reveal = revealedPieces.get(peer);
+            return reveal == null ? -1 : reveal.piece;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (lock) {
+            return "SuperSeeder(revealed=" + revealedPieces.size() + ")";
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.peer;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The classic BitTorrent choking algorithm.
+ *
+ * <p>
+ * We unchoke the peers which give us the best download rate while we are
+ * sharing, or which we upload to fastest while we are seeding, plus one
+ * random optimistic unchoke, so that new peers get a chance to prove
+ * themselves.
+ * </p>
+ *
+ * @author mpetazzoni
+ */
+public class TitForTatChokingStrategy implements ChokingStrategy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TitForTatChokingStrategy.class);
+    public static final int DEFAULT_UPLOAD_SLOTS = 4;
+    private final int uploadSlots;
+
+    public TitForTatChokingStrategy(@Nonnegative int uploadSlots) {
+        this.uploadSlots = uploadSlots;
+    }
+
+    public TitForTatChokingStrategy() {
+        this(DEFAULT_UPLOAD_SLOTS);
+    }
+
+    /** Returns the number of peers to unchoke, excluding the optimistic unchoke. */
+    @Nonnegative
+    protected int getUploadSlots() {
+        return uploadSlots;
+    }
+
+    @Override
+    public int getFastUnchokeCount() {
+        return getUploadSlots();
+    }
+
+    @Nonnull
+    protected Comparator<PeerHandler> getPeerRateComparator(boolean seeding) {
+        if (seeding)
+            return new RateComparator.ULRateComparator();
+        return new RateComparator.DLRateComparator();
+    }
+
+    @Override
+    public Set<PeerHandler> getUnchokedPeers(List<PeerHandler> candidates, boolean seeding, boolean optimistic, Random random) {
+        // Collections.shuffle(candidates);    // Make the sort unstable, so if we have no downloaders, we select at random.
+        Collections.sort(candidates, getPeerRateComparator(seeding));
+        // LOG.info("{}: Candidates are {}", getLocalPeerName(), candidates);
+
+        // We're interested in the top downloaders first, so use a descending set.
+        int count = Math.min(candidates.size(), getUploadSlots());
+        Set<PeerHandler> out = new LinkedHashSet<PeerHandler>(candidates.subList(0, count));
+
+        // Add the eventual optimistic unchoke.
+        int nchoked = candidates.size() - count;
+        if (optimistic && nchoked > 0) {
+            PeerHandler peer = candidates.get(count + random.nextInt(nchoked));
+            if (LOG.isTraceEnabled())
+                LOG.trace("Optimistic unchoke of {}.", peer);
+            out.add(peer);
+        }
+        return out;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(uploadSlots=" + getUploadSlots() + ")";
+    }
+}
@@ -15,10 +15,12 @@
  */
 package com.turn.ttorrent.client.storage;
 
+import io.netty.channel.FileRegion;
 import java.io.Closeable;
 import java.io.Flushable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 
@@ -58,6 +60,25 @@ public interface ByteStorage extends Flushable, Closeable {
      */
     public int read(@Nonnull ByteBuffer buffer, @Nonnegative long offset) throws IOException;
 
+    /**
+     * Returns a region of the underlying file, to be sent without copying.
+     *
+     * <p>
+     * The caller owns the region, and must release it, as netty does once
+     * the region is written.
+     * </p>
+     *
+     * @param offset The offset, in bytes, of the region. This must be within
+     * the storage boundary.
+     * @param length The length, in bytes, of the region.
+     * @return The region, or null if the range is not stored within a single
+     * file.
+     * @throws IOException If an I/O error occurs while accessing the byte
+     * storage.
+     */
+    @CheckForNull
+    public FileRegion getFileRegion(@Nonnegative long offset, @Nonnegative int length) throws IOException;
+
     /**
      * Write bytes to the byte storage.
      *
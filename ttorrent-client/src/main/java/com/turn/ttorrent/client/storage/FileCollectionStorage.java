@@ -16,6 +16,7 @@
 package com.turn.ttorrent.client.storage;
 
 import com.google.common.base.Objects;
+import io.netty.channel.FileRegion;
 import java.io.Closeable;
 import java.io.Flushable;
 import java.io.IOException;
@@ -87,6 +88,16 @@ public class FileCollectionStorage implements ByteStorage {
         return bytes;
     }
 
+    @Override
+    public FileRegion getFileRegion(long offset, int length) throws IOException {
+        List<Fragment> fragments = this.select(offset, length);
+        // A region can't span files.
+        if (fragments.size() != 1)
+            return null;
+        Fragment fo = fragments.get(0);
+        return fo.part.getFileRegion(fo.offset, length);
+    }
+
     @Override
     public int write(ByteBuffer buffer, long offset) throws IOException {
         int requested = buffer.remaining();
@@ -17,6 +17,7 @@ package com.turn.ttorrent.client.storage;
 
 import com.google.common.base.Objects;
 import com.turn.ttorrent.protocol.TorrentUtils;
+import io.netty.channel.FileRegion;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -51,7 +52,7 @@ public class FileStorage implements ByteRangeStorage {
     private final long offset;
     private final long size;
     @GuardedBy("lock")
-    private FileChannel channel;
+    private SharedFileChannel channel;
     @GuardedBy("lock")
     private File current;
     @GuardedBy("lock")
@@ -95,7 +96,7 @@ public class FileStorage implements ByteRangeStorage {
                 raf.close();
             }
 
-            this.channel = FileChannel.open(current.toPath(), EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+            this.channel = new SharedFileChannel(FileChannel.open(current.toPath(), EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)));
             this.finished = false;
         }
         LOG.info("{}: Initialized byte storage file at {} ({}+{} byte(s)).",
@@ -131,7 +132,7 @@ public class FileStorage implements ByteRangeStorage {
             if (offset + length > this.size)
                 throw new IllegalArgumentException(target.getAbsolutePath() + ": Invalid storage read request: offset=" + offset + ", length=" + length + " when size=" + this.size);
 
-            int read = channel.read(buffer, offset);
+            int read = channel.getChannel().read(buffer, offset);
             if (read < length)
                 throw new IOException(target.getAbsolutePath() + ": Storage underrun: offset=" + offset + ", length=" + length + ", size=" + size + ", read=" + read);
 
@@ -139,6 +140,19 @@ public class FileStorage implements ByteRangeStorage {
         }
     }
 
+    @Override
+    public FileRegion getFileRegion(long offset, int length) throws IOException {
+        synchronized (lock) {
+            if (channel == null)
+                throw new NullPointerException("Channel is null.");
+
+            if (offset + length > this.size)
+                throw new IllegalArgumentException(target.getAbsolutePath() + ": Invalid storage read request: offset=" + offset + ", length=" + length + " when size=" + this.size);
+
+            return channel.newFileRegion(offset, length);
+        }
+    }
+
     @Override
     public int write(ByteBuffer buffer, long offset) throws IOException {
         synchronized (lock) {
@@ -157,7 +171,7 @@ public class FileStorage implements ByteRangeStorage {
             if (offset + length > this.size)
                 throw new IllegalArgumentException(target.getAbsolutePath() + ": Invalid storage write request: offset=" + offset + ", length=" + length + " when size=" + this.size);
 
-            return channel.write(buffer, offset);
+            return channel.getChannel().write(buffer, offset);
         }
     }
 
@@ -165,7 +179,7 @@ public class FileStorage implements ByteRangeStorage {
     public void flush() throws IOException {
         synchronized (lock) {
             if (channel != null)
-                channel.force(true);
+                channel.getChannel().force(true);
             else
                 LOG.warn("{}: Not flushing {}: Not open.", target.getAbsolutePath(), current);
         }
@@ -179,7 +193,8 @@ public class FileStorage implements ByteRangeStorage {
                     target.getAbsolutePath(), current.getName()
                 });
                 flush();    // FileChannel does NOT flush on close.
-                channel.close();
+                // Closes the file once any regions being sent are released.
+                channel.release();
                 channel = null;
             } else {
                 LOG.warn("{}: Not closing {}: Not open.", target.getAbsolutePath(), current);
@@ -214,7 +229,7 @@ public class FileStorage implements ByteRangeStorage {
                 LOG.debug("{}: Re-opening torrent byte storage.",
                         this.target.getAbsolutePath());
 
-            this.channel = FileChannel.open(target.toPath(), EnumSet.of(StandardOpenOption.READ));
+            this.channel = new SharedFileChannel(FileChannel.open(target.toPath(), EnumSet.of(StandardOpenOption.READ)));
             this.finished = true;
         }
     }
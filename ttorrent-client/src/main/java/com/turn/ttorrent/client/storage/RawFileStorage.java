@@ -5,6 +5,7 @@
 package com.turn.ttorrent.client.storage;
 
 import com.google.common.base.Objects;
+import io.netty.channel.FileRegion;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -20,36 +21,42 @@ import javax.annotation.Nonnull;
 public class RawFileStorage implements ByteStorage {
 
     private final File file;
-    private final FileChannel channel;
+    private final SharedFileChannel channel;
     private boolean finished = false;
 
     public RawFileStorage(@Nonnull File file) throws IOException {
         this.file = file;
-        this.channel = FileChannel.open(file.toPath(), EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE));
+        this.channel = new SharedFileChannel(FileChannel.open(file.toPath(), EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE)));
     }
 
     @Override
     public int read(ByteBuffer buffer, long offset) throws IOException {
-        int bytes = channel.read(buffer, offset);
+        int bytes = channel.getChannel().read(buffer, offset);
         buffer.position(buffer.limit());
         return bytes;
     }
 
+    @Override
+    public FileRegion getFileRegion(long offset, int length) throws IOException {
+        return channel.newFileRegion(offset, length);
+    }
+
     @Override
     public int write(ByteBuffer buffer, long offset) throws IOException {
-        return channel.write(buffer, offset);
+        return channel.getChannel().write(buffer, offset);
     }
 
     public void flush() throws IOException {
-        if (channel.isOpen())
-            channel.force(true);
+        if (channel.getChannel().isOpen())
+            channel.getChannel().force(true);
     }
 
     @Override
     public void close() throws IOException {
         flush();
-        if (channel.isOpen())
-            channel.close();
+        // Closes the file once any regions being sent are released.
+        if (channel.refCnt() > 0)
+            channel.release();
     }
 
     @Override
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.storage;
+
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
+import io.netty.util.AbstractReferenceCounted;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A FileChannel which is closed once the storage and every
+ * {@link FileRegion} sending from it have released it.
+ *
+ * <p>
+ * This lets a storage close or reopen its file while blocks are still
+ * being sent from it.
+ * </p>
+ *
+ * @author shevek
+ */
+/* pp */ class SharedFileChannel extends AbstractReferenceCounted {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SharedFileChannel.class);
+    private final FileChannel channel;
+
+    public SharedFileChannel(@Nonnull FileChannel channel) {
+        this.channel = channel;
+    }
+
+    @Nonnull
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /** Returns a region of the file, which holds a reference until it is released. */
+    @Nonnull
+    public FileRegion newFileRegion(@Nonnegative long position, @Nonnegative long count) {
+        retain();
+        return new DefaultFileRegion(channel, position, count) {
+            @Override
+            protected void deallocate() {
+                // Don't close the channel; it's not ours.
+                SharedFileChannel.this.release();
+            }
+        };
+    }
+
+    @Override
+    protected void deallocate() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.warn("Failed to close " + channel, e);
+        }
+    }
+}
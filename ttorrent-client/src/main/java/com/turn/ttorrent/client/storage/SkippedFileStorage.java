@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.storage;
+
+import com.google.common.base.Objects;
+import io.netty.channel.FileRegion;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+
+/**
+ * Storage for a file of a torrent which we do not want.
+ *
+ * <p>
+ * If no piece we want overlaps the file, no file is created, and any I/O is
+ * an error. Otherwise, the part of the file within those pieces must be
+ * stored so that the pieces can be verified and served, and the data is kept
+ * in the partial file, which is never moved to the target location.
+ * </p>
+ *
+ * @author shevek
+ */
+public class SkippedFileStorage implements ByteRangeStorage {
+
+    private final File target;
+    private final long offset;
+    private final long size;
+    @CheckForNull
+    private final FileStorage delegate;
+
+    /**
+     * @param create True if a piece we want overlaps this file.
+     */
+    public SkippedFileStorage(@Nonnull File file, @Nonnegative long offset, @Nonnegative long size, boolean create)
+            throws IOException {
+        this.target = file;
+        this.offset = offset;
+        this.size = size;
+        this.delegate = create ? new FileStorage(file, offset, size) : null;
+    }
+
+    @Nonnull
+    public File getFile() {
+        return target;
+    }
+
+    @Override
+    public long offset() {
+        return offset;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Nonnull
+    private FileStorage getDelegate() throws IOException {
+        if (delegate == null)
+            throw new IOException(target.getAbsolutePath() + ": File is skipped, and has no storage.");
+        return delegate;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, long offset) throws IOException {
+        return getDelegate().read(buffer, offset);
+    }
+
+    @Override
+    public FileRegion getFileRegion(long offset, int length) throws IOException {
+        return getDelegate().getFileRegion(offset, length);
+    }
+
+    @Override
+    public int write(ByteBuffer block, long offset) throws IOException {
+        return getDelegate().write(block, offset);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (delegate != null)
+            delegate.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (delegate != null)
+            delegate.close();
+    }
+
+    /** Does nothing: we never have all of a skipped file. */
+    @Override
+    public void finish() throws IOException {
+    }
+
+    @Override
+    public boolean isFinished() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("file", target)
+                .add("offset", offset)
+                .add("size", size)
+                .add("stored", delegate != null)
+                .toString();
+    }
+}
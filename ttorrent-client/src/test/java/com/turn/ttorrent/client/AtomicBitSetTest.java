@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class AtomicBitSetTest {
+
+    @Test
+    public void testSet() {
+        BitSet initial = new BitSet();
+        initial.set(3);
+        initial.set(64);
+        initial.set(200);   // Beyond the size; ignored.
+        AtomicBitSet set = new AtomicBitSet(130, initial);
+        assertEquals(130, set.size());
+        assertEquals(2, set.cardinality());
+        assertTrue(set.get(3));
+        assertTrue(set.get(64));
+        assertFalse(set.get(4));
+        assertFalse(set.get(200));
+
+        BitSet snapshot = set.getSnapshot();
+        assertSame(snapshot, set.getSnapshot());
+        assertEquals(2, snapshot.cardinality());
+
+        assertTrue(set.set(129));
+        assertFalse(set.set(129));
+        assertEquals(3, set.cardinality());
+        // The old snapshot is unchanged.
+        assertFalse(snapshot.get(129));
+        assertNotSame(snapshot, set.getSnapshot());
+        assertTrue(set.getSnapshot().get(129));
+
+        try {
+            set.set(130);
+            fail("Set a bit beyond the size.");
+        } catch (IndexOutOfBoundsException e) {
+        }
+    }
+
+    @Test
+    public void testConcurrentSet() throws Exception {
+        final int size = 10000;
+        final AtomicBitSet set = new AtomicBitSet(size);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        int count = 0;
+                        for (int i = 0; i < size; i++)
+                            if (set.set(i))
+                                count++;
+                        return count;
+                    }
+                }));
+            }
+            int count = 0;
+            for (Future<Integer> future : futures)
+                count += future.get();
+            assertEquals(size, count);
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(size, set.cardinality());
+        assertEquals(size, set.getSnapshot().cardinality());
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client;
+
+import com.turn.ttorrent.protocol.test.TorrentTestUtils;
+import com.turn.ttorrent.protocol.torrent.Torrent;
+import java.io.File;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class ConnectionManagerTest {
+
+    private TorrentHandler newTorrent(Client client, int size) throws Exception {
+        File dir = TorrentTestUtils.newTorrentDir("ConnectionManagerTest");
+        Torrent torrent = TorrentTestUtils.newTorrentCreator(dir, size).create();
+        return client.addTorrent(torrent, dir);
+    }
+
+    @Test
+    public void testBudget() throws Exception {
+        Client client = new Client(getClass().getSimpleName());
+        TorrentHandler t0 = newTorrent(client, 12345);
+        TorrentHandler t1 = newTorrent(client, 23456);
+        t0.setMinConnectedPeers(0);
+        t1.setMinConnectedPeers(3);
+
+        ConnectionManager manager = client.getConnectionManager();
+        manager.setMaxConnections(10);
+        manager.setMaxHalfOpenConnections(2);
+        SwarmHandler s0 = t0.getSwarmHandler();
+        SwarmHandler s1 = t1.getSwarmHandler();
+
+        // Half-open connections are capped separately.
+        assertTrue(manager.tryAcquireHalfOpenConnection(s0));
+        assertTrue(manager.tryAcquireHalfOpenConnection(s0));
+        assertFalse(manager.tryAcquireHalfOpenConnection(s0));
+        manager.releaseHalfOpenConnection();
+        manager.releaseHalfOpenConnection();
+        assertEquals(0, manager.getHalfOpenConnectionCount());
+
+        // The last 3 connections are reserved for t1.
+        for (int i = 0; i < 7; i++)
+            assertTrue(manager.tryAcquireConnection(s0));
+        assertFalse(manager.tryAcquireConnection(s0));
+        assertFalse(manager.tryAcquireHalfOpenConnection(s0));
+        for (int i = 0; i < 3; i++)
+            assertTrue(manager.tryAcquireConnection(s1));
+        assertFalse(manager.tryAcquireConnection(s1));
+        assertEquals(10, manager.getConnectionCount());
+
+        manager.releaseConnection();
+        assertTrue(manager.tryAcquireHalfOpenConnection(s1));
+        assertEquals(1, manager.getHalfOpenConnectionCount());
+    }
+
+    @Test
+    public void testReservation() throws Exception {
+        Client client = new Client(getClass().getSimpleName());
+        TorrentHandler t0 = newTorrent(client, 12345);
+        TorrentHandler t1 = newTorrent(client, 23456);
+        t0.setMinConnectedPeers(0);
+        t1.setMinConnectedPeers(3);
+
+        ConnectionManager manager = client.getConnectionManager();
+        manager.setMaxConnections(4);
+        SwarmHandler s0 = t0.getSwarmHandler();
+
+        assertTrue(manager.tryAcquireConnection(s0));
+        assertFalse(manager.tryAcquireConnection(s0));
+
+        // The reservation follows the minimum.
+        t1.setMinConnectedPeers(2);
+        assertTrue(manager.tryAcquireConnection(s0));
+        assertFalse(manager.tryAcquireConnection(s0));
+
+        // A removed torrent reserves nothing.
+        client.removeTorrent(t1);
+        assertTrue(manager.tryAcquireConnection(s0));
+        assertTrue(manager.tryAcquireConnection(s0));
+        assertFalse(manager.tryAcquireConnection(s0));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client;
+
+import com.turn.ttorrent.client.io.PeerMessage;
+import com.turn.ttorrent.client.peer.PieceHandler;
+import com.turn.ttorrent.protocol.test.TorrentTestUtils;
+import com.turn.ttorrent.protocol.torrent.Torrent;
+import com.turn.ttorrent.protocol.torrent.TorrentCreator;
+import io.netty.buffer.ByteBuf;
+import java.io.File;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class PieceBufferManagerTest {
+
+    @Test
+    public void testBudget() throws Exception {
+        PieceBufferManager manager = new PieceBufferManager();
+        manager.setMaxBufferedBytes(1000);
+
+        ByteBuf b0 = manager.tryAllocate(600);
+        assertNotNull(b0);
+        assertEquals(600, b0.capacity());
+        ByteBuf b1 = manager.tryAllocate(400);
+        assertNotNull(b1);
+        assertEquals(1000, manager.getBufferedBytes());
+        assertNull(manager.tryAllocate(1));
+
+        manager.release(b0);
+        assertEquals(0, b0.refCnt());
+        assertEquals(400, manager.getBufferedBytes());
+        assertNull(manager.tryAllocate(601));
+        manager.release(b1);
+        assertEquals(0, manager.getBufferedBytes());
+
+        // A piece larger than the budget may use it all.
+        ByteBuf b2 = manager.tryAllocate(2000);
+        assertNotNull(b2);
+        assertNull(manager.tryAllocate(1));
+        manager.release(b2);
+        assertEquals(0, manager.getBufferedBytes());
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        int pieceLength = 4 * PieceHandler.DEFAULT_BLOCK_SIZE;
+        File dir = TorrentTestUtils.newTorrentDir("PieceBufferManagerTest");
+        TorrentCreator creator = TorrentTestUtils.newTorrentCreator(dir, 4 * pieceLength - PieceHandler.DEFAULT_BLOCK_SIZE);
+        creator.setPieceLength(pieceLength);
+        Torrent torrent = creator.create();
+        Client client = new Client(getClass().getSimpleName());
+        TorrentHandler torrentHandler = client.addTorrent(torrent, TorrentTestUtils.newTorrentDir("PieceBufferManagerTest-leech"));
+        SwarmHandler swarmHandler = torrentHandler.getSwarmHandler();
+        PieceBufferManager manager = client.getPieceBufferManager();
+        manager.setMaxBufferedBytes(2 * pieceLength);
+
+        // Two pieces in progress spend the budget.
+        PieceHandler p0 = swarmHandler.getPieceHandler(0);
+        PieceHandler p1 = swarmHandler.getPieceHandler(1);
+        p0.iterator().next();
+        PieceHandler.AnswerableRequestMessage request = p1.iterator().next();
+        assertEquals(2 * pieceLength, manager.getBufferedBytes());
+        assertNull(swarmHandler.getPieceHandler(2));
+
+        // A completed piece gives back its buffer.
+        swarmHandler.handlePieceCompleted(null, 0, PieceHandler.Reception.VALID);
+        assertEquals(pieceLength, manager.getBufferedBytes());
+        PieceHandler p2 = swarmHandler.getPieceHandler(2);
+        assertNotNull(p2);
+        PieceHandler.AnswerableRequestMessage received = p2.iterator().next();
+
+        // So does a piece which nobody is working on, when room is wanted.
+        request.cancel();
+        assertFalse(p1.isReleased());
+        PieceHandler p3 = swarmHandler.getPieceHandler(3);
+        assertNotNull(p3);
+        assertTrue(p1.isReleased());
+        assertFalse(p2.isReleased());
+        assertEquals(2 * pieceLength - PieceHandler.DEFAULT_BLOCK_SIZE, manager.getBufferedBytes());
+
+        // But not a piece with received blocks, nor a fresh one which a peer has.
+        PeerMessage.PieceMessage response = new PeerMessage.PieceMessage(received.getPiece(), received.getOffset(), ByteBuffer.allocate(received.getLength()));
+        assertEquals(PieceHandler.Reception.INCOMPLETE, received.answer(response));
+        swarmHandler.setAvailablePiece(3, true);
+        assertNull(swarmHandler.getPieceHandler(1));
+        assertFalse(p2.isReleased());
+        assertSame(p3, swarmHandler.getPieceHandler(3));
+        assertFalse(p3.isReleased());
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client;
+
+import com.turn.ttorrent.client.peer.PeerActivityListener;
+import com.turn.ttorrent.client.peer.PeerConnectionListener;
+import com.turn.ttorrent.client.peer.PeerExistenceListener;
+import com.turn.ttorrent.client.peer.PeerHandler;
+import com.turn.ttorrent.client.peer.PieceHandler;
+import com.turn.ttorrent.protocol.test.TorrentTestUtils;
+import com.turn.ttorrent.protocol.torrent.Torrent;
+import com.turn.ttorrent.protocol.torrent.TorrentCreator;
+import com.turn.ttorrent.tracker.client.test.TestPeerAddressProvider;
+import io.netty.channel.Channel;
+import java.io.File;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.easymock.EasyMock;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class SwarmHandlerTest {
+
+    private static final int PIECE_COUNT = 257;
+
+    @Test
+    public void testCompleteWhilePicking() throws Exception {
+        File dir = TorrentTestUtils.newTorrentDir("SwarmHandlerTest");
+        TorrentCreator creator = TorrentTestUtils.newTorrentCreator(dir, PIECE_COUNT * PieceHandler.DEFAULT_BLOCK_SIZE - 1);
+        creator.setPieceLength(PieceHandler.DEFAULT_BLOCK_SIZE);
+        Torrent torrent = creator.create();
+        Client client = new Client(getClass().getSimpleName());
+        TorrentHandler torrentHandler = client.addTorrent(torrent, TorrentTestUtils.newTorrentDir("SwarmHandlerTest-leech"));
+        final SwarmHandler swarmHandler = torrentHandler.getSwarmHandler();
+        PieceBufferManager manager = client.getPieceBufferManager();
+
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // Leave the last piece, so the torrent never completes.
+            for (int i = 0; i < PIECE_COUNT - 1; i++) {
+                final int piece = i;
+                Future<PieceHandler> future = executor.submit(new Callable<PieceHandler>() {
+                    @Override
+                    public PieceHandler call() throws Exception {
+                        barrier.await();
+                        return swarmHandler.getPieceHandler(piece);
+                    }
+                });
+                barrier.await();
+                swarmHandler.handlePieceCompleted(null, piece, PieceHandler.Reception.VALID);
+                future.get();
+                // Whoever won, no handler outlives the piece.
+                assertEquals("Piece " + piece + " left a handler behind.", 0, manager.getBufferedBytes());
+                assertNull(swarmHandler.getPieceHandler(piece));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testDeadlineOrdersStartedPieces() throws Exception {
+        File dir = TorrentTestUtils.newTorrentDir("SwarmHandlerTest");
+        TorrentCreator creator = TorrentTestUtils.newTorrentCreator(dir, (4 * 4 - 1) * PieceHandler.DEFAULT_BLOCK_SIZE);
+        creator.setPieceLength(4 * PieceHandler.DEFAULT_BLOCK_SIZE);
+        Torrent torrent = creator.create();
+        Client client = new Client(getClass().getSimpleName());
+        TorrentHandler torrentHandler = client.addTorrent(torrent, TorrentTestUtils.newTorrentDir("SwarmHandlerTest-leech"));
+        SwarmHandler swarmHandler = torrentHandler.getSwarmHandler();
+
+        byte[] peerId = Arrays.copyOf(new byte[]{1, 2, 3, 4}, 20);
+        PeerHandler peer = new PeerHandler(EasyMock.createNiceMock(Channel.class), peerId, new byte[8],
+                new TestPeerAddressProvider(), swarmHandler,
+                EasyMock.createNiceMock(PeerExistenceListener.class),
+                EasyMock.createNiceMock(PeerConnectionListener.class),
+                EasyMock.createNiceMock(PeerActivityListener.class));
+        BitSet interesting = new BitSet();
+        interesting.set(0, torrent.getPieceCount());
+
+        // Start pieces 0 and 1, and retry a block of piece 2.
+        assertNotNull(swarmHandler.getPieceHandler(0));
+        assertNotNull(swarmHandler.getPieceHandler(1));
+        PieceHandler pieceHandler = swarmHandler.getPieceHandler(2);
+        PieceHandler.AnswerableRequestMessage request = pieceHandler.iterator().next();
+        swarmHandler.addRequestTimeout(Collections.singletonList(request));
+
+        // An in-progress piece with a deadline comes before the retry.
+        swarmHandler.setPieceDeadline(1, 100);
+        assertPiece(1, swarmHandler.getNextPieceHandler(peer, interesting));
+
+        // A retried piece with an earlier deadline comes before both.
+        swarmHandler.setPieceDeadline(2, 50);
+        assertPiece(2, swarmHandler.getNextPieceHandler(peer, interesting));
+    }
+
+    @Test
+    public void testSnubbedPeerProbesFreshPiece() throws Exception {
+        File dir = TorrentTestUtils.newTorrentDir("SwarmHandlerTest");
+        TorrentCreator creator = TorrentTestUtils.newTorrentCreator(dir, (4 * 4 - 1) * PieceHandler.DEFAULT_BLOCK_SIZE);
+        creator.setPieceLength(4 * PieceHandler.DEFAULT_BLOCK_SIZE);
+        Torrent torrent = creator.create();
+        Client client = new Client(getClass().getSimpleName());
+        TorrentHandler torrentHandler = client.addTorrent(torrent, TorrentTestUtils.newTorrentDir("SwarmHandlerTest-leech"));
+        SwarmHandler swarmHandler = torrentHandler.getSwarmHandler();
+
+        byte[] peerId = Arrays.copyOf(new byte[]{1, 2, 3, 4}, 20);
+        PeerHandler peer = new PeerHandler(EasyMock.createNiceMock(Channel.class), peerId, new byte[8],
+                new TestPeerAddressProvider(), swarmHandler,
+                EasyMock.createNiceMock(PeerExistenceListener.class),
+                EasyMock.createNiceMock(PeerConnectionListener.class),
+                EasyMock.createNiceMock(PeerActivityListener.class)) {
+            @Override
+            public boolean isSnubbed() {
+                return true;
+            }
+        };
+        BitSet interesting = new BitSet();
+        interesting.set(0, torrent.getPieceCount());
+
+        // A block given up by the snubbed peer waits for retry in piece 0,
+        // and piece 1 is in progress.
+        PieceHandler pieceHandler = swarmHandler.getPieceHandler(0);
+        PieceHandler.AnswerableRequestMessage request = pieceHandler.iterator().next();
+        swarmHandler.addRequestTimeout(Collections.singletonList(request));
+        assertNotNull(swarmHandler.getPieceHandler(1));
+
+        Iterable<PieceHandler.AnswerableRequestMessage> requests = swarmHandler.getNextPieceHandler(peer, interesting);
+        assertNotNull(requests);
+        for (PieceHandler.AnswerableRequestMessage probe : requests)
+            assertTrue("Probe " + probe + " is not from a fresh piece.", probe.getPiece() > 1);
+    }
+
+    private static void assertPiece(int piece, Iterable<PieceHandler.AnswerableRequestMessage> requests) {
+        assertNotNull(requests);
+        int count = 0;
+        for (PieceHandler.AnswerableRequestMessage request : requests) {
+            assertEquals(piece, request.getPiece());
+            count++;
+        }
+        assertTrue(count > 0);
+    }
+}
@@ -7,7 +7,23 @@ package com.turn.ttorrent.client;
 import com.turn.ttorrent.protocol.torrent.Torrent;
 import com.turn.ttorrent.protocol.torrent.TorrentCreator;
 import com.turn.ttorrent.protocol.test.TorrentTestUtils;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.turn.ttorrent.client.storage.FileStorage;
+import com.turn.ttorrent.protocol.test.PatternInputStream;
 import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -76,4 +92,120 @@ public class TorrentHandlerTest {
         assertEquals("We have no pieces.", 0, torrentHandler.getCompletedPieceCount());
         assertFalse("We are not complete, i.e. a seed.", torrentHandler.isComplete());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testSeedInputStream() throws Exception {
+        File d_seed = TorrentTestUtils.newTorrentDir("TorrentHandlerTest");
+        TorrentCreator creator = TorrentTestUtils.newTorrentCreator(d_seed, 1234567);
+        Torrent torrent = creator.create();
+        File f_seed = new File(d_seed, TorrentTestUtils.FILENAME);
+        TorrentHandler torrentHandler = test(torrent, f_seed);
+
+        InputStream in = torrentHandler.newInputStream();
+        try {
+            assertArrayEquals(Files.toByteArray(f_seed), ByteStreams.toByteArray(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testLeechByteChannel() throws Exception {
+        File d_seed = TorrentTestUtils.newTorrentDir("TorrentHandlerTest");
+        TorrentCreator creator = TorrentTestUtils.newTorrentCreator(d_seed, 1234567);
+        Torrent torrent = creator.create();
+        File f_seed = new File(d_seed, TorrentTestUtils.FILENAME);
+        File d_leech = TorrentTestUtils.newTorrentDir("TorrentHandlerTest-leech");
+        File f_leech = new File(d_leech, TorrentTestUtils.FILENAME);
+        final TorrentHandler torrentHandler = test(torrent, f_leech);
+        final int piece = 1;
+        final int pieceLength = torrentHandler.getPieceLength(piece);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<ByteBuffer> future = executor.submit(new Callable<ByteBuffer>() {
+                @Override
+                public ByteBuffer call() throws Exception {
+                    SeekableByteChannel channel = torrentHandler.newByteChannel();
+                    try {
+                        channel.position(torrentHandler.getPieceOffset(piece));
+                        ByteBuffer buffer = ByteBuffer.allocate(pieceLength + 1);
+                        // A read never spans pieces.
+                        while (buffer.position() < pieceLength)
+                            assertTrue(channel.read(buffer) > 0);
+                        return buffer;
+                    } finally {
+                        channel.close();
+                    }
+                }
+            });
+            try {
+                future.get(100, TimeUnit.MILLISECONDS);
+                fail("Read of an incomplete piece returned.");
+            } catch (TimeoutException e) {
+                // Expected.
+            }
+
+            byte[] data = Files.toByteArray(f_seed);
+            ByteBuffer block = ByteBuffer.wrap(data, (int) torrentHandler.getPieceOffset(piece), pieceLength);
+            torrentHandler.getBucket().write(block, torrentHandler.getPieceOffset(piece));
+            torrentHandler.setCompletedPiece(piece);
+
+            ByteBuffer buffer = future.get(10, TimeUnit.SECONDS);
+            assertEquals(pieceLength, buffer.position());
+            buffer.flip();
+            assertEquals(ByteBuffer.wrap(data, (int) torrentHandler.getPieceOffset(piece), pieceLength), buffer);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testMultiFileSkip() throws Exception {
+        File d_seed = TorrentTestUtils.newTorrentDir("TorrentHandlerTest");
+        // With 64K pieces, file 1 spans pieces 3-7, and file 2 shares
+        // piece 7 with it. File 3 shares no piece with file 1.
+        long[] sizes = {200000, 300000, 200000, 200000};
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < sizes.length; i++) {
+            File file = new File(d_seed, "file-" + i);
+            Files.asByteSink(file).writeFrom(new PatternInputStream(sizes[i]));
+            files.add(file);
+        }
+        TorrentCreator creator = new TorrentCreator(d_seed);
+        creator.setFiles(files);
+        creator.setPieceLength(65536);
+        Torrent torrent = creator.create();
+
+        File d_leech = TorrentTestUtils.newTorrentDir("TorrentHandlerTest");
+        Client client = new Client(getClass().getSimpleName());
+        TorrentHandler torrentHandler = new TorrentHandler(client, torrent, d_leech,
+                Arrays.asList(FilePriority.SKIP, FilePriority.HIGH, FilePriority.SKIP, FilePriority.SKIP));
+        client.addTorrent(torrentHandler);
+        client.getEnvironment().start();
+        try {
+            torrentHandler.init();
+        } finally {
+            client.getEnvironment().stop();
+        }
+
+        for (int i = 0; i < 14; i++)
+            assertEquals("Piece " + i, i < 3 || i > 7, torrentHandler.isSkippedPiece(i));
+        assertEquals(5, torrentHandler.getRemainingPieceCount());
+        assertFalse(torrentHandler.isComplete());
+
+        // Only the first completion of a wanted piece counts.
+        torrentHandler.setCompletedPiece(0);
+        torrentHandler.setCompletedPiece(3);
+        torrentHandler.setCompletedPiece(3);
+        assertEquals(4, torrentHandler.getRemainingPieceCount());
+        assertEquals(20.0f, torrentHandler.getCompletion(), 0.01f);
+
+        // Skipped files are only stored if they share a piece with a wanted file.
+        for (int i = 0; i < sizes.length; i++) {
+            File file = new File(d_leech, Files.simplifyPath("/" + torrent.getFiles().get(i).path));
+            File partial = new File(file.getAbsolutePath() + FileStorage.PARTIAL_FILE_NAME_SUFFIX);
+            assertEquals("File " + i, i != 3, partial.exists());
+        }
+    }
+}
@@ -1,41 +0,0 @@
-/*
- * To change this template, choose Tools | Templates
- * and open the template in the editor.
- */
-package com.turn.ttorrent.client.io;
-
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
-import io.netty.channel.ChannelHandlerContext;
-import org.junit.Test;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-/**
- *
- * @author shevek
- */
-public class PeerFrameDecoderTest {
-
-    private static final Logger LOG = LoggerFactory.getLogger(PeerFrameDecoderTest.class);
-
-    @Test
-    public void testDecoder() throws Exception {
-        ByteBuf in = Unpooled.buffer(27);
-        in.writeInt(6);
-        in.writeBytes(new byte[]{1, 2, 3, 4, 5, 6});
-
-        PeerFrameDecoder decoder = new PeerFrameDecoder() {
-            @Override
-            protected ByteBuf extractFrame(ChannelHandlerContext ctx, ByteBuf buffer, int index, int length) {
-                ByteBuf frame = Unpooled.buffer(length);
-                frame.writeBytes(buffer, index, length);
-                return frame;
-            }
-        };
-        ByteBuf out = decoder._decode(null, in);
-
-        PeerMessageTest.Formatter formatter = new PeerMessageTest.Formatter();
-        LOG.info(formatter.format("decoded", out));
-    }
-}
\ No newline at end of file
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.io;
+
+import com.turn.ttorrent.client.peer.PeerMessageListener;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nonnull;
+import org.easymock.EasyMock;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class PeerMessageCodecTest {
+
+    /** Records each message as it is dispatched. */
+    public static class RecordingListener implements PeerMessageListener {
+
+        private final List<Object> messages = new ArrayList<Object>();
+
+        @Override
+        public Map<? extends PeerExtendedMessage.ExtendedType, ? extends Byte> getExtendedMessageTypes() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public void handleMessage(PeerMessage msg) throws IOException {
+            if (msg instanceof PeerMessage.PieceMessage) {
+                ByteBuf block = ((PeerMessage.PieceMessage) msg).getBlock();
+                messages.add("PIECE " + block.readableBytes());
+            } else {
+                messages.add(msg);
+            }
+        }
+
+        @Override
+        public void handleHave(int piece) throws IOException {
+            messages.add("HAVE " + piece);
+        }
+
+        @Override
+        public void handleRequest(int piece, int offset, int length) throws IOException {
+            messages.add("REQUEST " + piece + " " + offset + " " + length);
+        }
+
+        @Override
+        public void handleCancel(int piece, int offset, int length) throws IOException {
+            messages.add("CANCEL " + piece + " " + offset + " " + length);
+        }
+
+        @Override
+        public void handleReadComplete() throws IOException {
+        }
+
+        @Override
+        public void handleWritable() throws IOException {
+        }
+
+        @Override
+        public void handleDisconnect() throws IOException {
+        }
+
+        @Override
+        public void handleException(Throwable exception) {
+            throw new AssertionError(exception);
+        }
+    }
+
+    /** Decodes as many frames as are available, as {@link io.netty.handler.codec.ByteToMessageDecoder} would. */
+    private static void decode(@Nonnull PeerMessageCodec codec, @Nonnull ByteBuf in) throws Exception {
+        List<Object> out = new ArrayList<Object>();
+        for (;;) {
+            int readable = in.readableBytes();
+            codec.decode(null, in, out);
+            assertTrue("Codec emitted messages: " + out, out.isEmpty());
+            if (in.readableBytes() == readable)
+                break;
+        }
+    }
+
+    @Test
+    public void testDecode() throws Exception {
+        RecordingListener listener = new RecordingListener();
+        PeerMessageCodec codec = new PeerMessageCodec(listener);
+
+        BitSet bitfield = new BitSet();
+        bitfield.set(3);
+        ByteBuf in = Unpooled.buffer(1234);
+        codec.encode(null, new PeerMessage.KeepAliveMessage(), in);
+        codec.encode(null, new PeerMessage.ChokeMessage(), in);
+        codec.encode(null, new PeerMessage.InterestedMessage(), in);
+        codec.encode(null, new PeerMessage.BitfieldMessage(bitfield), in);
+        codec.encode(null, new PeerMessage.HaveMessage(7), in);
+        codec.encode(null, new PeerMessage.RequestMessage(1, 16384, 16384), in);
+        codec.encode(null, new PeerMessage.PieceMessage(1, 0, Unpooled.wrappedBuffer(new byte[100])), in);
+        codec.encode(null, new PeerMessage.CancelMessage(1, 16384, 16384), in);
+
+        // Deliver the input in two parts, splitting a frame.
+        ByteBuf part = in.readSlice(in.readableBytes() - 20);
+        decode(codec, part);
+        int remaining = part.readableBytes();
+        assertTrue("Decoded a partial frame.", remaining > 0);
+        ByteBuf rest = Unpooled.buffer(remaining + in.readableBytes());
+        rest.writeBytes(part);
+        rest.writeBytes(in);
+        decode(codec, rest);
+        assertEquals(0, rest.readableBytes());
+
+        List<Object> messages = listener.messages;
+        assertEquals(8, messages.size());
+        assertSame(PeerMessage.KeepAliveMessage.INSTANCE, messages.get(0));
+        assertSame(PeerMessage.ChokeMessage.INSTANCE, messages.get(1));
+        assertSame(PeerMessage.InterestedMessage.INSTANCE, messages.get(2));
+        assertEquals(bitfield, ((PeerMessage.BitfieldMessage) messages.get(3)).getBitfield());
+        assertEquals("HAVE 7", messages.get(4));
+        assertEquals("REQUEST 1 16384 16384", messages.get(5));
+        assertEquals("PIECE 100", messages.get(6));
+        assertEquals("CANCEL 1 16384 16384", messages.get(7));
+    }
+
+    /** Decodes a frame with a bad length, which must consume the input and close the channel. */
+    private static void decodeBadLength(int length, @Nonnull Class<? extends Exception> exceptionType) throws Exception {
+        PeerMessageCodec codec = new PeerMessageCodec(new RecordingListener());
+        ChannelHandlerContext ctx = EasyMock.createMock(ChannelHandlerContext.class);
+        EasyMock.expect(ctx.close()).andReturn(null);
+        EasyMock.replay(ctx);
+
+        ByteBuf in = Unpooled.buffer(1234);
+        in.writeInt(length);
+        in.writeBytes(new byte[1000]);
+        try {
+            codec.decode(ctx, in, new ArrayList<Object>());
+            fail("Decoded a frame of length " + length);
+        } catch (Exception e) {
+            assertTrue("Unexpected " + e, exceptionType.isInstance(e));
+        }
+        assertEquals(0, in.readableBytes());
+        EasyMock.verify(ctx);
+    }
+
+    @Test
+    public void testBadLengths() throws Exception {
+        decodeBadLength(PeerMessageCodec.MAX_FRAME_LENGTH + 1, TooLongFrameException.class);
+        decodeBadLength(-1, CorruptedFrameException.class);
+    }
+
+    @Test
+    public void testBadFrames() throws Exception {
+        PeerMessageCodec codec = new PeerMessageCodec(new RecordingListener());
+
+        ByteBuf in = Unpooled.buffer(16);
+        in.writeInt(3);
+        in.writeByte(PeerMessage.Type.HAVE.getTypeByte());
+        in.writeShort(0);
+        try {
+            decode(codec, in);
+            fail("Decoded a short HAVE message.");
+        } catch (IOException e) {
+        }
+    }
+}
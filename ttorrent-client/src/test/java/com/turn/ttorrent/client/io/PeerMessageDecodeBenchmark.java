@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.io;
+
+import com.turn.ttorrent.client.peer.PeerMessageListener;
+import com.turn.ttorrent.client.peer.PieceHandler;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the throughput of {@link PeerMessageCodec} decoding the small
+ * messages exchanged by peers doing many small requests.
+ *
+ * <p>
+ * The input is a fixed run of keep-alive, CHOKE, UNCHOKE, INTERESTED, HAVE,
+ * REQUEST and CANCEL frames, decoded from the same buffer on every
+ * invocation. Run with {@code -prof gc} to see the allocation rate.
+ * </p>
+ *
+ * <p>
+ * This is not run as part of the test suite. Run {@link #main(String[])} to
+ * report throughput in messages per millisecond.
+ * </p>
+ *
+ * @author shevek
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PeerMessageDecodeBenchmark {
+
+    private static final int ROUNDS = 128;
+    /** The number of messages written in each round. */
+    private static final int ROUND_MESSAGES = 8;
+    private static final int MESSAGES = ROUNDS * ROUND_MESSAGES;
+
+    /** Sums the fields it is given, so nothing is optimized away. */
+    private static class CountingListener implements PeerMessageListener {
+
+        private long count;
+
+        @Override
+        public Map<? extends PeerExtendedMessage.ExtendedType, ? extends Byte> getExtendedMessageTypes() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public void handleMessage(PeerMessage msg) throws IOException {
+            count += msg.getType().getTypeByte();
+        }
+
+        @Override
+        public void handleHave(int piece) throws IOException {
+            count += piece;
+        }
+
+        @Override
+        public void handleRequest(int piece, int offset, int length) throws IOException {
+            count += piece + offset + length;
+        }
+
+        @Override
+        public void handleCancel(int piece, int offset, int length) throws IOException {
+            count += piece + offset + length;
+        }
+
+        @Override
+        public void handleReadComplete() throws IOException {
+        }
+
+        @Override
+        public void handleWritable() throws IOException {
+        }
+
+        @Override
+        public void handleDisconnect() throws IOException {
+        }
+
+        @Override
+        public void handleException(Throwable exception) {
+        }
+    }
+    private final CountingListener listener = new CountingListener();
+    private final List<Object> out = new ArrayList<Object>();
+    private PeerMessageCodec codec;
+    private ByteBuf in;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        codec = new PeerMessageCodec(listener);
+        in = Unpooled.directBuffer(MESSAGES * 17);
+        int blockSize = PieceHandler.DEFAULT_BLOCK_SIZE;
+        for (int i = 0; i < ROUNDS; i++) {
+            codec.encode(null, PeerMessage.KeepAliveMessage.INSTANCE, in);
+            codec.encode(null, PeerMessage.ChokeMessage.INSTANCE, in);
+            codec.encode(null, PeerMessage.UnchokeMessage.INSTANCE, in);
+            codec.encode(null, PeerMessage.InterestedMessage.INSTANCE, in);
+            codec.encode(null, new PeerMessage.HaveMessage(i), in);
+            codec.encode(null, new PeerMessage.RequestMessage(i, 0, blockSize), in);
+            codec.encode(null, new PeerMessage.RequestMessage(i, blockSize, blockSize), in);
+            codec.encode(null, new PeerMessage.CancelMessage(i, 0, blockSize), in);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public long testDecode() throws Exception {
+        in.readerIndex(0);
+        while (in.isReadable())
+            codec.decode(null, in, out);
+        return listener.count;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(PeerMessageDecodeBenchmark.class.getSimpleName())
+                .warmupIterations(3)
+                .measurementIterations(5)
+                .forks(1)
+                .build();
+        StringBuilder buf = new StringBuilder();
+        for (RunResult result : new Runner(options).run()) {
+            buf.append(result.getPrimaryResult().getScore())
+                    .append(" ").append(result.getPrimaryResult().getScoreUnit())
+                    .append("\n");
+        }
+        System.out.println(buf);
+    }
+}
@@ -8,7 +8,11 @@ import com.google.common.primitives.UnsignedBytes;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.handler.logging.LoggingHandler;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.BitSet;
+import java.util.Collections;
+import java.util.Set;
 import javax.annotation.Nonnull;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -98,10 +102,60 @@ public class PeerMessageTest {
         testMessage(message);
     }
 
+    @Nonnull
+    private PeerExtendedMessage.HandshakeMessage testHandshakeMessage(@Nonnull PeerExtendedMessage.HandshakeMessage in) throws Exception {
+        ByteBuf buf = Unpooled.buffer(1234);
+        in.toWire(buf, Collections.singletonMap(PeerExtendedMessage.ExtendedType.handshake, (byte) 0));
+        PeerExtendedMessage.HandshakeMessage out = new PeerExtendedMessage.HandshakeMessage();
+        buf.readByte();
+        buf.readByte();
+        out.fromWire(buf);
+        assertEquals(0, buf.readableBytes());
+        return out;
+    }
+
+    @Test
+    public void testHandshakeMessage() throws Exception {
+        Set<InetSocketAddress> addresses = Collections.emptySet();
+        PeerExtendedMessage.HandshakeMessage message = testHandshakeMessage(new PeerExtendedMessage.HandshakeMessage(250, -1, addresses));
+        assertEquals(250, message.getSenderRequestQueueLength());
+        assertEquals(-1, message.getSenderMaxBlockLength());
+
+        message = testHandshakeMessage(new PeerExtendedMessage.HandshakeMessage(250, 65536, addresses));
+        assertEquals(65536, message.getSenderMaxBlockLength());
+
+        // A peer which omits reqq gets the conventional default, not our own pipeline cap.
+        message = testHandshakeMessage(new PeerExtendedMessage.HandshakeMessage(0, -1, addresses));
+        assertEquals(PeerExtendedMessage.HandshakeMessage.DEFAULT_SENDER_REQUEST_QUEUE_LENGTH, message.getSenderRequestQueueLength());
+    }
+
     @Test
     public void testHaveMessage() throws Exception {
         testMessage(new PeerMessage.HaveMessage(0));
         testMessage(new PeerMessage.HaveMessage(0x1234));
         testMessage(new PeerMessage.HaveMessage(0x12345678));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testPieceMessage() throws Exception {
+        ByteBuffer block = ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5});
+        ByteBuf buf = Unpooled.buffer(1234);
+        new PeerMessage.PieceMessage(3, 16384, block).toWire(buf, null);
+        assertEquals(5, block.remaining());
+
+        PeerMessage.PieceMessage message = new PeerMessage.PieceMessage();
+        buf.readByte();
+        message.fromWire(buf);
+        assertEquals(0, buf.readableBytes());
+        assertEquals(3, message.getPiece());
+        assertEquals(16384, message.getOffset());
+        assertEquals(5, message.getLength());
+        assertEquals(4, message.getBlock().getByte(message.getBlock().readerIndex() + 3));
+
+        // The block is a retained slice of the frame, not a copy.
+        assertEquals(2, buf.refCnt());
+        assertFalse(buf.release());
+        assertTrue(message.release());
+        assertEquals(0, buf.refCnt());
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.peer;
+
+import com.turn.ttorrent.protocol.test.TorrentTestUtils;
+import com.turn.ttorrent.protocol.torrent.Torrent;
+import com.turn.ttorrent.test.TestPeerPieceProvider;
+import io.netty.channel.Channel;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.easymock.EasyMock;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class ChokingStrategyTest {
+
+    private static List<PeerHandler> newPeers(int count) throws Exception {
+        File dir = TorrentTestUtils.newTorrentDir("ChokingStrategyTest");
+        Torrent torrent = TorrentTestUtils.newTorrent(dir, 12345);
+        TestPeerPieceProvider provider = new TestPeerPieceProvider(torrent);
+        List<PeerHandler> peers = new ArrayList<PeerHandler>();
+        for (int i = 0; i < count; i++) {
+            byte[] peerId = new byte[20];
+            peerId[0] = (byte) i;
+            peers.add(new PeerHandler(EasyMock.createNiceMock(Channel.class), peerId, new byte[8],
+                    provider, provider,
+                    EasyMock.createNiceMock(PeerExistenceListener.class),
+                    EasyMock.createNiceMock(PeerConnectionListener.class),
+                    EasyMock.createNiceMock(PeerActivityListener.class)));
+        }
+        return peers;
+    }
+
+    /** Applies the decision as the SwarmHandler would. */
+    private static Set<PeerHandler> round(ChokingStrategy strategy, List<PeerHandler> peers, boolean seeding, Random random) {
+        Set<PeerHandler> unchoked = strategy.getUnchokedPeers(new ArrayList<PeerHandler>(peers), seeding, false, random);
+        for (PeerHandler peer : peers) {
+            if (unchoked.contains(peer))
+                peer.unchoke();
+            else
+                peer.choke();
+        }
+        return unchoked;
+    }
+
+    @Test
+    public void testTitForTat() throws Exception {
+        List<PeerHandler> peers = newPeers(6);
+        Random random = new Random(0);
+        ChokingStrategy strategy = new TitForTatChokingStrategy();
+        assertEquals(TitForTatChokingStrategy.DEFAULT_UPLOAD_SLOTS, strategy.getFastUnchokeCount());
+        assertEquals(4, strategy.getUnchokedPeers(new ArrayList<PeerHandler>(peers), false, false, random).size());
+        assertEquals(5, strategy.getUnchokedPeers(new ArrayList<PeerHandler>(peers), true, true, random).size());
+        assertEquals(2, strategy.getUnchokedPeers(new ArrayList<PeerHandler>(peers.subList(0, 2)), false, true, random).size());
+    }
+
+    @Test
+    public void testSeedingKeepsSlots() throws Exception {
+        List<PeerHandler> peers = newPeers(6);
+        Random random = new Random(0);
+        ChokingStrategy strategy = new SeedingChokingStrategy(2, 60000, new TitForTatChokingStrategy());
+        Set<PeerHandler> first = round(strategy, peers, true, random);
+        assertEquals(2, first.size());
+        assertEquals(first, round(strategy, peers, true, random));
+    }
+
+    @Test
+    public void testSeedingRotatesSlots() throws Exception {
+        List<PeerHandler> peers = newPeers(6);
+        Random random = new Random(0);
+        ChokingStrategy strategy = new SeedingChokingStrategy(2, 0, new TitForTatChokingStrategy());
+        // Every peer gets a turn before any peer gets a second one.
+        Set<PeerHandler> seen = new HashSet<PeerHandler>();
+        for (int i = 0; i < 3; i++) {
+            Set<PeerHandler> unchoked = round(strategy, peers, true, random);
+            assertEquals(2, unchoked.size());
+            for (PeerHandler peer : unchoked)
+                assertTrue("Peer unchoked twice: " + peer, seen.add(peer));
+        }
+        assertEquals(6, seen.size());
+
+        // While sharing, we delegate.
+        assertEquals(5, strategy.getUnchokedPeers(new ArrayList<PeerHandler>(peers), false, true, random).size());
+    }
+}
@@ -6,6 +6,7 @@ package com.turn.ttorrent.client.peer;
 
 import com.turn.ttorrent.client.Client;
 import com.turn.ttorrent.client.io.PeerClientHandshakeHandler;
+import com.turn.ttorrent.client.io.PeerMessage;
 import com.turn.ttorrent.client.io.PeerServerHandshakeHandler;
 import com.turn.ttorrent.protocol.test.TestPeerIdentityProvider;
 import com.turn.ttorrent.test.TestPeerPieceProvider;
@@ -21,10 +22,12 @@ import io.netty.channel.local.LocalEventLoopGroup;
 import io.netty.channel.local.LocalServerChannel;
 import java.io.File;
 import java.util.Arrays;
+import java.util.BitSet;
 import org.easymock.EasyMock;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
 
 /**
  *
@@ -91,4 +94,50 @@ public class PeerHandlerTest {
         EasyMock.verify(activityListener, connectionListener);
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testInterestingPieces() throws Exception {
+        byte[] peerId = Arrays.copyOf(new byte[]{1, 2, 3, 4, 5, 6}, 20);
+        File dir = TorrentTestUtils.newTorrentDir("PeerHandlerTest-interesting");
+        Torrent torrent = TorrentTestUtils.newTorrent(dir, 12345678);
+        assertTrue(torrent.getPieceCount() > 8);
+
+        Channel channel = EasyMock.createNiceMock(Channel.class);
+        TestPeerAddressProvider addressProvider = new TestPeerAddressProvider();
+        TestPeerPieceProvider pieceProvider = new TestPeerPieceProvider(torrent);
+        PeerExistenceListener existenceListener = EasyMock.createNiceMock(PeerExistenceListener.class);
+        PeerConnectionListener connectionListener = EasyMock.createNiceMock(PeerConnectionListener.class);
+        PeerActivityListener activityListener = EasyMock.createNiceMock(PeerActivityListener.class);
+        PeerHandler peerHandler = new PeerHandler(channel, peerId, new byte[8], addressProvider, pieceProvider, existenceListener, connectionListener, activityListener);
+        assertEquals(0, peerHandler.getInterestingPieceCount());
+
+        pieceProvider.setCompletedPiece(1);
+        BitSet bitfield = new BitSet();
+        bitfield.set(0, 4);
+        peerHandler.handleMessage(new PeerMessage.BitfieldMessage(bitfield));
+        assertEquals(4, peerHandler.getAvailablePieceCount());
+        assertEquals(3, peerHandler.getInterestingPieceCount());
+
+        // A piece we have already completed is not interesting.
+        pieceProvider.setCompletedPiece(8);
+        peerHandler.handleMessage(new PeerMessage.HaveMessage(8));
+        peerHandler.handleMessage(new PeerMessage.HaveMessage(6));
+        peerHandler.handleMessage(new PeerMessage.HaveMessage(6));
+        assertEquals(6, peerHandler.getAvailablePieceCount());
+        assertEquals(4, peerHandler.getInterestingPieceCount());
+
+        pieceProvider.setCompletedPiece(6);
+        peerHandler.removeInterestingPiece(6);
+        peerHandler.removeInterestingPiece(6);
+        assertEquals(3, peerHandler.getInterestingPieceCount());
+        assertFalse(peerHandler.isSeed());
+        BitSet expect = new BitSet();
+        expect.set(0);
+        expect.set(2, 4);
+        assertEquals(expect, peerHandler.getInterestingPieces());
+
+        bitfield.set(0, torrent.getPieceCount());
+        peerHandler.handleMessage(new PeerMessage.BitfieldMessage(bitfield));
+        assertTrue(peerHandler.isSeed());
+    }
+}
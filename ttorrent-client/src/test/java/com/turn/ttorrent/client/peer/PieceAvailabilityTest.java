@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.peer;
+
+import java.util.BitSet;
+import java.util.Random;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class PieceAvailabilityTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PieceAvailabilityTest.class);
+
+    @Test
+    public void testCounts() {
+        PieceAvailability availability = new PieceAvailability(10);
+        assertEquals(0, availability.getAvailablePieceCount());
+
+        assertEquals(1, availability.increment(3));
+        assertEquals(2, availability.increment(3));
+        assertEquals(1, availability.increment(5));
+        assertEquals(2, availability.getAvailablePieceCount());
+
+        assertEquals(1, availability.decrement(3));
+        assertEquals(0, availability.decrement(5));
+        assertEquals(0, availability.decrement(5));
+        assertEquals(1, availability.getAvailablePieceCount());
+        assertEquals(1, availability.getAvailability(3));
+        assertEquals(0, availability.getAvailability(5));
+        LOG.info("Availability is " + availability);
+    }
+
+    @Test
+    public void testRarest() {
+        Random random = new Random(1234);
+        PieceAvailability availability = new PieceAvailability(100);
+        BitSet interesting = new BitSet();
+        // Piece i has availability (i % 20) + 1, which grows the bucket array.
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j <= i % 20; j++)
+                availability.increment(i);
+            interesting.set(i);
+        }
+        assertEquals(100, availability.getAvailablePieceCount());
+
+        for (int i = 0; i < 20; i++) {
+            int piece = availability.getRarestPiece(interesting, random);
+            assertEquals(i, piece % 20);
+            interesting.clear(piece);
+            // Drain the rest of this availability level.
+            for (int j = 0; j < 4; j++) {
+                piece = availability.getRarestPiece(interesting, random);
+                assertEquals(i, piece % 20);
+                interesting.clear(piece);
+            }
+        }
+        assertEquals(-1, availability.getRarestPiece(interesting, random));
+
+        interesting.set(42);
+        interesting.set(7);
+        for (int i = 0; i < 3; i++)
+            availability.decrement(42);
+        assertEquals(0, availability.getAvailability(42));
+        // Unavailable pieces come last.
+        assertEquals(7, availability.getRarestPiece(interesting, random));
+        interesting.clear(7);
+        assertEquals(42, availability.getRarestPiece(interesting, random));
+    }
+
+    @Test
+    public void testRemove() {
+        Random random = new Random(1234);
+        PieceAvailability availability = new PieceAvailability(16);
+        BitSet interesting = new BitSet();
+        interesting.set(0, 16);
+        for (int i = 0; i < 16; i++)
+            for (int j = 0; j < i; j++)
+                availability.increment(i);
+
+        for (int i = 0; i < 16; i += 2) {
+            availability.remove(i);
+            availability.remove(i);
+        }
+        // Availability of a removed piece is still counted.
+        availability.increment(4);
+        availability.decrement(6);
+        assertEquals(5, availability.getAvailability(4));
+        assertEquals(5, availability.getAvailability(6));
+
+        for (int i = 0; i < 1000; i++)
+            assertEquals(1, availability.getRarestPiece(interesting, random) % 2);
+        for (int i = 1; i < 16; i += 2)
+            availability.remove(i);
+        assertEquals(-1, availability.getRarestPiece(interesting, random));
+    }
+
+    @Test
+    public void testStriped() {
+        Random random = new Random(1234);
+        int pieceCount = 4099;
+        PieceAvailability availability = new PieceAvailability(pieceCount);
+        BitSet interesting = new BitSet();
+        for (int i = 0; i < pieceCount; i++) {
+            for (int j = 0; j <= i % 7; j++)
+                availability.increment(i);
+            interesting.set(i);
+        }
+        assertEquals(pieceCount, availability.getAvailablePieceCount());
+
+        // The only rarest pieces are at the end of the last stripe.
+        int rarestCount = 0;
+        for (int i = 0; i < pieceCount; i += 7) {
+            if (i < pieceCount - 100)
+                availability.increment(i);
+            else
+                rarestCount++;
+        }
+        for (int i = 0; i < rarestCount; i++) {
+            int piece = availability.getRarestPiece(interesting, random);
+            assertTrue(piece >= pieceCount - 100);
+            assertEquals(1, availability.getAvailability(piece));
+            interesting.clear(piece);
+        }
+        int piece = availability.getRarestPiece(interesting, random);
+        assertEquals(2, availability.getAvailability(piece));
+    }
+}
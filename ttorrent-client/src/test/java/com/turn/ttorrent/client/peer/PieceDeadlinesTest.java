@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.peer;
+
+import java.util.BitSet;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class PieceDeadlinesTest {
+
+    @Test
+    public void testDeadlines() {
+        PieceDeadlines deadlines = new PieceDeadlines(100);
+        BitSet interesting = new BitSet();
+        interesting.set(0, 100);
+        assertEquals(-1, deadlines.getUrgentPiece(interesting));
+
+        deadlines.setDeadline(10, 1000);
+        deadlines.setDeadline(11, 2000);
+        deadlines.setDeadline(50, 500);
+        assertEquals(3, deadlines.getPieceCount());
+        assertEquals(50, deadlines.getUrgentPiece(interesting));
+
+        // A later deadline never replaces an earlier one.
+        deadlines.setDeadline(11, 100);
+        deadlines.setDeadline(50, 5000);
+        assertEquals(3, deadlines.getPieceCount());
+        assertEquals(11, deadlines.getUrgentPiece(interesting));
+
+        interesting.clear(11);
+        assertEquals(50, deadlines.getUrgentPiece(interesting));
+        deadlines.remove(50);
+        deadlines.remove(50);
+        assertEquals(2, deadlines.getPieceCount());
+        assertEquals(10, deadlines.getUrgentPiece(interesting));
+        interesting.clear(10);
+        assertEquals(-1, deadlines.getUrgentPiece(interesting));
+    }
+}
@@ -6,12 +6,22 @@ package com.turn.ttorrent.client.peer;
 
 import com.turn.ttorrent.test.TestPeerPieceProvider;
 import com.google.common.math.IntMath;
+import com.google.common.collect.Iterators;
 import com.turn.ttorrent.client.PeerPieceProvider;
+import com.turn.ttorrent.client.io.PeerMessage;
 import com.turn.ttorrent.protocol.torrent.Torrent;
 import com.turn.ttorrent.protocol.test.TorrentTestUtils;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import java.io.File;
 import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,4 +57,177 @@ public class PieceHandlerTest {
             assertFalse(it.hasNext());
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testSharedPiece() throws Exception {
+        File dir = TorrentTestUtils.newTorrentDir("PieceHandlerTest");
+        Torrent torrent = TorrentTestUtils.newTorrent(dir, 465432);
+
+        PeerPieceProvider provider = new TestPeerPieceProvider(torrent);
+        PieceHandler pieceHandler = new PieceHandler(provider, 0);
+        int blockCount = IntMath.divide(torrent.getPieceLength(0), PieceHandler.DEFAULT_BLOCK_SIZE, RoundingMode.UP);
+        Iterator<PieceHandler.AnswerableRequestMessage> it0 = pieceHandler.iterator();
+        Iterator<PieceHandler.AnswerableRequestMessage> it1 = pieceHandler.iterator();
+
+        // Two peers sharing a piece never request the same block.
+        Set<Integer> offsets = new HashSet<Integer>();
+        for (int i = 0; i < blockCount; i++) {
+            assertTrue(pieceHandler.hasUnrequestedBlocks());
+            Iterator<PieceHandler.AnswerableRequestMessage> it = (i % 2 == 0) ? it0 : it1;
+            assertTrue(it.hasNext());
+            assertTrue(offsets.add(it.next().getOffset()));
+        }
+        assertFalse(pieceHandler.hasUnrequestedBlocks());
+        assertFalse(it0.hasNext());
+        assertFalse(it1.hasNext());
+        assertFalse(pieceHandler.iterator().hasNext());
+
+        // But end-game may request them again, up to a limit.
+        List<PieceHandler.AnswerableRequestMessage> duplicates = new ArrayList<PieceHandler.AnswerableRequestMessage>();
+        Iterators.addAll(duplicates, pieceHandler.getDuplicateRequests(2).iterator());
+        assertEquals(blockCount, duplicates.size());
+        assertFalse(pieceHandler.hasRequestableBlocks(2));
+        assertFalse(pieceHandler.getDuplicateRequests(2).iterator().hasNext());
+        assertTrue(pieceHandler.hasRequestableBlocks(3));
+
+        // Cancelling a duplicate makes its block requestable again.
+        PieceHandler.AnswerableRequestMessage cancelled = duplicates.get(0);
+        cancelled.cancel();
+        assertTrue(pieceHandler.hasRequestableBlocks(2));
+        assertFalse(pieceHandler.hasUnrequestedBlocks());
+        Iterator<PieceHandler.AnswerableRequestMessage> it = pieceHandler.getDuplicateRequests(2).iterator();
+        assertTrue(it.hasNext());
+        assertEquals(cancelled.getOffset(), it.next().getOffset());
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testExcludedBlocks() throws Exception {
+        File dir = TorrentTestUtils.newTorrentDir("PieceHandlerTest");
+        Torrent torrent = TorrentTestUtils.newTorrent(dir, 465432);
+
+        PeerPieceProvider provider = new TestPeerPieceProvider(torrent);
+        PieceHandler pieceHandler = new PieceHandler(provider, 0);
+        int blockCount = IntMath.divide(torrent.getPieceLength(0), PieceHandler.DEFAULT_BLOCK_SIZE, RoundingMode.UP);
+        assertEquals(blockCount, pieceHandler.getMissingBlockCount());
+        List<PieceHandler.AnswerableRequestMessage> requests = new ArrayList<PieceHandler.AnswerableRequestMessage>();
+        Iterators.addAll(requests, pieceHandler.iterator());
+        assertEquals(0, pieceHandler.getMissingBlockCount());
+
+        // A peer which holds the first two blocks is offered only the others.
+        BitSet excludedBlocks = pieceHandler.getBlocks(requests.subList(0, 2));
+        assertEquals(2, excludedBlocks.cardinality());
+        List<PieceHandler.AnswerableRequestMessage> duplicates = new ArrayList<PieceHandler.AnswerableRequestMessage>();
+        Iterators.addAll(duplicates, pieceHandler.getDuplicateRequests(2, excludedBlocks).iterator());
+        assertEquals(blockCount - 2, duplicates.size());
+        for (PieceHandler.AnswerableRequestMessage duplicate : duplicates)
+            assertTrue(duplicate.getOffset() >= 2 * PieceHandler.DEFAULT_BLOCK_SIZE);
+        assertFalse(pieceHandler.hasRequestableBlocks(2, excludedBlocks));
+        assertTrue(pieceHandler.hasRequestableBlocks(2));
+
+        requests.get(0).cancel();
+        assertEquals(1, pieceHandler.getMissingBlockCount());
+    }
+
+    @Test
+    public void testReceive() throws Exception {
+        File dir = TorrentTestUtils.newTorrentDir("PieceHandlerTest");
+        Torrent torrent = TorrentTestUtils.newTorrent(dir, 465432);
+
+        PeerPieceProvider provider = new TestPeerPieceProvider(torrent);
+        PieceHandler pieceHandler = new PieceHandler(provider, 0);
+        List<PieceHandler.AnswerableRequestMessage> requests = new ArrayList<PieceHandler.AnswerableRequestMessage>();
+        Iterators.addAll(requests, pieceHandler.iterator());
+
+        PieceHandler.AnswerableRequestMessage last = requests.remove(requests.size() - 1);
+        for (PieceHandler.AnswerableRequestMessage request : requests) {
+            PeerMessage.PieceMessage response = new PeerMessage.PieceMessage(request.getPiece(), request.getOffset(), ByteBuffer.allocate(request.getLength()));
+            assertEquals(PieceHandler.Reception.INCOMPLETE, request.answer(response));
+            // A second copy of the same block is not required.
+            response = new PeerMessage.PieceMessage(request.getPiece(), request.getOffset(), ByteBuffer.allocate(request.getLength()));
+            assertEquals(PieceHandler.Reception.IGNORED, request.answer(response));
+        }
+        PeerMessage.PieceMessage response = new PeerMessage.PieceMessage(last.getPiece(), last.getOffset(), ByteBuffer.allocate(last.getLength()));
+        assertEquals(PieceHandler.Reception.VALID, last.answer(response));
+        assertFalse(pieceHandler.hasUnrequestedBlocks());
+        assertFalse(pieceHandler.getDuplicateRequests(2).iterator().hasNext());
+        assertTrue(pieceHandler.isReceivedBlock(0));
+    }
+
+    @Test
+    public void testLargeRequests() throws Exception {
+        File dir = TorrentTestUtils.newTorrentDir("PieceHandlerTest");
+        Torrent torrent = TorrentTestUtils.newTorrent(dir, 465432);
+        int blockLength = PieceHandler.DEFAULT_BLOCK_SIZE;
+        int blockCount = IntMath.divide(torrent.getPieceLength(0), blockLength, RoundingMode.UP);
+        assertTrue(blockCount > 8);
+
+        PeerPieceProvider provider = new TestPeerPieceProvider(torrent);
+        PieceHandler pieceHandler = new PieceHandler(provider, 0);
+        Iterator<PieceHandler.AnswerableRequestMessage> small = pieceHandler.iterator();
+        Iterator<PieceHandler.AnswerableRequestMessage> large = pieceHandler.getRequests(4 * blockLength).iterator();
+
+        // A peer with a larger block length claims several blocks per request.
+        assertEquals(0, small.next().getOffset());
+        PieceHandler.AnswerableRequestMessage request = large.next();
+        assertEquals(blockLength, request.getOffset());
+        assertEquals(4 * blockLength, request.getLength());
+        request.validate(provider);
+        assertEquals(5 * blockLength, small.next().getOffset());
+
+        // Split for retry with a standard peer.
+        List<PieceHandler.AnswerableRequestMessage> blocks = request.split();
+        assertEquals(4, blocks.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals((i + 1) * blockLength, blocks.get(i).getOffset());
+            assertEquals(blockLength, blocks.get(i).getLength());
+        }
+
+        // Cancelling releases every block.
+        request.cancel();
+        assertEquals(blockLength, pieceHandler.iterator().next().getOffset());
+
+        // Receiving a large block receives every block it spans.
+        request = pieceHandler.getRequests(4 * blockLength).iterator().next();
+        assertEquals(2 * blockLength, request.getOffset());
+        assertEquals(3 * blockLength, request.getLength());
+        PeerMessage.PieceMessage response = new PeerMessage.PieceMessage(request.getPiece(), request.getOffset(), ByteBuffer.allocate(request.getLength()));
+        assertEquals(PieceHandler.Reception.INCOMPLETE, request.answer(response));
+        assertEquals(blockCount - 3, pieceHandler.getRequiredBlockCount());
+        for (int i = 2; i < 5; i++)
+            assertTrue(pieceHandler.isReceivedBlock(i * blockLength));
+        assertFalse(pieceHandler.isReceivedBlock(blockLength));
+    }
+
+    @Test
+    public void testPieceData() throws Exception {
+        File dir = TorrentTestUtils.newTorrentDir("PieceHandlerTest");
+        Torrent torrent = TorrentTestUtils.newTorrent(dir, 465432);
+        int pieceLength = torrent.getPieceLength(0);
+
+        PeerPieceProvider provider = new TestPeerPieceProvider(torrent);
+        ByteBuf pieceData = Unpooled.buffer(pieceLength, pieceLength);
+        PieceHandler pieceHandler = new PieceHandler(provider, 0, pieceData);
+        PieceHandler.Reception reception = null;
+        for (PieceHandler.AnswerableRequestMessage request : Iterators.toArray(pieceHandler.iterator(), PieceHandler.AnswerableRequestMessage.class)) {
+            PeerMessage.PieceMessage response = new PeerMessage.PieceMessage(request.getPiece(), request.getOffset(), ByteBuffer.allocate(request.getLength()));
+            reception = request.answer(response);
+        }
+        // The buffer is handed back once the piece is written.
+        assertEquals(PieceHandler.Reception.VALID, reception);
+        assertEquals(0, pieceData.refCnt());
+        assertFalse(pieceHandler.isReleased());
+
+        pieceData = Unpooled.buffer(pieceLength, pieceLength);
+        pieceHandler = new PieceHandler(provider, 0, pieceData);
+        PieceHandler.AnswerableRequestMessage request = pieceHandler.iterator().next();
+        pieceHandler.release();
+        pieceHandler.release();
+        assertEquals(0, pieceData.refCnt());
+        assertTrue(pieceHandler.isReleased());
+        assertFalse(pieceHandler.hasUnrequestedBlocks());
+        assertFalse(pieceHandler.iterator().hasNext());
+        PeerMessage.PieceMessage response = new PeerMessage.PieceMessage(request.getPiece(), request.getOffset(), ByteBuffer.allocate(request.getLength()));
+        assertEquals(PieceHandler.Reception.IGNORED, request.answer(response));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.peer;
+
+import com.turn.ttorrent.protocol.test.TorrentTestUtils;
+import com.turn.ttorrent.protocol.torrent.Torrent;
+import com.turn.ttorrent.protocol.torrent.TorrentCreator;
+import com.turn.ttorrent.test.TestPeerPieceProvider;
+import java.io.File;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class PiecePickerTest {
+
+    private TestPeerPieceProvider provider;
+    private PieceAvailability availability;
+    private final BitSet interesting = new BitSet();
+    private final Random random = new Random(0);
+
+    @Before
+    public void setUp() throws Exception {
+        File dir = TorrentTestUtils.newTorrentDir("PiecePickerTest");
+        TorrentCreator creator = TorrentTestUtils.newTorrentCreator(dir, 63 * PieceHandler.DEFAULT_BLOCK_SIZE);
+        creator.setPieceLength(PieceHandler.DEFAULT_BLOCK_SIZE);
+        Torrent torrent = creator.create();
+        provider = new TestPeerPieceProvider(torrent);
+        availability = new PieceAvailability(torrent.getPieceCount());
+        for (int i = 0; i < torrent.getPieceCount(); i++)
+            for (int j = (i == 40) ? 1 : 2 + (i % 4); j > 0; j--)
+                availability.increment(i);
+        // Piece 40 is the rarest piece that we want.
+        interesting.set(10, 20);
+        interesting.set(40);
+        interesting.set(50, 60);
+    }
+
+    // None of these pickers look at the peer.
+    private int getNextPiece(PiecePicker picker) {
+        BitSet copy = (BitSet) interesting.clone();
+        int piece = picker.getNextPiece(provider, availability, null, copy, random);
+        assertEquals(interesting, copy);
+        return piece;
+    }
+
+    @Test
+    public void testRarestFirst() {
+        PiecePicker picker = new RarestFirstPiecePicker();
+        for (int i = 0; i < 10; i++)
+            assertEquals(40, getNextPiece(picker));
+    }
+
+    @Test
+    public void testSequential() {
+        PiecePicker picker = new SequentialPiecePicker();
+        assertEquals(10, getNextPiece(picker));
+        interesting.clear(10);
+        assertEquals(11, getNextPiece(picker));
+    }
+
+    @Test
+    public void testRandomFirst() {
+        PiecePicker picker = new RandomFirstPiecePicker(2, new SequentialPiecePicker());
+        Set<Integer> pieces = new HashSet<Integer>();
+        for (int i = 0; i < 100; i++) {
+            int piece = getNextPiece(picker);
+            assertTrue(interesting.get(piece));
+            pieces.add(piece);
+        }
+        assertTrue("Too few random pieces: " + pieces, pieces.size() > 2);
+
+        provider.setCompletedPiece(0);
+        provider.setCompletedPiece(1);
+        assertEquals(10, getNextPiece(picker));
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.peer;
+
+import com.turn.ttorrent.client.io.PeerMessage;
+import com.turn.ttorrent.protocol.test.TorrentTestUtils;
+import com.turn.ttorrent.protocol.torrent.Torrent;
+import com.turn.ttorrent.protocol.torrent.TorrentCreator;
+import com.turn.ttorrent.test.TestPeerPieceProvider;
+import io.netty.util.internal.PlatformDependent;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the throughput of the piece selection path under contention.
+ *
+ * <p>
+ * Each benchmark thread plays the part of an event loop serving one peer: it
+ * picks the rarest unrequested piece, claims a block of the shared
+ * {@link PieceHandler}, answers it, and occasionally observes a HAVE. The
+ * {@code locked} parameter wraps each operation in a single global monitor,
+ * as SwarmHandler used to.
+ * </p>
+ *
+ * <p>
+ * This is not run as part of the test suite. Run {@link #main(String[])} to
+ * report throughput as the number of threads grows.
+ * </p>
+ *
+ * @author shevek
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PieceSelectionBenchmark {
+
+    private static final int PIECE_COUNT = 2048;
+    private static final int PIECE_LENGTH = 2 * PieceHandler.DEFAULT_BLOCK_SIZE;
+
+    @State(Scope.Thread)
+    public static class PeerState {
+
+        private final Random random = new Random();
+        private final BitSet available = new BitSet(PIECE_COUNT);
+        private final BitSet interesting = new BitSet(PIECE_COUNT);
+        private final ByteBuffer block = ByteBuffer.allocate(PieceHandler.DEFAULT_BLOCK_SIZE);
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            // Each peer has a random three quarters of the torrent.
+            for (int i = 0; i < PIECE_COUNT; i++)
+                if (random.nextInt(4) != 0)
+                    available.set(i);
+        }
+    }
+    @Param({"false", "true"})
+    public boolean locked;
+    private TestPeerPieceProvider provider;
+    private PieceAvailability availability;
+    private RequestRegistry requests;
+    private final ConcurrentMap<Integer, PieceHandler> pieceHandlers = PlatformDependent.newConcurrentHashMap();
+    private final Object lock = new Object();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        File dir = TorrentTestUtils.newTorrentDir("PieceSelectionBenchmark");
+        TorrentCreator creator = TorrentTestUtils.newTorrentCreator(dir, (long) PIECE_COUNT * PIECE_LENGTH);
+        creator.setPieceLength(PIECE_LENGTH);
+        Torrent torrent = creator.create();
+        provider = new TestPeerPieceProvider(torrent);
+        availability = new PieceAvailability(torrent.getPieceCount());
+        requests = new RequestRegistry(torrent.getPieceCount());
+        Random random = new Random(0);
+        for (int i = 0; i < torrent.getPieceCount(); i++)
+            for (int j = random.nextInt(20); j >= 0; j--)
+                availability.increment(i);
+    }
+
+    @Benchmark
+    public Object testPick(PeerState peer) throws Exception {
+        if (locked) {
+            synchronized (lock) {
+                return pick(peer);
+            }
+        }
+        return pick(peer);
+    }
+
+    private Object pick(PeerState peer) throws Exception {
+        Random random = peer.random;
+        // A HAVE followed by a disconnect.
+        int have = random.nextInt(PIECE_COUNT);
+        availability.increment(have);
+        availability.decrement(have);
+
+        BitSet interesting = peer.interesting;
+        interesting.clear();
+        interesting.or(peer.available);
+        requests.andNotRequested(interesting);
+        int piece = availability.getRarestPiece(interesting, random);
+        if (piece < 0)
+            return null;
+
+        PieceHandler pieceHandler = pieceHandlers.get(piece);
+        if (pieceHandler == null) {
+            pieceHandler = new PieceHandler(provider, piece);
+            PieceHandler prev = pieceHandlers.putIfAbsent(piece, pieceHandler);
+            if (prev != null)
+                pieceHandler = prev;
+        }
+        Iterator<PieceHandler.AnswerableRequestMessage> it = pieceHandler.iterator();
+        if (!it.hasNext())
+            return pieceHandler;
+        PieceHandler.AnswerableRequestMessage request = it.next();
+        requests.addRequest(piece);
+        try {
+            ByteBuffer block = peer.block;
+            block.clear().limit(request.getLength());
+            PeerMessage.PieceMessage response = new PeerMessage.PieceMessage(piece, request.getOffset(), block);
+            PieceHandler.Reception reception = request.answer(response);
+            // The provider never completes, so the piece may be picked again.
+            if (reception == PieceHandler.Reception.VALID)
+                pieceHandlers.remove(piece, pieceHandler);
+            return reception;
+        } finally {
+            requests.removeRequest(piece);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = Math.max(Runtime.getRuntime().availableProcessors(), 4);
+        StringBuilder buf = new StringBuilder();
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            Options options = new OptionsBuilder()
+                    .include(PieceSelectionBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .warmupIterations(3)
+                    .measurementIterations(5)
+                    .forks(1)
+                    .build();
+            for (RunResult result : new Runner(options).run()) {
+                buf.append("threads=").append(threads)
+                        .append(" ").append(result.getParams().getParam("locked").equals("true") ? "locked  " : "lockfree")
+                        .append(" ").append(result.getPrimaryResult().getScore())
+                        .append(" ").append(result.getPrimaryResult().getScoreUnit())
+                        .append("\n");
+            }
+        }
+        System.out.println(buf);
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.peer;
+
+import java.util.BitSet;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class RequestRegistryTest {
+
+    @Test
+    public void testRegistry() {
+        RequestRegistry registry = new RequestRegistry(10);
+        registry.addRequest(2);
+        registry.addRequest(2);
+        registry.addRequest(7);
+        assertTrue(registry.isRequested(2));
+        assertFalse(registry.isRequested(3));
+        assertEquals(2, registry.getRequestCount(2));
+        assertEquals(3, registry.getRequestCount());
+        assertEquals(2, registry.getRequestedPieceCount());
+
+        BitSet interesting = new BitSet();
+        interesting.set(0, 10);
+        registry.andNotRequested(interesting);
+        assertEquals(8, interesting.cardinality());
+        assertFalse(interesting.get(2));
+        assertFalse(interesting.get(7));
+
+        registry.removeRequest(2);
+        registry.removeRequest(7);
+        registry.removeRequest(7);
+        assertEquals(1, registry.getRequestCount());
+        assertEquals(1, registry.getRequestedPieceCount());
+        assertEquals(registry.getRequestedPieces(), BitSet.valueOf(new long[]{1 << 2}));
+    }
+}
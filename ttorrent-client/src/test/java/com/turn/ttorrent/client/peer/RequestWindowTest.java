@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.peer;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class RequestWindowTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RequestWindowTest.class);
+    private static final int BLOCK = PieceHandler.DEFAULT_BLOCK_SIZE;
+
+    /**
+     * Simulates a peer with the given upload rate and base round trip, which
+     * answers requests in order, and returns the final window size.
+     *
+     * @param rate Bytes per millisecond.
+     * @param latency Milliseconds.
+     */
+    private static int simulate(RequestWindow window, double rate, long latency, int blocks) {
+        double now = 1000;
+        for (int i = 0; i < blocks; i++) {
+            int size = window.getSize();
+            // Window-limited below the bandwidth-delay product, rate-limited above it.
+            double interval = Math.max(BLOCK / rate, (double) latency / size);
+            double rtt = Math.max(latency, size * BLOCK / rate);
+            now += interval;
+            window.addBlockReceived((long) (now - rtt), BLOCK, (long) now);
+        }
+        LOG.info("Rate {} b/ms, latency {} ms: window {}", new Object[]{rate, latency, window});
+        return window.getSize();
+    }
+
+    @Test
+    public void testSlowPeer() {
+        // 1 MiB/s at 200 ms is a bandwidth-delay product of 12.5 blocks.
+        RequestWindow window = new RequestWindow(BLOCK, RequestWindow.MIN_SIZE, PeerHandler.MAX_REQUESTS_SENT);
+        int size = simulate(window, 1024, 200, 2000);
+        assertTrue("Window too large: " + size, size <= 2 * 13 + 1);
+        assertTrue("Window too small: " + size, size >= 12);
+        assertEquals(200, window.getMinRoundTripTime());
+    }
+
+    @Test
+    public void testFastDistantPeer() {
+        // 10 MiB/s at 200 ms is a bandwidth-delay product of 125 blocks.
+        RequestWindow window = new RequestWindow(BLOCK, PeerHandler.MIN_REQUESTS_SENT, PeerHandler.MAX_REQUESTS_SENT);
+        int size = simulate(window, 10240, 200, 20000);
+        assertTrue("Window too small: " + size, size >= 125);
+        assertTrue("Window too large: " + size, size <= PeerHandler.MAX_REQUESTS_SENT);
+    }
+
+    @Test
+    public void testRemoteLimit() {
+        RequestWindow window = new RequestWindow(BLOCK, PeerHandler.MIN_REQUESTS_SENT, PeerHandler.MAX_REQUESTS_SENT);
+        window.setRemoteMaxSize(0);     // Not advertised.
+        window.setRemoteMaxSize(50);
+        assertEquals(50, simulate(window, 10240, 200, 20000));
+    }
+
+    @Test
+    public void testExpiry() {
+        RequestWindow window = new RequestWindow(BLOCK, 40, PeerHandler.MAX_REQUESTS_SENT);
+        assertEquals(40, window.getSize());
+        window.addRequestsExpired();
+        assertEquals(20, window.getSize());
+        for (int i = 0; i < 10; i++)
+            window.addRequestsExpired();
+        assertEquals(RequestWindow.MIN_SIZE, window.getSize());
+    }
+
+    @Test
+    public void testRequestTimeout() {
+        RequestWindow window = new RequestWindow(BLOCK, PeerHandler.MIN_REQUESTS_SENT, PeerHandler.MAX_REQUESTS_SENT);
+        assertEquals(PeerHandler.MAX_REQUESTS_TIME, window.getRequestTimeout(PeerHandler.MAX_REQUESTS_TIME));
+
+        // A steady peer converges on its round trip, subject to the minimum.
+        long now = 1000;
+        for (int i = 0; i < 100; i++) {
+            now += 10;
+            window.addBlockReceived(now - 50, BLOCK, now);
+        }
+        assertEquals(RequestWindow.MIN_REQUEST_TIMEOUT, window.getRequestTimeout(PeerHandler.MAX_REQUESTS_TIME));
+
+        // A slow, jittery peer gets more time, but never more than the maximum.
+        for (int i = 0; i < 100; i++) {
+            now += 10;
+            window.addBlockReceived(now - ((i % 2 == 0) ? 1000 : 3000), BLOCK, now);
+        }
+        long timeout = window.getRequestTimeout(PeerHandler.MAX_REQUESTS_TIME);
+        assertTrue("Timeout too short: " + timeout, timeout > 3000);
+        assertTrue("Timeout too long: " + timeout, timeout < PeerHandler.MAX_REQUESTS_TIME);
+        assertEquals(4000, window.getRequestTimeout(4000));
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.peer;
+
+import com.google.common.collect.Iterators;
+import com.turn.ttorrent.protocol.test.TorrentTestUtils;
+import com.turn.ttorrent.protocol.torrent.Torrent;
+import com.turn.ttorrent.protocol.torrent.TorrentCreator;
+import com.turn.ttorrent.test.TestPeerPieceProvider;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class RetryQueueTest {
+
+    @Test
+    public void testQueue() throws Exception {
+        File dir = TorrentTestUtils.newTorrentDir("RetryQueueTest");
+        TorrentCreator creator = TorrentTestUtils.newTorrentCreator(dir, (8 * 4 - 1) * PieceHandler.DEFAULT_BLOCK_SIZE);
+        creator.setPieceLength(4 * PieceHandler.DEFAULT_BLOCK_SIZE);
+        Torrent torrent = creator.create();
+        TestPeerPieceProvider provider = new TestPeerPieceProvider(torrent);
+        assertEquals(8, torrent.getPieceCount());
+
+        RetryQueue queue = new RetryQueue(torrent.getPieceCount());
+        PieceAvailability availability = new PieceAvailability(torrent.getPieceCount());
+        Random random = new Random(0);
+        for (int piece = 0; piece < torrent.getPieceCount(); piece++) {
+            // Piece 5 is the rarest.
+            for (int i = (piece == 5) ? 1 : 3; i > 0; i--)
+                availability.increment(piece);
+            List<PieceHandler.AnswerableRequestMessage> requests = new ArrayList<PieceHandler.AnswerableRequestMessage>();
+            Iterators.addAll(requests, new PieceHandler(provider, piece).iterator());
+            assertEquals((piece == 7) ? 3 : 4, requests.size());
+            if (piece % 2 == 1)
+                for (PieceHandler.AnswerableRequestMessage request : requests)
+                    queue.add(request);
+        }
+        assertEquals(15, queue.getRequestCount());
+        assertEquals(4, queue.getPieceCount());
+
+        BitSet interesting = new BitSet();
+        interesting.set(2, 7);
+        BitSet copy = (BitSet) interesting.clone();
+
+        // Rarest piece first, oldest request first.
+        List<PieceHandler.AnswerableRequestMessage> requests = queue.poll(interesting, availability, random, 6);
+        assertEquals(copy, interesting);
+        assertEquals(6, requests.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(5, requests.get(i).getPiece());
+            assertEquals(i * PieceHandler.DEFAULT_BLOCK_SIZE, requests.get(i).getOffset());
+        }
+        assertEquals(3, requests.get(4).getPiece());
+        assertEquals(9, queue.getRequestCount());
+        assertEquals(3, queue.getPieceCount());
+
+        // Nothing the peer has.
+        interesting.clear();
+        interesting.set(0);
+        interesting.set(4);
+        assertTrue(queue.poll(interesting, availability, random, 6).isEmpty());
+
+        assertEquals(2, queue.remove(3));
+        assertEquals(0, queue.remove(3));
+        assertEquals(7, queue.getRequestCount());
+        assertEquals(2, queue.getPieceCount());
+    }
+
+    @Test
+    public void testRemoveReleasesClaims() throws Exception {
+        File dir = TorrentTestUtils.newTorrentDir("RetryQueueTest");
+        TorrentCreator creator = TorrentTestUtils.newTorrentCreator(dir, (2 * 4 - 1) * PieceHandler.DEFAULT_BLOCK_SIZE);
+        creator.setPieceLength(4 * PieceHandler.DEFAULT_BLOCK_SIZE);
+        Torrent torrent = creator.create();
+        TestPeerPieceProvider provider = new TestPeerPieceProvider(torrent);
+
+        RetryQueue queue = new RetryQueue(torrent.getPieceCount());
+        PieceHandler pieceHandler = new PieceHandler(provider, 0);
+        for (PieceHandler.AnswerableRequestMessage request : pieceHandler)
+            queue.add(request);
+        assertFalse(pieceHandler.hasUnrequestedBlocks());
+
+        // The discarded retries no longer hold their blocks.
+        assertEquals(4, queue.remove(0));
+        assertTrue(pieceHandler.hasUnrequestedBlocks());
+        assertEquals(4, Iterators.size(pieceHandler.iterator()));
+    }
+
+    @Test
+    public void testConcurrentCount() throws Exception {
+        File dir = TorrentTestUtils.newTorrentDir("RetryQueueTest");
+        TorrentCreator creator = TorrentTestUtils.newTorrentCreator(dir, (64 * 4 - 1) * PieceHandler.DEFAULT_BLOCK_SIZE);
+        creator.setPieceLength(4 * PieceHandler.DEFAULT_BLOCK_SIZE);
+        Torrent torrent = creator.create();
+        TestPeerPieceProvider provider = new TestPeerPieceProvider(torrent);
+
+        final RetryQueue queue = new RetryQueue(torrent.getPieceCount());
+        final PieceAvailability availability = new PieceAvailability(torrent.getPieceCount());
+        final List<PieceHandler.AnswerableRequestMessage> requests = new ArrayList<PieceHandler.AnswerableRequestMessage>();
+        for (int piece = 0; piece < torrent.getPieceCount(); piece++)
+            Iterators.addAll(requests, new PieceHandler(provider, piece).iterator());
+        final BitSet interesting = new BitSet();
+        interesting.set(0, torrent.getPieceCount());
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < 4; t++) {
+                final int thread = t;
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        Random random = new Random(thread);
+                        int polled = 0;
+                        for (int i = thread; i < requests.size(); i += 4) {
+                            queue.add(requests.get(i));
+                            assertTrue(queue.getRequestCount() >= 0);
+                            polled += queue.poll(interesting, availability, random, 1).size();
+                        }
+                        return polled;
+                    }
+                }));
+            }
+            int polled = 0;
+            for (Future<Integer> future : futures)
+                polled += future.get();
+            assertEquals(requests.size() - polled, queue.getRequestCount());
+            assertEquals(queue.getRequestCount(), queue.poll(interesting, availability, new Random(0), requests.size()).size());
+            assertEquals(0, queue.getRequestCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
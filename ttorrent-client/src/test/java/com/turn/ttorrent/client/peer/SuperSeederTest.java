@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014 shevek.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.turn.ttorrent.client.peer;
+
+import com.turn.ttorrent.client.io.PeerMessage;
+import com.turn.ttorrent.protocol.test.TorrentTestUtils;
+import com.turn.ttorrent.protocol.torrent.Torrent;
+import com.turn.ttorrent.test.TestPeerPieceProvider;
+import com.turn.ttorrent.tracker.client.test.TestPeerAddressProvider;
+import io.netty.channel.Channel;
+import java.io.File;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import org.easymock.EasyMock;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author shevek
+ */
+public class SuperSeederTest {
+
+    private static PeerHandler newPeerHandler(TestPeerPieceProvider pieceProvider, int id) {
+        byte[] peerId = Arrays.copyOf(new byte[]{1, 2, 3, 4, 5, (byte) id}, 20);
+        Channel channel = EasyMock.createNiceMock(Channel.class);
+        return new PeerHandler(channel, peerId, new byte[8], new TestPeerAddressProvider(), pieceProvider,
+                EasyMock.createNiceMock(PeerExistenceListener.class),
+                EasyMock.createNiceMock(PeerConnectionListener.class),
+                EasyMock.createNiceMock(PeerActivityListener.class));
+    }
+
+    @Test
+    public void testReveal() throws Exception {
+        File dir = TorrentTestUtils.newTorrentDir("SuperSeederTest");
+        Torrent torrent = TorrentTestUtils.newTorrent(dir, 12345678);
+        int pieceCount = torrent.getPieceCount();
+        assertTrue(pieceCount > 2);
+
+        TestPeerPieceProvider pieceProvider = new TestPeerPieceProvider(torrent);
+        PeerHandler p0 = newPeerHandler(pieceProvider, 0);
+        PeerHandler p1 = newPeerHandler(pieceProvider, 1);
+        PeerHandler p2 = newPeerHandler(pieceProvider, 2);
+
+        // Every piece but 1 is available in the swarm.
+        PieceAvailability availability = new PieceAvailability(pieceCount);
+        for (int i = 0; i < pieceCount; i++)
+            if (i != 1)
+                availability.increment(i);
+
+        SuperSeeder seeder = new SuperSeeder(pieceCount);
+        Random random = new Random(1);
+        long now = System.currentTimeMillis();
+        assertEquals(1, seeder.reveal(p0, availability, random));
+        // Nothing more until the piece spreads.
+        assertEquals(-1, seeder.reveal(p0, availability, random));
+        assertEquals(1, seeder.getRevealedPiece(p0));
+
+        // Piece 1 has been revealed once, so p1 gets another piece.
+        availability.increment(1);
+        int piece = seeder.reveal(p1, availability, random);
+        assertTrue(piece >= 0);
+        assertTrue(piece != 1);
+
+        // A peer does not at once release itself by announcing the piece we revealed to it.
+        assertTrue(seeder.handlePieceAvailability(p0, 1, now).isEmpty());
+        assertEquals(-1, seeder.reveal(p0, availability, random));
+        assertFalse(seeder.expire(p0, now));
+        // Another peer announcing it releases p0.
+        assertEquals(Arrays.asList(p0), seeder.handlePieceAvailability(p2, 1, now));
+        assertEquals(-1, seeder.getRevealedPiece(p0));
+
+        // A peer never has a piece revealed which it already has.
+        BitSet bitfield = new BitSet();
+        bitfield.set(0, pieceCount);
+        bitfield.clear(pieceCount - 1);
+        p0.handleMessage(new PeerMessage.BitfieldMessage(bitfield));
+        assertEquals(pieceCount - 1, seeder.reveal(p0, availability, random));
+
+        // A peer which has every piece gets nothing.
+        bitfield.set(0, pieceCount);
+        p2.handleMessage(new PeerMessage.BitfieldMessage(bitfield));
+        assertEquals(-1, seeder.reveal(p2, availability, random));
+
+        seeder.remove(p1);
+        assertEquals(-1, seeder.getRevealedPiece(p1));
+        assertTrue(seeder.reveal(p1, availability, random) >= 0);
+    }
+
+    /** A lone leecher has nobody to pass its pieces to, but must still get every piece. */
+    @Test
+    public void testSingleLeecher() throws Exception {
+        File dir = TorrentTestUtils.newTorrentDir("SuperSeederTest");
+        Torrent torrent = TorrentTestUtils.newTorrent(dir, 12345678);
+        int pieceCount = torrent.getPieceCount();
+
+        TestPeerPieceProvider pieceProvider = new TestPeerPieceProvider(torrent);
+        PeerHandler p0 = newPeerHandler(pieceProvider, 0);
+        PieceAvailability availability = new PieceAvailability(pieceCount);
+
+        SuperSeeder seeder = new SuperSeeder(pieceCount, 1000, 10000);
+        Random random = new Random(1);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < pieceCount; i++) {
+            int piece = seeder.reveal(p0, availability, random);
+            assertTrue("No piece revealed after " + i + " pieces.", piece >= 0);
+            p0.handleHave(piece);
+            assertTrue(seeder.handlePieceAvailability(p0, piece, now).isEmpty());
+            assertEquals(-1, seeder.reveal(p0, availability, random));
+            // The reveal lapses once the piece has had time to spread.
+            assertFalse(seeder.expire(p0, now + 999));
+            now += 1000;
+            assertTrue(seeder.expire(p0, now));
+        }
+        assertEquals(pieceCount, p0.getAvailablePieceCount());
+        assertEquals(-1, seeder.reveal(p0, availability, random));
+
+        // A peer which never announces its piece is given another, eventually.
+        PeerHandler p1 = newPeerHandler(pieceProvider, 1);
+        int piece = seeder.reveal(p1, availability, random);
+        assertTrue(piece >= 0);
+        assertFalse(seeder.expire(p1, System.currentTimeMillis()));
+        assertTrue(seeder.expire(p1, System.currentTimeMillis() + 10000));
+        assertTrue(seeder.reveal(p1, availability, random) >= 0);
+    }
+
+    /** A zero spread time releases a peer as soon as it announces its piece. */
+    @Test
+    public void testNonStrict() throws Exception {
+        File dir = TorrentTestUtils.newTorrentDir("SuperSeederTest");
+        Torrent torrent = TorrentTestUtils.newTorrent(dir, 12345678);
+        int pieceCount = torrent.getPieceCount();
+
+        TestPeerPieceProvider pieceProvider = new TestPeerPieceProvider(torrent);
+        PeerHandler p0 = newPeerHandler(pieceProvider, 0);
+        PieceAvailability availability = new PieceAvailability(pieceCount);
+
+        SuperSeeder seeder = new SuperSeeder(pieceCount, 0, 10000);
+        Random random = new Random(1);
+        int piece = seeder.reveal(p0, availability, random);
+        p0.handleHave(piece);
+        assertEquals(Arrays.asList(p0), seeder.handlePieceAvailability(p0, piece, System.currentTimeMillis()));
+        int next = seeder.reveal(p0, availability, random);
+        assertTrue(next >= 0);
+        assertTrue(next != piece);
+    }
+}
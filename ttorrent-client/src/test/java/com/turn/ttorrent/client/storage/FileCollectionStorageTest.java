@@ -1,9 +1,12 @@
 package com.turn.ttorrent.client.storage;
 
+import io.netty.channel.FileRegion;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -48,6 +51,33 @@ public class FileCollectionStorageTest {
         check(new byte[]{102, 11}, file2);
     }
 
+    @Test
+    public void testFileRegion() throws Exception {
+        final File file1 = File.createTempFile(getClass().getSimpleName(), ".0.tmp");
+        file1.deleteOnExit();
+        final File file2 = File.createTempFile(getClass().getSimpleName(), ".1.tmp");
+        file2.deleteOnExit();
+
+        final List<FileStorage> files = new ArrayList<FileStorage>();
+        files.add(new FileStorage(file1, 0, 2));
+        files.add(new FileStorage(file2, 2, 3));
+        final FileCollectionStorage storage = new FileCollectionStorage(files);
+        write(new byte[]{1, 2, 3, 4, 5}, 0, storage);
+
+        // A region can't span files.
+        assertNull(storage.getFileRegion(1, 2));
+
+        FileRegion region = storage.getFileRegion(3, 2);
+        assertNotNull(region);
+        assertEquals(2, region.count());
+        // The region outlives the storage.
+        storage.close();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        region.transferTo(Channels.newChannel(out), 0);
+        assertArrayEquals(new byte[]{4, 5}, out.toByteArray());
+        assertTrue(region.release());
+    }
+
     private void write(byte[] bytes, int offset, FileCollectionStorage storage) throws IOException {
         storage.write(ByteBuffer.wrap(bytes), offset);
         storage.flush();
@@ -10,6 +10,8 @@ import com.turn.ttorrent.client.peer.PeerHandler;
 import com.turn.ttorrent.client.peer.Instrumentation;
 import com.turn.ttorrent.protocol.torrent.Torrent;
 import com.turn.ttorrent.tracker.client.test.TestPeerAddressProvider;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.FileRegion;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.BitSet;
@@ -51,6 +53,11 @@ public class TestPeerPieceProvider extends TestPeerAddressProvider implements Pe
         return PieceHandler.DEFAULT_BLOCK_SIZE;
     }
 
+    @Override
+    public int getMaxBlockLength() {
+        return PieceHandler.DEFAULT_BLOCK_SIZE;
+    }
+
     @Override
     public BitSet getCompletedPieces() {
         synchronized (lock) {
@@ -58,6 +65,13 @@ public class TestPeerPieceProvider extends TestPeerAddressProvider implements Pe
         }
     }
 
+    @Override
+    public int getCompletedPieceCount() {
+        synchronized (lock) {
+            return completedPieces.cardinality();
+        }
+    }
+
     @Override
     public boolean isCompletedPiece(int index) {
         synchronized (lock) {
@@ -72,6 +86,15 @@ public class TestPeerPieceProvider extends TestPeerAddressProvider implements Pe
         }
     }
 
+    @Override
+    public boolean isSkippedPiece(int index) {
+        return false;
+    }
+
+    @Override
+    public void andNotSkippedPieces(BitSet out) {
+    }
+
     @Override
     public Iterable<PieceHandler.AnswerableRequestMessage> getNextPieceHandler(PeerHandler peer, BitSet interesting) {
         synchronized (lock) {
@@ -86,6 +109,14 @@ public class TestPeerPieceProvider extends TestPeerAddressProvider implements Pe
         throw new UnsupportedOperationException("Not supported yet.");
     }
 
+    @Override
+    public void addRequestSent(PieceHandler.AnswerableRequestMessage request) {
+    }
+
+    @Override
+    public void removeRequestSent(PieceHandler.AnswerableRequestMessage request) {
+    }
+
     public void setPieceHandler(PieceHandler pieceHandler) {
         synchronized (lock) {
             this.pieceHandler = pieceHandler;
@@ -96,12 +127,28 @@ public class TestPeerPieceProvider extends TestPeerAddressProvider implements Pe
         setPieceHandler(new PieceHandler(this, piece));
     }
 
+    public void setCompletedPiece(int piece) {
+        synchronized (lock) {
+            completedPieces.set(piece);
+        }
+    }
+
     @Override
     public void readBlock(ByteBuffer block, int piece, int offset) throws IOException {
         // Apparently fill the block.
         block.position(block.limit());
     }
 
+    @Override
+    public FileRegion getBlockRegion(int piece, int offset, int length) throws IOException {
+        return null;
+    }
+
+    @Override
+    public void releasePieceData(ByteBuf pieceData) {
+        pieceData.release();
+    }
+
     @Override
     public void writeBlock(ByteBuffer block, int piece, int offset) throws IOException {
         // Apparently consume the block.